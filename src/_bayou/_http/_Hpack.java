@@ -0,0 +1,638 @@
+package _bayou._http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+
+// HPACK, header compression for HTTP/2. RFC 7541
+//
+// Decoder and Encoder are not thread safe; each HTTP/2 connection has one of each.
+// header names and values are treated as latin-1 strings, same as in HTTP/1.
+public class _Hpack
+{
+    // compression error. the HTTP/2 connection must be closed with COMPRESSION_ERROR
+    public static class HpackException extends IOException
+    {
+        public HpackException(String message)
+        {
+            super(message);
+        }
+    }
+
+    public interface Sink
+    {
+        void header(String name, String value) throws Exception;
+    }
+
+    static final int ENTRY_OVERHEAD = 32; // per entry, on top of name/value lengths
+
+    static final String[][] STATIC_TABLE =
+    {
+        null, // index starts from 1
+        {":authority", ""},
+        {":method", "GET"},
+        {":method", "POST"},
+        {":path", "/"},
+        {":path", "/index.html"},
+        {":scheme", "http"},
+        {":scheme", "https"},
+        {":status", "200"},
+        {":status", "204"},
+        {":status", "206"},
+        {":status", "304"},
+        {":status", "400"},
+        {":status", "404"},
+        {":status", "500"},
+        {"accept-charset", ""},
+        {"accept-encoding", "gzip, deflate"},
+        {"accept-language", ""},
+        {"accept-ranges", ""},
+        {"accept", ""},
+        {"access-control-allow-origin", ""},
+        {"age", ""},
+        {"allow", ""},
+        {"authorization", ""},
+        {"cache-control", ""},
+        {"content-disposition", ""},
+        {"content-encoding", ""},
+        {"content-language", ""},
+        {"content-length", ""},
+        {"content-location", ""},
+        {"content-range", ""},
+        {"content-type", ""},
+        {"cookie", ""},
+        {"date", ""},
+        {"etag", ""},
+        {"expect", ""},
+        {"expires", ""},
+        {"from", ""},
+        {"host", ""},
+        {"if-match", ""},
+        {"if-modified-since", ""},
+        {"if-none-match", ""},
+        {"if-range", ""},
+        {"if-unmodified-since", ""},
+        {"last-modified", ""},
+        {"link", ""},
+        {"location", ""},
+        {"max-forwards", ""},
+        {"proxy-authenticate", ""},
+        {"proxy-authorization", ""},
+        {"range", ""},
+        {"referer", ""},
+        {"refresh", ""},
+        {"retry-after", ""},
+        {"server", ""},
+        {"set-cookie", ""},
+        {"strict-transport-security", ""},
+        {"transfer-encoding", ""},
+        {"user-agent", ""},
+        {"vary", ""},
+        {"via", ""},
+        {"www-authenticate", ""},
+    };
+    static final int STATIC_SIZE = STATIC_TABLE.length - 1; // 61
+
+    // lookup for encoder. "name" -> index of first entry with the name; "name\0value" -> index.
+    static final HashMap<String,Integer> staticIndex = new HashMap<>();
+    static
+    {
+        for(int i=STATIC_SIZE; i>=1; i--) // lower index wins
+        {
+            String[] nv = STATIC_TABLE[i];
+            staticIndex.put(nv[0], i);
+            if(!nv[1].isEmpty())
+                staticIndex.put(nv[0]+'\0'+nv[1], i);
+        }
+    }
+
+
+    // dynamic table ============================================================================
+
+    // a FIFO of entries. newest entry has the smallest index (STATIC_SIZE+1).
+    static class DynamicTable
+    {
+        String[] names = new String[16];
+        String[] values = new String[16];
+        int head; // next insert position in the ring
+        int count;
+        int size;    // per RFC, sum of (name.length + value.length + 32)
+        int maxSize;
+
+        long inserted; // total number of insertions; used by encoder to compute index of an entry
+
+        DynamicTable(int maxSize)
+        {
+            this.maxSize = maxSize;
+        }
+
+        // i = 0 for the newest entry
+        String name(int i)
+        {
+            return names[slot(i)];
+        }
+        String value(int i)
+        {
+            return values[slot(i)];
+        }
+        int slot(int i)
+        {
+            return (head - 1 - i) & (names.length - 1);
+        }
+
+        void setMaxSize(int maxSize)
+        {
+            this.maxSize = maxSize;
+            evict(0);
+        }
+
+        void add(String name, String value)
+        {
+            int entrySize = name.length() + value.length() + ENTRY_OVERHEAD;
+            if(entrySize > maxSize) // table is emptied. not an error
+            {
+                evict(maxSize);
+                return;
+            }
+            evict(entrySize);
+
+            if(count==names.length)
+                grow();
+            names[head] = name;
+            values[head] = value;
+            head = (head+1) & (names.length-1);
+            count++;
+            size += entrySize;
+            inserted++;
+        }
+
+        // evict oldest entries so that `room` bytes can be added
+        void evict(int room)
+        {
+            while(count>0 && size+room>maxSize)
+            {
+                int oldest = slot(count-1);
+                size -= names[oldest].length() + values[oldest].length() + ENTRY_OVERHEAD;
+                names[oldest] = values[oldest] = null;
+                count--;
+            }
+        }
+
+        void grow()
+        {
+            int n = names.length;
+            String[] names2 = new String[n*2];
+            String[] values2 = new String[n*2];
+            for(int i=0; i<count; i++) // oldest first
+            {
+                names2[i] = name(count-1-i);
+                values2[i] = value(count-1-i);
+            }
+            names = names2;
+            values = values2;
+            head = count;
+        }
+    }
+
+
+    // decoder ==================================================================================
+
+    public static class Decoder
+    {
+        final DynamicTable table;
+        final int maxTableSizeLimit; // SETTINGS_HEADER_TABLE_SIZE we advertised
+
+        public Decoder(int maxTableSize)
+        {
+            this.maxTableSizeLimit = maxTableSize;
+            this.table = new DynamicTable(maxTableSize);
+        }
+
+        byte[] block;
+        int pos;
+        int end;
+
+        // decode a complete header block.
+        public void decode(byte[] block, int offset, int length, Sink sink) throws Exception
+        {
+            this.block = block;
+            this.pos = offset;
+            this.end = offset + length;
+            try
+            {
+                boolean headerSeen = false;
+                while(pos<end)
+                {
+                    int b = block[pos] & 0xff;
+                    if((b & 0x80)!=0) // indexed
+                    {
+                        int index = readInt(7);
+                        if(index==0)
+                            throw new HpackException("index 0");
+                        sink.header(name(index), value(index));
+                        headerSeen = true;
+                    }
+                    else if((b & 0x40)!=0) // literal with incremental indexing
+                    {
+                        String name = readName(6);
+                        String value = readString();
+                        table.add(name, value);
+                        sink.header(name, value);
+                        headerSeen = true;
+                    }
+                    else if((b & 0x20)!=0) // dynamic table size update
+                    {
+                        if(headerSeen)
+                            throw new HpackException("table size update after header field");
+                        int maxSize = readInt(5);
+                        if(maxSize>maxTableSizeLimit)
+                            throw new HpackException("table size update exceeds limit: "+maxSize);
+                        table.setMaxSize(maxSize);
+                    }
+                    else // literal without indexing (0000) or never indexed (0001)
+                    {
+                        String name = readName(4);
+                        String value = readString();
+                        sink.header(name, value);
+                        headerSeen = true;
+                    }
+                }
+            }
+            finally
+            {
+                this.block = null;
+            }
+        }
+
+        String name(int index) throws HpackException
+        {
+            if(index<=STATIC_SIZE)
+                return STATIC_TABLE[index][0];
+            index -= STATIC_SIZE+1;
+            if(index>=table.count)
+                throw new HpackException("invalid index");
+            return table.name(index);
+        }
+        String value(int index) throws HpackException
+        {
+            if(index<=STATIC_SIZE)
+                return STATIC_TABLE[index][1];
+            index -= STATIC_SIZE+1;
+            if(index>=table.count)
+                throw new HpackException("invalid index");
+            return table.value(index);
+        }
+
+        String readName(int prefixBits) throws HpackException
+        {
+            int index = readInt(prefixBits);
+            if(index!=0)
+                return name(index);
+            return readString();
+        }
+
+        int readInt(int prefixBits) throws HpackException
+        {
+            int mask = (1<<prefixBits) - 1;
+            int value = block[pos++] & mask;
+            if(value<mask)
+                return value;
+
+            int shift = 0;
+            while(true)
+            {
+                if(pos>=end)
+                    throw new HpackException("truncated integer");
+                int b = block[pos++] & 0xff;
+                if(shift>=28 && (b & 0x7f)>7) // exceeds int
+                    throw new HpackException("integer overflow");
+                value += (b & 0x7f) << shift;
+                if(value<0)
+                    throw new HpackException("integer overflow");
+                if((b & 0x80)==0)
+                    return value;
+                shift += 7;
+            }
+        }
+
+        String readString() throws HpackException
+        {
+            if(pos>=end)
+                throw new HpackException("truncated string");
+            boolean huffman = (block[pos] & 0x80)!=0;
+            int length = readInt(7);
+            if(length > end-pos)
+                throw new HpackException("truncated string");
+            String str = huffman
+                ? Huffman.decode(block, pos, length)
+                : new String(block, pos, length, StandardCharsets.ISO_8859_1);
+            pos += length;
+            return str;
+        }
+    }
+
+
+    // encoder ==================================================================================
+
+    // literal header fields are added to the dynamic table, except for headers whose values are unlikely
+    // to repeat, or are sensitive. Huffman coding is used if it's shorter.
+    public static class Encoder
+    {
+        final DynamicTable table;
+        int pendingMaxSize = -1; // to be signaled at the beginning of next header block
+
+        // "name" or "name\0value" -> insertion number of the entry in table
+        final HashMap<String,Long> dynamicIndex = new HashMap<>();
+
+        public Encoder(int maxTableSize)
+        {
+            table = new DynamicTable(maxTableSize);
+        }
+
+        // peer's SETTINGS_HEADER_TABLE_SIZE
+        public void setMaxTableSize(int maxSize)
+        {
+            // we never use more than 4096 bytes, even if peer allows more
+            maxSize = Math.min(maxSize, 4096);
+            if(maxSize==table.maxSize)
+                return;
+            table.setMaxSize(maxSize);
+            pendingMaxSize = maxSize;
+        }
+
+        // call at beginning of each header block
+        public void beginBlock(ByteArrayOutputStream out)
+        {
+            if(pendingMaxSize!=-1)
+            {
+                writeInt(out, 0x20, 5, pendingMaxSize);
+                pendingMaxSize = -1;
+            }
+        }
+
+        public void encode(ByteArrayOutputStream out, String name, String value)
+        {
+            Integer sIndex = staticIndex.get(name+'\0'+value);
+            if(sIndex!=null)
+            {
+                writeInt(out, 0x80, 7, sIndex.intValue());
+                return;
+            }
+
+            int dIndex = dynamicIndex(name+'\0'+value);
+            if(dIndex!=0)
+            {
+                writeInt(out, 0x80, 7, dIndex);
+                return;
+            }
+
+            int nameIndex;
+            sIndex = staticIndex.get(name);
+            nameIndex = sIndex!=null? sIndex.intValue() : dynamicIndex(name);
+
+            boolean indexing = shouldIndex(name, value);
+            if(indexing)
+                writeInt(out, 0x40, 6, nameIndex);
+            else
+                writeInt(out, 0x00, 4, nameIndex);
+            if(nameIndex==0)
+                writeString(out, name);
+            writeString(out, value);
+
+            if(indexing)
+            {
+                table.add(name, value);
+                Long id = table.inserted;  // of the new entry
+                dynamicIndex.put(name+'\0'+value, id);
+                dynamicIndex.put(name, id);
+            }
+        }
+
+        // 0 if not found
+        int dynamicIndex(String key)
+        {
+            Long id = dynamicIndex.get(key);
+            if(id==null)
+                return 0;
+            long i = table.inserted - id.longValue(); // 0 for the newest
+            if(i>=table.count) // evicted
+            {
+                dynamicIndex.remove(key);
+                return 0;
+            }
+            return STATIC_SIZE + 1 + (int)i;
+        }
+
+        static boolean shouldIndex(String name, String value)
+        {
+            switch(name)
+            {
+                case "content-length":
+                case "content-range":
+                case "etag":
+                case "last-modified":
+                case "set-cookie":
+                case "location":
+                case "authorization":
+                case "cookie":
+                case ":path":
+                    return false;
+                default:
+                    return value.length() < 256;
+            }
+        }
+    }
+
+    public static void writeInt(ByteArrayOutputStream out, int firstByteFlags, int prefixBits, int value)
+    {
+        int mask = (1<<prefixBits) - 1;
+        if(value<mask)
+        {
+            out.write(firstByteFlags | value);
+            return;
+        }
+        out.write(firstByteFlags | mask);
+        value -= mask;
+        while(value>=0x80)
+        {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    public static void writeString(ByteArrayOutputStream out, String str)
+    {
+        int hLen = Huffman.encodedLength(str);
+        if(hLen < str.length())
+        {
+            writeInt(out, 0x80, 7, hLen);
+            Huffman.encode(out, str);
+        }
+        else
+        {
+            writeInt(out, 0x00, 7, str.length());
+            for(int i=0; i<str.length(); i++)
+                out.write(str.charAt(i));
+        }
+    }
+
+
+    // huffman ==================================================================================
+
+    static class Huffman
+    {
+        // RFC 7541 Appendix B. index is the symbol; 256 is EOS
+        static final int[] CODES =
+        {
+        0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5, 0xfffffe6, 0xfffffe7,
+        0xfffffe8, 0xffffea, 0x3ffffffc, 0xfffffe9, 0xfffffea, 0x3ffffffd, 0xfffffeb, 0xfffffec,
+        0xfffffed, 0xfffffee, 0xfffffef, 0xffffff0, 0xffffff1, 0xffffff2, 0x3ffffffe, 0xffffff3,
+        0xffffff4, 0xffffff5, 0xffffff6, 0xffffff7, 0xffffff8, 0xffffff9, 0xffffffa, 0xffffffb,
+        0x14, 0x3f8, 0x3f9, 0xffa, 0x1ff9, 0x15, 0xf8, 0x7fa,
+        0x3fa, 0x3fb, 0xf9, 0x7fb, 0xfa, 0x16, 0x17, 0x18,
+        0x0, 0x1, 0x2, 0x19, 0x1a, 0x1b, 0x1c, 0x1d,
+        0x1e, 0x1f, 0x5c, 0xfb, 0x7ffc, 0x20, 0xffb, 0x3fc,
+        0x1ffa, 0x21, 0x5d, 0x5e, 0x5f, 0x60, 0x61, 0x62,
+        0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a,
+        0x6b, 0x6c, 0x6d, 0x6e, 0x6f, 0x70, 0x71, 0x72,
+        0xfc, 0x73, 0xfd, 0x1ffb, 0x7fff0, 0x1ffc, 0x3ffc, 0x22,
+        0x7ffd, 0x3, 0x23, 0x4, 0x24, 0x5, 0x25, 0x26,
+        0x27, 0x6, 0x74, 0x75, 0x28, 0x29, 0x2a, 0x7,
+        0x2b, 0x76, 0x2c, 0x8, 0x9, 0x2d, 0x77, 0x78,
+        0x79, 0x7a, 0x7b, 0x7ffe, 0x7fc, 0x3ffd, 0x1ffd, 0xffffffc,
+        0xfffe6, 0x3fffd2, 0xfffe7, 0xfffe8, 0x3fffd3, 0x3fffd4, 0x3fffd5, 0x7fffd9,
+        0x3fffd6, 0x7fffda, 0x7fffdb, 0x7fffdc, 0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf,
+        0xffffec, 0xffffed, 0x3fffd7, 0x7fffe0, 0xffffee, 0x7fffe1, 0x7fffe2, 0x7fffe3,
+        0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5, 0x3fffd9, 0x7fffe6, 0x7fffe7, 0xffffef,
+        0x3fffda, 0x1fffdd, 0xfffe9, 0x3fffdb, 0x3fffdc, 0x7fffe8, 0x7fffe9, 0x1fffde,
+        0x7fffea, 0x3fffdd, 0x3fffde, 0xfffff0, 0x1fffdf, 0x3fffdf, 0x7fffeb, 0x7fffec,
+        0x1fffe0, 0x1fffe1, 0x3fffe0, 0x1fffe2, 0x7fffed, 0x3fffe1, 0x7fffee, 0x7fffef,
+        0xfffea, 0x3fffe2, 0x3fffe3, 0x3fffe4, 0x7ffff0, 0x3fffe5, 0x3fffe6, 0x7ffff1,
+        0x3ffffe0, 0x3ffffe1, 0xfffeb, 0x7fff1, 0x3fffe7, 0x7ffff2, 0x3fffe8, 0x1ffffec,
+        0x3ffffe2, 0x3ffffe3, 0x3ffffe4, 0x7ffffde, 0x7ffffdf, 0x3ffffe5, 0xfffff1, 0x1ffffed,
+        0x7fff2, 0x1fffe3, 0x3ffffe6, 0x7ffffe0, 0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2,
+        0x1fffe4, 0x1fffe5, 0x3ffffe8, 0x3ffffe9, 0xffffffd, 0x7ffffe3, 0x7ffffe4, 0x7ffffe5,
+        0xfffec, 0xfffff3, 0xfffed, 0x1fffe6, 0x3fffe9, 0x1fffe7, 0x1fffe8, 0x7ffff3,
+        0x3fffea, 0x3fffeb, 0x1ffffee, 0x1ffffef, 0xfffff4, 0xfffff5, 0x3ffffea, 0x7ffff4,
+        0x3ffffeb, 0x7ffffe6, 0x3ffffec, 0x3ffffed, 0x7ffffe7, 0x7ffffe8, 0x7ffffe9, 0x7ffffea,
+        0x7ffffeb, 0xffffffe, 0x7ffffec, 0x7ffffed, 0x7ffffee, 0x7ffffef, 0x7fffff0, 0x3ffffee,
+        0x3fffffff
+        };
+        static final byte[] LENGTHS =
+        {
+        13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+        28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+        6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+        5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+        13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+        7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+        15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+        6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+        20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+        24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+        22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+        21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+        26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+        19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+        20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+        26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26,
+        30
+        };
+
+        // decoding tree. node 0 is root. children[2*node + bit] -> child node,
+        // or (-1 - symbol) for a leaf. 0 means no child.
+        static final int[] children;
+        static
+        {
+            int[] tree = new int[2*512];
+            int nodeCount = 1;
+            for(int sym=0; sym<=256; sym++)
+            {
+                int code = CODES[sym];
+                int len = LENGTHS[sym];
+                int node = 0;
+                for(int i=len-1; i>=0; i--)
+                {
+                    int bit = (code>>>i) & 1;
+                    int x = 2*node + bit;
+                    if(i==0)
+                        tree[x] = -1 - sym;
+                    else
+                    {
+                        if(tree[x]==0)
+                            tree[x] = nodeCount++;
+                        node = tree[x];
+                    }
+                }
+            }
+            children = tree;
+        }
+
+        static String decode(byte[] bytes, int offset, int length) throws HpackException
+        {
+            StringBuilder sb = new StringBuilder(length*8/5);
+            int node = 0;
+            int depth = 0;    // bits consumed since last symbol
+            boolean allOnes = true; // bits since last symbol are all 1
+            for(int i=offset; i<offset+length; i++)
+            {
+                int b = bytes[i] & 0xff;
+                for(int k=7; k>=0; k--)
+                {
+                    int bit = (b>>>k) & 1;
+                    int next = children[2*node + bit];
+                    if(next<0)
+                    {
+                        int sym = -1 - next;
+                        if(sym==256)
+                            throw new HpackException("EOS in huffman string");
+                        sb.append((char)sym);
+                        node = 0;
+                        depth = 0;
+                        allOnes = true;
+                    }
+                    else
+                    {
+                        node = next;
+                        depth++;
+                        allOnes &= (bit==1);
+                    }
+                }
+            }
+            // padding: must be most significant bits of EOS (all 1), strictly shorter than 8 bits
+            if(depth>7 || !allOnes)
+                throw new HpackException("invalid huffman padding");
+            return sb.toString();
+        }
+
+        static int encodedLength(String str)
+        {
+            long bits = 0;
+            for(int i=0; i<str.length(); i++)
+                bits += LENGTHS[str.charAt(i) & 0xff];
+            return (int)((bits+7)>>>3);
+        }
+
+        static void encode(ByteArrayOutputStream out, String str)
+        {
+            long acc = 0;  // bit accumulator
+            int n = 0;     // number of bits in acc
+            for(int i=0; i<str.length(); i++)
+            {
+                int sym = str.charAt(i) & 0xff;
+                acc = (acc<<LENGTHS[sym]) | CODES[sym];
+                n += LENGTHS[sym];
+                while(n>=8)
+                {
+                    n -= 8;
+                    out.write((int)(acc>>>n));
+                }
+            }
+            if(n>0) // pad with 1s
+                out.write((int)((acc<<(8-n)) | (0xff>>>n)));
+        }
+    }
+
+}
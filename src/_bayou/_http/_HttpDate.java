@@ -36,7 +36,7 @@ public class _HttpDate
     // not sure what to do with pre-Gregorian dates. we use Julia here.
     //     the day before [October 15, 1582] is [October 4, 1582]
 
-    // 170ns @2.5GHz
+    // 170ns @2.5GHz with GregorianCalendar; much less with the arithmetic in format()
     public static String toHttpDate(Instant instant) // rfc1123 date
     {
         if(instant.isBefore(minDate))
@@ -46,7 +46,52 @@ public class _HttpDate
         long ms = instant.toEpochMilli(); // will not overflow
         return format(ms, templateA);
     }
+    // start of Gregorian calendar, Fri, 15 Oct 1582 00:00:00 GMT. GregorianCalendar uses Julian dates before that.
+    static final long gregorianCutover = -12_219_292_800_000L;
+
     static private String format(long millis, char[] template)
+    {
+        if(millis<gregorianCutover)
+            return formatCal(millis, template);
+
+        long secs = Math.floorDiv(millis, 1000);
+        long days = Math.floorDiv(secs, 86400);
+        int sod = (int)(secs - days*86400);  // second of day
+
+        // civil date from days since 1970-01-01. (H. Hinnant, "chrono-Compatible Low-Level Date Algorithms")
+        long z = days + 719468;
+        long era = Math.floorDiv(z, 146097);
+        int doe = (int)(z - era*146097);                            // [0, 146096]
+        int yoe = (doe - doe/1460 + doe/36524 - doe/146096) / 365;  // [0, 399]
+        int doy = doe - (365*yoe + yoe/4 - yoe/100);                // [0, 365]
+        int mp = (5*doy + 2)/153;                                   // [0, 11], starting from March
+        int dom = doy - (153*mp+2)/5 + 1;                           // [1, 31]
+        int month = mp<10 ? mp+2 : mp-10;                           // [0, 11], starting from January
+        int year = (int)(yoe + era*400) + (month<2 ? 1 : 0);
+
+        int dow = (int)Math.floorMod(days+4, 7L);  // 1970-01-01 is Thursday. 0 is Sunday
+
+        // Fri, 23 Mar 2012 17:21:57 GMT
+        char[] chars = template.clone();
+
+        char[] day = DAYS[dow+1];
+        chars[0]=day[0];chars[1]=day[1];chars[2]=day[2];
+
+        i2c(chars, 6, dom);
+
+        char[] mon = MONTHS[month];
+        chars[8]=mon[0];chars[9]=mon[1];chars[10]=mon[2];
+
+        // caller guarantees that year is 1-9999.
+        i2c(chars, 15, year);
+
+        i2c(chars, 18, sod/3600);
+        i2c(chars, 21, sod/60%60);
+        i2c(chars, 24, sod%60);
+
+        return new String(chars);
+    }
+    static private String formatCal(long millis, char[] template)
     {
         GregorianCalendar cal = getLocalCal();
         cal.setTimeInMillis(millis);
@@ -290,5 +290,80 @@ public class _HttpUtil
         }
     }
 
+    // for request header TE or Accept-Encoding
+    // codings:  1#( token [ ";" "q" "=" qvalue ] )
+    //           (actually, more complicated than that for "transfer-extension", which we don't support)
+    // example:  deflate, gzip;q=1.0, compress;q=0.5, *;q=0
+    // return the q value of `coding`; [0] if absent or q=0; negative if parse error
+    public static float acceptEncodingQ(String codings, String coding)
+    {
+        if(codings==null)
+            return 0.0f;
+
+        final int N = codings.length();
+        int i=0; // i<=N
+        while(true)
+        {
+            // this element:  token [ ;q=qvalue ]
+            i = _StrUtil.skipWhiteSpaces(codings, i);
+            if(i==N)
+                return -1.0f;
+            // match token and coding
+            boolean match=false;
+            final int J = coding.length();
+            int j=0;  // j<=J
+            for( ; i<N; i++)
+            {
+                char ch = codings.charAt(i);
+                assert ch<=0xff;
+                if(!_CharDef.check(ch, _CharDef.Http.tokenChars)) // token ends. most likely ch is , ; SP
+                {
+                    match = (j==J);
+                    break;
+                }
+
+                if(j==J)
+                    break;
+                char ch2 = coding.charAt(j);
+                if(!_StrUtil.sameCharIgnoreCase(ch, ch2))
+                    break;
+                j++;
+            }
+            if(i==N) // end of entire field
+                return (j==J)? 1.0f : 0.0f ;
+            int iComma = codings.indexOf(',', i);
+            if(!match) // skip to next element
+            {
+                if(iComma==-1)  // no next element
+                    return 0.0f;
+                i = iComma+1;
+                continue;
+            }
+
+            // coding matched. we need to see if q=0. that's very rare.
+            // usually no q at all. usually token is immediately followed by comma: "... gzip, ..."
+            float q = qValue(codings, i, (iComma==-1) ? N : iComma ) ;
+            return  (q>=0.0f) ? q : -1.0f;
+        }
+    }
+    // range str[start,end) is in form [;q=v]. if empty(or all white), it's same as ;q=1.
+    // normally return 0 or positive; if malformed return negative
+    static float qValue(String str, int start, int end)
+    {
+        if(start==end) // very very common
+            return 1.0f;
+
+        int iEQ = str.indexOf('=', start);
+        if(iEQ==-1 || iEQ>=end)  // no = in range. assume range is empty. (could be malformed in fact)
+            return 1.0f;
+
+        // there is a = sign in range. assume range is ;q=v (which we don't really check)
+        // q value is rare in the header. the following code is usually not reached in practice.
+        String v = str.substring(iEQ+1,end);  // trim will be done inside parseFloat()
+        try
+        {   return Float.parseFloat(v);   }  // if negative, v is malformed.
+        catch(NumberFormatException e)
+        {   return -1.0f;   }
+    }
 
 }
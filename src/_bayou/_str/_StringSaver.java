@@ -2,6 +2,7 @@ package _bayou._str;
 
 import _bayou._tmp._Array2ReadOnlyList;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -38,6 +39,22 @@ public class _StringSaver
         return this;
     }
 
+    public int charCount()
+    {
+        return charCount;
+    }
+
+    // bb must have room for charCount() bytes
+    public void toLatin1Bytes(ByteBuffer bb)
+    {
+        for(int x=0; x<arrayX; x++)
+        {
+            String str = array[x];
+            for (int i = 0; i < str.length(); i++)
+                bb.put((byte) str.charAt(i));
+        }
+    }
+
     public byte[] toLatin1Bytes()
     {
         byte[] bytes = new byte[charCount];
@@ -0,0 +1,10 @@
+package _bayou._tmp;
+
+// a scheduled action that can be cancelled. see _Exec.alarm()
+public interface _Alarm
+{
+    // can be called on any thread. ok if the action has already run.
+    // after cancel(), the action may still run if it's racing with the cancellation;
+    // action should be harmless in that case.
+    void cancel();
+}
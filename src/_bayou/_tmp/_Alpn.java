@@ -0,0 +1,83 @@
+package _bayou._tmp;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import java.lang.reflect.Method;
+
+// TLS ALPN (RFC 7301), through reflection; the methods are in Java 9+ (and backported to 8u252+),
+// but we compile against Java 8 API.
+// if ALPN is not supported by the JDK, protocols are not offered, and getProtocol() returns null.
+public class _Alpn
+{
+    // implemented by a TcpConnection over TLS
+    public interface Conn
+    {
+        // the protocol negotiated during handshake; null if none.
+        String getApplicationProtocol();
+    }
+
+    static final Method setApplicationProtocols = method(SSLParameters.class, "setApplicationProtocols", String[].class);
+    static final Method getApplicationProtocol = method(SSLEngine.class, "getApplicationProtocol");
+
+    static Method method(Class<?> clazz, String name, Class<?>... paramTypes)
+    {
+        try
+        {
+            return clazz.getMethod(name, paramTypes);
+        }
+        catch (Exception e)
+        {
+            return null;
+        }
+    }
+
+    public static boolean isSupported()
+    {
+        return setApplicationProtocols!=null && getApplicationProtocol!=null;
+    }
+
+    // offer protocols, in order of preference. call before handshake.
+    public static void setProtocols(SSLEngine engine, String... protocols)
+    {
+        if(!isSupported())
+            return;
+
+        SSLParameters params = engine.getSSLParameters();
+        try
+        {
+            setApplicationProtocols.invoke(params, (Object)protocols);
+        }
+        catch (Exception e)
+        {
+            throw new AssertionError(e);
+        }
+        engine.setSSLParameters(params);
+    }
+
+    // call after handshake. null if no protocol is negotiated.
+    public static String getProtocol(SSLEngine engine)
+    {
+        if(!isSupported())
+            return null;
+
+        String protocol;
+        try
+        {
+            protocol = (String)getApplicationProtocol.invoke(engine);
+        }
+        catch (Exception e)
+        {
+            throw new AssertionError(e);
+        }
+        return (protocol==null || protocol.isEmpty())? null : protocol;
+    }
+
+    // null if conn is not Conn, or no protocol is negotiated.
+    public static String getProtocol(Object conn)
+    {
+        if(!(conn instanceof Conn))
+            return null;
+        return ((Conn)conn).getApplicationProtocol();
+    }
+
+}
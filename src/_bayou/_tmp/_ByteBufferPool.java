@@ -1,6 +1,9 @@
 package _bayou._tmp;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 
 // expiration based pool for ByteBuffer. reason for pool:
@@ -50,6 +53,14 @@ import java.util.concurrent.ConcurrentHashMap;
 // performance @2.5Hz, checkOut+checkIn
 //    local: 10ns
 //    shared:  uncontended: 150ns, contended(2): 520ns
+
+// UPDATE: the central pool is now sharded by selector thread. on a server, almost all buffers are
+// checked out and checked in by selector threads, and the load is spread evenly among them by design.
+// each selector thread (a ShardHost) gets its own shard with its own lock, which is practically uncontended.
+// other threads use the central shard.
+// to avoid the hoarding problem described above, a thread whose shard is empty steals from the central shard,
+// then from other shards, before allocating a new buffer. expiration is done per shard.
+// when a host thread exits, its shard is merged into the central shard.
 public class _ByteBufferPool
 {
     static final long defaultExpiration = Long.getLong(_ByteBufferPool.class.getName()+
@@ -58,7 +69,10 @@ public class _ByteBufferPool
     static final boolean defaultDoLocalCache = _Util.booleanProp(true,
         _ByteBufferPool.class.getName()+".defaultDoLocalCache");
 
-    final Object lock(){ return this; }
+    // max number of host shards. if there are more host threads, the extra ones use the central shard.
+    static final int maxShards = Integer.getInteger(_ByteBufferPool.class.getName()+
+            ".maxShards", 2*Runtime.getRuntime().availableProcessors()).intValue();
+
     // when `this` becomes garbage, localCache becomes garbage, and all of
     // its local entries on all threads become garbage too.
     final ThreadLocal<ByteBuffer> localCache;
@@ -67,8 +81,8 @@ public class _ByteBufferPool
     final boolean allocateDirect;
     final long expiration;
 
-    Entry oldest, newest; // double linked list
-    // todo: why linked list? just use ArrayDeque
+    // shards[0] is the central shard; shards[i] for the host thread with shard id i.
+    final Shard[] shards;
 
     public _ByteBufferPool(int bufferCapacity, boolean allocateDirect, long expiration, boolean doLocalCache)
     {
@@ -77,6 +91,10 @@ public class _ByteBufferPool
         this.expiration = expiration;
 
         this.localCache = doLocalCache? new ThreadLocal<ByteBuffer>() : null;
+
+        this.shards = new Shard[1+maxShards];
+        for(int i=0; i<shards.length; i++)
+            shards[i] = new Shard();
     }
     public _ByteBufferPool(int bufferCapacity)
     {
@@ -97,6 +115,20 @@ public class _ByteBufferPool
         return poolB!=null? poolB : poolA;
     }
 
+    // pools of heap buffers. for buffers that may be handed off to other code, which won't check them in.
+    // (a direct buffer must not be lost like that, particularly one from _DirectArena)
+    static final ConcurrentHashMap<Integer, _ByteBufferPool> cachedHeapPools = new ConcurrentHashMap<>();
+    public static _ByteBufferPool heapForCapacity(int bufferCapacity)
+    {
+        _ByteBufferPool pool = cachedHeapPools.get(bufferCapacity);
+        if(pool!=null)
+            return pool;
+
+        _ByteBufferPool poolA = new _ByteBufferPool(bufferCapacity, false, defaultExpiration, defaultDoLocalCache);
+        _ByteBufferPool poolB = cachedHeapPools.putIfAbsent(bufferCapacity, poolA);
+        return poolB!=null? poolB : poolA;
+    }
+
 
     public int getBufferCapacity()
     {
@@ -159,6 +191,71 @@ public class _ByteBufferPool
         checkIn2(bb);
     }
 
+    // implemented by threads that own a shard in every pool, e.g. selector threads.
+    public interface ShardHost
+    {
+        int getBufferPoolShardId(); // from allocShardId(). 0 if none
+    }
+
+    static final BitSet shardIds = new BitSet(); // guarded by itself
+
+    // returns 0 if all shard ids are in use; the thread then uses the central shard.
+    public static int allocShardId()
+    {
+        synchronized (shardIds)
+        {
+            int id = shardIds.nextClearBit(1);
+            if(id>maxShards)
+                return 0;
+            shardIds.set(id);
+            return id;
+        }
+    }
+
+    // the host thread is exiting; no more checkOut/checkIn with this id.
+    // buffers in the shard are merged into the central shard of each pool.
+    public static void freeShardId(int id)
+    {
+        if(id==0)
+            return;
+        for(_ByteBufferPool pool : cachedPools.values())
+            pool.mergeIntoCentral(id);
+        for(_ByteBufferPool pool : cachedHeapPools.values())
+            pool.mergeIntoCentral(id);
+        synchronized (shardIds)
+        {
+            shardIds.clear(id);
+        }
+    }
+
+    static int currShardId()
+    {
+        Thread thread = Thread.currentThread();
+        if(thread instanceof ShardHost)
+            return ((ShardHost)thread).getBufferPoolShardId();
+        return 0;
+    }
+
+    static class ShardFields
+    {
+        Entry oldest, newest; // double linked list
+        int size;
+
+        // stats
+        long checkOutCount;  // from this shard, incl. steals and allocs
+        long stealCount;     // from other shards
+        long allocCount;
+        long deallocCount;   // expired in this shard
+    }
+    // shards are allocated next to each other, and written by different threads (incl. the lock word).
+    // pad each one to its own cache lines. fields of a subclass are laid out after those of the superclass,
+    // so the padding separates these fields from the header (lock word) of the next object.
+    @SuppressWarnings("unused")
+    static final class Shard extends ShardFields
+    {
+        long p0, p1, p2, p3, p4, p5, p6, p7;
+    }
+
     static class Entry
     {
         Entry older;
@@ -175,28 +272,85 @@ public class _ByteBufferPool
 
     ByteBuffer checkOut2()throws OutOfMemoryError
     {
-        synchronized (lock())
+        int id = currShardId();
+        Shard shard = shards[id];
+        synchronized (shard)
         {
+            shard.checkOutCount++;
             // remove and return newest.
-            ByteBuffer bb = checkOut3();
+            ByteBuffer bb = checkOut3(shard);
+            if(bb!=null)
+                return bb;
+        }
+
+        // own shard is empty. steal from central, then from other shards, starting from the next one.
+        for(int i=0; i<shards.length; i++)
+        {
+            int j = i==0? 0 : (id+i)%shards.length;
+            if(j==id)
+                continue;
+            Shard victim = shards[j];
+            if(victim.newest==null) // unsynchronized peek; ok if it's stale.
+                continue;
+
+            ByteBuffer bb;
+            synchronized (victim)
+            {
+                // take the oldest; the newest ones are likely to be reused soon by the victim's thread.
+                bb = removeOldest(victim);
+            }
             if(bb!=null)
+            {
+                synchronized (shard)
+                {   shard.stealCount++;   }
                 return bb;
+            }
         }
 
+        synchronized (shard)
+        {   shard.allocCount++;   }
+
         return alloc(bufferCapacity, allocateDirect);  // outside lock{}
     }
     void checkIn2(ByteBuffer bb)
     {
         Entry entry = new Entry(bb, System.currentTimeMillis());
 
+        Shard shard = shards[currShardId()];
         Entry e2;
-        synchronized (lock())
+        synchronized (shard)
         {
             // install entry as the new newest.
             // return the youngest end of expired chain
-            e2 = checkIn3(entry);
+            e2 = checkIn3(shard, entry);
         }
 
+        dealloc(e2);
+
+        if(entry.time>=nextSweepTime)
+            sweep(entry.time);
+    }
+
+    // expiration is done on check-in to a shard; a shard that sees no check-ins (e.g. its thread is idle)
+    // would keep its buffers forever. so every once in a while, any check-in sweeps all shards.
+    volatile long nextSweepTime;
+    void sweep(long now)
+    {
+        nextSweepTime = now + Math.max(1000L, expiration/4); // benign race; concurrent sweeps are harmless.
+        for(Shard shard : shards)
+        {
+            if(shard.oldest==null) // unsynchronized peek; ok if it's stale.
+                continue;
+            Entry e2;
+            synchronized (shard)
+            {
+                e2 = shard.oldest==null? null : severExpired(shard, now - expiration);
+            }
+            dealloc(e2);
+        }
+    }
+    static void dealloc(Entry e2)
+    {
         while(e2!=null)
         {
             // dealloc() is very dangerous and must be used correctly.
@@ -206,32 +360,54 @@ public class _ByteBufferPool
         }
     }
 
-    ByteBuffer checkOut3()throws OutOfMemoryError
+    ByteBuffer checkOut3(Shard shard)throws OutOfMemoryError
     {
-        Entry n = newest;
+        Entry n = shard.newest;
         if(n==null)
             return null;
         Entry n2 = n.older;
         if(n2==null)
         {
-            newest=null;
-            oldest=null;
+            shard.newest=null;
+            shard.oldest=null;
         }
         else
         {
             n.older = null; // help GC?
             n2.newer = null;
-            newest = n2;
+            shard.newest = n2;
         }
+        shard.size--;
         return n.bb;
     }
-    Entry checkIn3(Entry entry)
+    static ByteBuffer removeOldest(Shard shard)
+    {
+        Entry o = shard.oldest;
+        if(o==null)
+            return null;
+        Entry o2 = o.newer;
+        if(o2==null)
+        {
+            shard.newest=null;
+            shard.oldest=null;
+        }
+        else
+        {
+            o.newer = null;
+            o2.older = null;
+            shard.oldest = o2;
+        }
+        shard.size--;
+        return o.bb;
+    }
+    Entry checkIn3(Shard shard, Entry entry)
     {
-        Entry n = newest;
+        shard.size++;
+        Entry n = shard.newest;
         if(n==null) // could be quite common
         {
-            newest = entry;
-            oldest = entry;
+            shard.newest = entry;
+            shard.oldest = entry;
             // only one entry, just checked in, it shouldn't be expired
             return null;
         }
@@ -239,40 +415,141 @@ public class _ByteBufferPool
         {
             n.newer = entry;
             entry.older = n;
-            newest = entry;
-            return severExpired(entry.time - expiration);
+            shard.newest = entry;
+            return severExpired(shard, entry.time - expiration);
         }
     }
     // note: we could be removing expired items while the load is increasing. likelihood should be low.
-    Entry severExpired(long minTime)
+    static Entry severExpired(Shard shard, long minTime)
     {
-        // caller ensured at least two entries in pool
-        Entry e1 = oldest; // not null.
+        // caller ensured at least one entry in pool
+        Entry e1 = shard.oldest; // not null.
         if(!(e1.time<minTime)) // fast path. non expired. very common?
             return null;
 
         // starting from the oldest end, find the first entry that's not expired.
+        int n=0;
         while(e1!=null && e1.time<minTime)
+        {
             e1 = e1.newer;
+            n++;
+        }
+        shard.size -= n;
+        shard.deallocCount += n;
 
-        if(e1==null) // all expired, incl the newest one, due to clock precision. practically impossible.
+        if(e1==null) // all expired, incl the newest one. possible in sweep(); otherwise due to clock precision.
         {
-            Entry e2 = newest;
-            oldest=null;
-            newest=null;
+            Entry e2 = shard.newest;
+            shard.oldest=null;
+            shard.newest=null;
             return e2;
         }
 
         // e1 != oldest (see fast path)
         Entry e2 = e1.older; // not null. the youngest expired
-        oldest=e1;
+        shard.oldest=e1;
         e1.older=null;
         e2.newer=null;
         return e2;
     }
 
+    // move all entries of a shard to the central shard. entries are not re-ordered by time;
+    // the central shard's expiration may be delayed for some of them, which is fine.
+    void mergeIntoCentral(int id)
+    {
+        Shard shard = shards[id];
+        Entry o, n;
+        int size;
+        synchronized (shard)
+        {
+            o = shard.oldest;
+            n = shard.newest;
+            size = shard.size;
+            shard.oldest = shard.newest = null;
+            shard.size = 0;
+        }
+        if(o==null)
+            return;
+
+        Shard central = shards[0];
+        synchronized (central)
+        {
+            // put the chain on the older end of central
+            if(central.oldest==null)
+                central.newest = n;
+            else
+            {
+                central.oldest.older = n;
+                n.newer = central.oldest;
+            }
+            central.oldest = o;
+            central.size += size;
+        }
+    }
+
+    // stats ----------------------------------------------------------------------------------------------
+
+    public static class Stats
+    {
+        public final int bufferCapacity;
+        public int shards;        // shards that have been used
+        public int pooled;        // buffers currently in the pool
+        public long checkOuts;
+        public long steals;       // checkouts served by other shards
+        public long allocs;
+        public long deallocs;     // expired
+
+        public final boolean direct;
+
+        Stats(int bufferCapacity, boolean direct)
+        {
+            this.bufferCapacity = bufferCapacity;
+            this.direct = direct;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("ByteBufferPool[cap=%d%s] shards=%d pooled=%d out=%d steal=%d alloc=%d dealloc=%d",
+                bufferCapacity, direct?"":",heap", shards, pooled, checkOuts, steals, allocs, deallocs);
+        }
+    }
+
+    // check outs from thread local cache are not included.
+    public Stats getStats()
+    {
+        Stats stats = new Stats(bufferCapacity, allocateDirect);
+        for(Shard shard : shards)
+        {
+            synchronized (shard)
+            {
+                if(shard.checkOutCount==0 && shard.size==0)
+                    continue;
+                stats.shards++;
+                stats.pooled += shard.size;
+                stats.checkOuts += shard.checkOutCount;
+                stats.steals += shard.stealCount;
+                stats.allocs += shard.allocCount;
+                stats.deallocs += shard.deallocCount;
+            }
+        }
+        return stats;
+    }
+
+    public static List<Stats> getAllStats()
+    {
+        ArrayList<Stats> list = new ArrayList<>();
+        for(_ByteBufferPool pool : cachedPools.values())
+            list.add(pool.getStats());
+        for(_ByteBufferPool pool : cachedHeapPools.values())
+            list.add(pool.getStats());
+        return list;
+    }
+
     static ByteBuffer alloc(int capacity, boolean allocateDirect) throws OutOfMemoryError
     {
+        if(allocateDirect && _DirectArena.enabled)
+            return _DirectArena.allocate(capacity); // throws BudgetExceededException
         if(allocateDirect)
             return ByteBuffer.allocateDirect(capacity);
         else
@@ -302,6 +579,8 @@ public class _ByteBufferPool
             {
                 System.out.printf("ByteBufferPool stat: out=%d in=%d diff=%d %n",
                         checkOutCount, checkInCount, checkOutCount - checkInCount);
+                for(Stats stats : getAllStats())
+                    System.out.printf("    %s%n", stats);
                 nextStatDumpTime = now + dumpStatInterval;
             }
         }
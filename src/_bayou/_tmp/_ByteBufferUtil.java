@@ -100,9 +100,11 @@ public class _ByteBufferUtil
 
     // WARN: very dangerous. used internally by trusted code. don't expose this util to end user.
     //       after dealloc(bb), bb MUST NOT be used. it should be imm de-referenced. otherwise, chaos!
-    // currently only support java.nio.DirectByteBuffer.
+    // currently only support java.nio.DirectByteBuffer, and slices from _DirectArena.
     public static void dealloc(ByteBuffer bb)
     {
+        if(_DirectArena.free(bb))
+            return;
         Dealloc.dealloc(bb);
     }
 
@@ -0,0 +1,114 @@
+package _bayou._tmp;
+
+import _bayou._log._Logger;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// pin the current thread to a cpu, without native code.
+// Linux only: find the thread id through /proc/thread-self, then run `taskset -p -c <cpu> <tid>`.
+// on other systems, or if anything fails, pin() returns false and the thread is not pinned.
+public class _CpuAffinity
+{
+    static final _Logger logger = _Logger.of(_CpuAffinity.class);
+
+    // cpus that this process is allowed to run on, from /proc/self/status. null if unknown.
+    static final int[] allowedCpus = readAllowedCpus();
+
+    static int[] readAllowedCpus()
+    {
+        try
+        {
+            Path status = Paths.get("/proc/self/status");
+            if(!Files.exists(status))
+                return null;
+            for(String line : Files.readAllLines(status))
+            {
+                if(line.startsWith("Cpus_allowed_list:"))
+                    return parseCpuList(line.substring("Cpus_allowed_list:".length()).trim());
+            }
+            return null;
+        }
+        catch (Exception e)
+        {
+            return null;
+        }
+    }
+
+    // "0-3,8,10-11"
+    static int[] parseCpuList(String s)
+    {
+        ArrayList<Integer> list = new ArrayList<>();
+        for(String part : s.split(","))
+        {
+            part = part.trim();
+            if(part.isEmpty())
+                continue;
+            int dash = part.indexOf('-');
+            int lo = Integer.parseInt(dash<0? part : part.substring(0, dash));
+            int hi = dash<0? lo : Integer.parseInt(part.substring(dash+1));
+            for(int i=lo; i<=hi; i++)
+                list.add(i);
+        }
+        if(list.isEmpty())
+            return null;
+        int[] cpus = new int[list.size()];
+        for(int i=0; i<cpus.length; i++)
+            cpus[i] = list.get(i);
+        return cpus;
+    }
+
+    public static List<Integer> getAllowedCpus()
+    {
+        ArrayList<Integer> list = new ArrayList<>();
+        if(allowedCpus!=null)
+            for(int cpu : allowedCpus)
+                list.add(cpu);
+        return list;
+    }
+
+    // the n-th allowed cpu, wrapping around. -1 if unknown
+    public static int cpuForIndex(int n)
+    {
+        if(allowedCpus==null)
+            return -1;
+        return allowedCpus[Math.floorMod(n, allowedCpus.length)];
+    }
+
+    // pin the current thread. it's a blocking call (runs a process), do it once when the thread starts.
+    public static boolean pin(int cpu)
+    {
+        if(cpu<0 || allowedCpus==null)
+            return false;
+        try
+        {
+            // "<pid>/task/<tid>"
+            Path link = Files.readSymbolicLink(Paths.get("/proc/thread-self"));
+            String tid = link.getFileName().toString();
+
+            Process process = new ProcessBuilder("taskset", "-p", "-c", Integer.toString(cpu), tid)
+                .redirectErrorStream(true)
+                .start();
+            process.getOutputStream().close();
+            while(process.getInputStream().read()!=-1) continue; // drain
+            if(!process.waitFor(10, TimeUnit.SECONDS))
+            {
+                process.destroy();
+                throw new Exception("taskset timeout");
+            }
+            if(process.exitValue()!=0)
+                throw new Exception("taskset exit value "+process.exitValue());
+            return true;
+        }
+        catch (Exception e)
+        {
+            logger.info("Unable to pin thread %s to cpu %s: %s", Thread.currentThread().getName(), cpu, e);
+            return false;
+        }
+    }
+
+}
@@ -0,0 +1,306 @@
+package _bayou._tmp;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+
+// slab allocator for direct ByteBuffers, with a global budget.
+// a slab is a big direct buffer; buffers handed out are slices of slabs.
+// fewer native allocations, fewer Cleaners, less fragmentation; and the total is capped by the budget.
+//
+// disabled by default. enable by sys prop _bayou._tmp._DirectArena.enable=true.
+// budget by sys prop _bayou._tmp._DirectArena.maxBytes (default: unlimited)
+//
+// there are 2 kinds of slabs:
+//
+// 1. pool slabs, for allocate()/free(). used by _ByteBufferPool.
+//    a pool slab is carved into slices of the same size. slices are freed explicitly;
+//    when all slices of a slab are free, and there's another slab with free slices of the same size,
+//    the slab is released.
+//
+// 2. bump slabs, for allocateBump(). used by ByteSourceCache, which doesn't free buffers explicitly.
+//    slices are carved sequentially, of arbitrary sizes. a slab is released when it's garbage collected,
+//    which happens after all slices (and their duplicates, which reference the slab) are unreachable.
+//
+// a request for a buffer bigger than slab size gets a dedicated slab of its own size, so that
+// every direct buffer handed out by the arena is counted in the budget.
+//
+// when the budget is exceeded:
+//    allocate() throws BudgetExceededException. it's a RuntimeException, so that it can pass through
+//        _ByteBufferPool.checkOut() to connection read()/write() methods, whose callers treat any Exception
+//        as an error of that connection and close it; the selector thread and other connections are unaffected.
+//        callers that have a cheaper way out (e.g. a heap buffer instead) catch it and shed.
+//        refusals are counted, see getOverBudgetCount().
+//    allocateBump() throws OutOfMemoryError; ByteSourceCache handles it as cache failure.
+public class _DirectArena
+{
+    public static final boolean enabled = _Util.booleanProp(false, _DirectArena.class.getName()+".enable");
+
+    static final long maxBytes = Long.getLong(_DirectArena.class.getName()+
+            ".maxBytes", Long.MAX_VALUE).longValue();
+
+    static final int slabSize = Integer.getInteger(_DirectArena.class.getName()+
+            ".slabSize", 1024*1024).intValue();
+
+    static final Object lock = new Object();
+
+    // all guarded by lock ----
+
+    static long slabBytes;   // total bytes of live slabs
+    static int slabCount;
+    static long bytesInUse;  // slices handed out, not freed
+    static long overBudgetCount; // allocate() requests refused due to budget
+
+    static final HashMap<Integer, SizeClass> sizeClasses = new HashMap<>();
+    static final IdentityHashMap<ByteBuffer, Slab> sliceOwners = new IdentityHashMap<>(); // pool slices only
+
+    static Slab bumpSlab;    // current bump slab; null if none
+    static final ReferenceQueue<ByteBuffer> collectedBumpSlabs = new ReferenceQueue<>();
+    static final ArrayList<BumpRef> bumpRefs = new ArrayList<>(); // keep refs reachable
+    // -------------------
+
+    static class SizeClass
+    {
+        final int sliceSize;
+        final ArrayList<Slab> slabsWithFree = new ArrayList<>();
+
+        SizeClass(int sliceSize)
+        {
+            this.sliceSize = sliceSize;
+        }
+    }
+
+    static class Slab
+    {
+        final ByteBuffer bb;
+        final int sliceCount;
+        final ArrayDeque<ByteBuffer> freeSlices; // pool slab only
+        int bumpPos;                             // bump slab only
+
+        Slab(ByteBuffer bb, int sliceCount)
+        {
+            this.bb = bb;
+            this.sliceCount = sliceCount;
+            this.freeSlices = sliceCount>0? new ArrayDeque<>(sliceCount) : null;
+        }
+    }
+
+    static class BumpRef extends PhantomReference<ByteBuffer>
+    {
+        final int capacity;
+        BumpRef(ByteBuffer slab)
+        {
+            super(slab, collectedBumpSlabs);
+            this.capacity = slab.capacity();
+        }
+    }
+
+    public static class BudgetExceededException extends RuntimeException
+    {
+        public BudgetExceededException(String message)
+        {
+            super(message);
+        }
+    }
+
+    // throw BudgetExceededException if the budget is exceeded.
+    public static ByteBuffer allocate(int size) throws BudgetExceededException
+    {
+        synchronized (lock)
+        {
+            SizeClass sc = sizeClasses.get(size);
+            if(sc==null)
+                sizeClasses.put(size, sc=new SizeClass(size));
+
+            if(sc.slabsWithFree.isEmpty())
+            {
+                Slab newSlab = newPoolSlab(size);
+                if(newSlab==null)
+                {
+                    overBudgetCount++;
+                    throw new BudgetExceededException("_DirectArena budget exceeded: maxBytes="+maxBytes+", in use="+slabBytes);
+                }
+                sc.slabsWithFree.add(newSlab);
+            }
+
+            ArrayList<Slab> list = sc.slabsWithFree;
+            Slab slab = list.get(list.size()-1); // the most recently used slab
+            ByteBuffer slice = slab.freeSlices.pollLast();
+            if(slab.freeSlices.isEmpty())
+                list.remove(list.size()-1);
+
+            bytesInUse += size;
+            return slice;
+        }
+    }
+
+    // return false if bb is not allocated by allocate().
+    // after free(bb), bb must not be used.
+    public static boolean free(ByteBuffer bb)
+    {
+        if(!enabled || !bb.isDirect())
+            return false;
+
+        synchronized (lock)
+        {
+            Slab slab = sliceOwners.get(bb);
+            if(slab==null)
+                return false;
+
+            int size = bb.capacity();
+            bytesInUse -= size;
+            bb.clear();
+            slab.freeSlices.addLast(bb);
+
+            SizeClass sc = sizeClasses.get(size);
+            if(slab.freeSlices.size()==1)
+                sc.slabsWithFree.add(0, slab); // least preferred for allocation; it's mostly in use
+            if(slab.freeSlices.size()==slab.sliceCount && sc.slabsWithFree.size()>1)
+                releasePoolSlab(sc, slab);
+            return true;
+        }
+    }
+
+    // return null if budget exceeded
+    static Slab newPoolSlab(int sliceSize)
+    {
+        int n = Math.max(1, slabSize/sliceSize); // 1 if slice is bigger than slab size
+        expungeCollected();
+        if(slabBytes+n*sliceSize > maxBytes)
+            return null;
+        ByteBuffer bb = newSlab(n*sliceSize);
+        Slab slab = new Slab(bb, n);
+        for(int i=0; i<n; i++)
+        {
+            bb.limit((i+1)*sliceSize).position(i*sliceSize);
+            ByteBuffer slice = bb.slice();
+            slab.freeSlices.addLast(slice);
+            sliceOwners.put(slice, slab);
+        }
+        bb.clear();
+        return slab;
+    }
+
+    static void releasePoolSlab(SizeClass sc, Slab slab)
+    {
+        sc.slabsWithFree.remove(slab);
+        for(ByteBuffer slice : slab.freeSlices)
+            sliceOwners.remove(slice);
+        slab.freeSlices.clear();
+
+        slabBytes -= slab.bb.capacity();
+        slabCount--;
+        // all slices were freed, nobody is using the slab.
+        _ByteBufferUtil.dealloc(slab.bb);
+    }
+
+    // for buffers that are never freed explicitly. the buffer is reclaimed after it becomes garbage.
+    public static ByteBuffer allocateBump(int size) throws OutOfMemoryError
+    {
+        synchronized (lock)
+        {
+            if(size>slabSize) // dedicated slab; the current bump slab is kept.
+            {
+                ByteBuffer bb = newSlab(size); // throws
+                bumpRefs.add(new BumpRef(bb));
+                return bb.duplicate(); // like a slice, it references the slab
+            }
+
+            Slab slab = bumpSlab;
+            if(slab==null || slab.bb.capacity()-slab.bumpPos < size)
+            {
+                bumpSlab = null; // the rest of the old slab is wasted
+                ByteBuffer bb = newSlab(slabSize); // throws
+                bumpRefs.add(new BumpRef(bb));
+                bumpSlab = slab = new Slab(bb, 0);
+            }
+
+            ByteBuffer bb = slab.bb.duplicate();
+            bb.limit(slab.bumpPos+size).position(slab.bumpPos);
+            slab.bumpPos += size;
+            return bb.slice();
+        }
+    }
+
+    static ByteBuffer newSlab(int capacity) throws OutOfMemoryError
+    {
+        assert Thread.holdsLock(lock);
+
+        expungeCollected();
+        if(slabBytes+capacity > maxBytes)
+            throw new OutOfMemoryError("_DirectArena budget exceeded: maxBytes="+maxBytes+", in use="+slabBytes);
+
+        ByteBuffer bb = ByteBuffer.allocateDirect(capacity); // throws
+        slabBytes += capacity;
+        slabCount++;
+        return bb;
+    }
+
+    static void expungeCollected()
+    {
+        Reference<? extends ByteBuffer> ref;
+        while( (ref=collectedBumpSlabs.poll())!=null )
+        {
+            BumpRef bumpRef = (BumpRef)ref;
+            bumpRefs.remove(bumpRef); // linear. bump slabs are not many, and are collected rarely.
+            slabBytes -= bumpRef.capacity;
+            slabCount--;
+        }
+    }
+
+    // gauges ---------------------------------------------------------------------------------------
+    // bytes in use by bump slabs are not tracked individually; they're counted as in use
+    // until the slab is collected, except the un-carved part of the current bump slab.
+
+    public static long getBytesInUse()
+    {
+        synchronized (lock)
+        {
+            expungeCollected();
+            long bump = 0;
+            for(BumpRef ref : bumpRefs)
+                bump += ref.capacity;
+            if(bumpSlab!=null)
+                bump -= bumpSlab.bb.capacity() - bumpSlab.bumpPos;
+            return bytesInUse + bump;
+        }
+    }
+
+    public static long getBytesFree()
+    {
+        synchronized (lock)
+        {
+            expungeCollected();
+            return slabBytes - getBytesInUse();
+        }
+    }
+
+    public static int getSlabCount()
+    {
+        synchronized (lock)
+        {
+            expungeCollected();
+            return slabCount;
+        }
+    }
+
+    public static long getMaxBytes()
+    {
+        return maxBytes;
+    }
+
+    // number of allocate() requests refused because the budget was exceeded
+    public static long getOverBudgetCount()
+    {
+        synchronized (lock)
+        {
+            return overBudgetCount;
+        }
+    }
+
+}
@@ -95,6 +95,27 @@ public class _Exec
         return ExecScheduler.scheduler.schedule(action, nanos, TimeUnit.NANOSECONDS);
     }
 
+    // similar to execNbDelayed(), mainly for timeouts.
+    // if the current thread hosts a local timer (e.g. a selector thread), the alarm is scheduled there,
+    // and the action will be run on the current thread. otherwise the shared scheduler is used.
+    static public _Alarm alarm(Duration delay, final Runnable action)
+    {
+        Thread thread = Thread.currentThread();
+        if(thread instanceof _LocalTimer.Host)
+        {
+            _LocalTimer timer = ((_LocalTimer.Host)thread).getLocalTimer();
+            if(timer!=null)
+            {
+                _Alarm alarm = timer.schedule(delay, action);
+                if(alarm!=null)
+                    return alarm;
+            }
+        }
+
+        ScheduledFuture<?> future = execNbDelayed(delay, action);
+        return ()->future.cancel(false);
+    }
+
     // exec blocking ------------------------------------------------------------------------------
 
     // a system wide executor for blocking tasks, behaving similar to Executors.newCachedThreadPool().
@@ -0,0 +1,53 @@
+package _bayou._tmp;
+
+import java.nio.file.Path;
+
+// a region [position, limit) of a file. limit can be Long.MAX_VALUE, meaning till EOF.
+// a ByteSource implements Source if its bytes are a file region; a consumer can then transfer the bytes
+// to a socket by FileChannel.transferTo() (sendfile), instead of reading the source into buffers.
+public class _FileRegion
+{
+    public interface Source
+    {
+        // return null if not available, e.g. if the source has been read.
+        // if the region is transferred, the source is not read anymore; it's only closed.
+        _FileRegion getFileRegion();
+    }
+
+    // return null if `source` is not a file region
+    public static _FileRegion of(Object source)
+    {
+        if(source instanceof Source)
+            return ((Source)source).getFileRegion();
+        return null;
+    }
+
+    public final Path file;
+    public final long position;
+    public final long limit;
+
+    public _FileRegion(Path file, long position, long limit)
+    {
+        assert 0<=position && position<=limit;
+
+        this.file = file;
+        this.position = position;
+        this.limit = limit;
+    }
+
+    // sub region [min, max) relative to this region
+    public _FileRegion sub(long min, long max)
+    {
+        assert 0<=min && min<=max;
+
+        long p = Math.min(limit, addNoOverflow(position, min));
+        long q = Math.min(limit, addNoOverflow(position, max));
+        return new _FileRegion(file, p, q);
+    }
+
+    static long addNoOverflow(long x, long y)
+    {
+        long z = x + y;
+        return z<0? Long.MAX_VALUE : z;  // x,y>=0
+    }
+}
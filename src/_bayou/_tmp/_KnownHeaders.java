@@ -7,6 +7,8 @@ import bayou.mime.Headers;
 
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.HashMap;
 
 public class _KnownHeaders
@@ -16,6 +18,14 @@ public class _KnownHeaders
     static final HashMap<_StrCi,String> map2 = new HashMap<>(256);
     static final HashMap<_ByteArr,String> map3 = new HashMap<>(256);
 
+    // perfect hash of names in bytes, for parsers. a few sampled bytes of the name are hashed, see phKey().
+    // the multiplier is searched on class init, so that there's no collision among well-known names.
+    // lookup costs one multiply and one byte-wise compare; no key object, no hashing over all bytes.
+    static final int phBits = 11;
+    static final String[] phNames = new String[1<<phBits];
+    static final byte[][] phBytes = new byte[1<<phBits][];
+    static final long phMul;
+
     static
     {
         final int modPublicStaticFinal = Modifier.PUBLIC | Modifier.STATIC | Modifier.FINAL;
@@ -38,6 +48,50 @@ public class _KnownHeaders
             _ByteArr k3 = _ByteArr.of(s);
             map3.put(k3, s);
         }
+
+        phMul = phInit();
+    }
+
+    static long phKey(byte[] bb, int p0, int len)
+    {
+        // len>0
+        return len
+            | (0xffL & bb[p0])<<8
+            | (0xffL & bb[p0+(len>>1)])<<16
+            | (0xffL & bb[p0+len-1])<<24
+            | (0xffL & bb[p0+(len>>2)])<<32
+            | (0xffL & bb[p0+len-1-(len>>3)])<<40;
+    }
+    static int phSlot(long key, long mul)
+    {
+        return (int)( (key*mul) >>> (64-phBits) );
+    }
+
+    static long phInit()
+    {
+        byte[][] names = new byte[map0.size()][];
+        int n=0;
+        for(String s : map0.keySet())
+            names[n++] = s.getBytes(StandardCharsets.ISO_8859_1);
+
+        long mul = 0x9E3779B97F4A7C15L;
+        SEARCH: for(int tries=0; tries<100_000; tries++)
+        {
+            mul = mul*6364136223846793005L + 1442695040888963407L | 1L;  // next odd multiplier
+            Arrays.fill(phBytes, null);
+            for(byte[] name : names)
+            {
+                int slot = phSlot(phKey(name, 0, name.length), mul);
+                if(phBytes[slot]!=null)
+                    continue SEARCH;  // collision
+                phBytes[slot] = name;
+            }
+            for(int i=0; i<phBytes.length; i++)
+                if(phBytes[i]!=null)
+                    phNames[i] = map3.get(new _ByteArr(phBytes[i], 0, phBytes[i].length));
+            return mul;
+        }
+        throw new AssertionError("no perfect hash for known headers; sampled bytes are not distinct");
     }
     // look up a well-known header. chars may be in different cases.
     public static String lookup(char[] chars, int length)
@@ -58,5 +112,19 @@ public class _KnownHeaders
     {
         return map3.get(k3);
     }
+    // look up a well-known header, in bytes bb[p0, p0+len). case sensitive. return null if unknown.
+    public static String lookup(byte[] bb, int p0, int len)
+    {
+        if(len==0)
+            return null;
+        int slot = phSlot(phKey(bb, p0, len), phMul);
+        byte[] name = phBytes[slot];
+        if(name==null || name.length!=len)
+            return null;
+        for(int i=0; i<len; i++)
+            if(name[i]!=bb[p0+i])
+                return null;
+        return phNames[slot];
+    }
 
 }
@@ -0,0 +1,228 @@
+package _bayou._tmp;
+
+import _bayou._log._Logger;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+// a timer owned by an event loop thread (e.g. selector thread), replacing the shared scheduler for timeouts.
+// schedule() and expire() must be called on the owner thread; no locking is needed.
+// alarms can be cancelled on any thread.
+//
+// in most timeout(duration) calls, duration is one of several fixed values,
+// e.g. timeout(server.confKeepAliveTimeout). alarms of the same duration are created in FIFO order,
+// therefore they are naturally sorted by deadline. we keep one doubly linked queue per duration.
+// schedule and cancel are O(1); expire and nextDeadline only need to look at queue heads.
+//
+// if there are too many distinct durations, schedule() returns null; caller should fall back to the shared scheduler.
+//
+// cancel() on another thread only marks the alarm; the alarm stays in the queue until its deadline.
+// that is rare, since most async actions complete on the owner thread.
+public class _LocalTimer
+{
+    // implemented by threads that host a local timer
+    public interface Host
+    {
+        _LocalTimer getLocalTimer(); // may return null
+    }
+
+    static final _Logger logger = _Logger.of(_LocalTimer.class);
+
+    static final int maxQueues = Integer.getInteger(_LocalTimer.class.getName()+".maxQueues", 32).intValue();
+
+    final Thread owner;
+
+    final HashMap<Duration, Queue> queueMap = new HashMap<>();
+    final ArrayList<Queue> queueList = new ArrayList<>();
+    Queue lastQueue; // most recently used. usually successive calls are of the same duration.
+
+    int size; // number of alarms in queues
+
+    public _LocalTimer(Thread owner)
+    {
+        this.owner = owner;
+    }
+
+    public boolean isEmpty()
+    {
+        return size==0;
+    }
+
+    // owner thread only.
+    // returns null if the duration cannot be handled here.
+    public _Alarm schedule(Duration delay, Runnable action)
+    {
+        assert Thread.currentThread()==owner;
+
+        Queue queue = lastQueue;
+        if(queue==null || !queue.duration.equals(delay))
+        {
+            queue = queueMap.get(delay);
+            if(queue==null)
+            {
+                if(queueList.size()>=maxQueues)
+                    return null;
+                queue = new Queue(delay);
+                queueMap.put(delay, queue);
+                queueList.add(queue);
+            }
+            lastQueue = queue;
+        }
+
+        Alarm alarm = new Alarm(this, queue, System.nanoTime()+queue.nanos, action);
+        queue.addLast(alarm);
+        size++;
+        return alarm;
+    }
+
+    // owner thread only. Long.MAX_VALUE if there are no alarms.
+    // the result is in System.nanoTime() scale; may include alarms cancelled by other threads.
+    public long nextDeadline()
+    {
+        long min = Long.MAX_VALUE;
+        for(int i=0; i<queueList.size(); i++)
+        {
+            Alarm head = queueList.get(i).head;
+            if(head!=null && (min==Long.MAX_VALUE || head.deadline-min<0))
+                min = head.deadline;
+        }
+        return min;
+    }
+
+    // owner thread only. run actions that are due.
+    // an action may schedule new alarms; they won't be due in this round.
+    public void expire(long now)
+    {
+        for(int i=0; i<queueList.size(); i++)
+        {
+            Queue queue = queueList.get(i);
+            Alarm alarm;
+            while( (alarm=queue.head)!=null && alarm.deadline-now<=0 )
+            {
+                queue.remove(alarm);
+                size--;
+                Runnable action = alarm.action;
+                alarm.action = null;
+
+                if(alarm.cancelled_volatile)
+                    continue;
+                try
+                {
+                    action.run();
+                }
+                catch (RuntimeException e)
+                {
+                    _Util.logUnexpected(logger, e);
+                }
+            }
+        }
+    }
+
+    // owner thread only, when the owner is exiting.
+    // pending alarms are handed over to the shared scheduler.
+    public void transferToScheduler()
+    {
+        long now = System.nanoTime();
+        for(Queue queue : queueList)
+        {
+            Alarm alarm;
+            while( (alarm=queue.head)!=null )
+            {
+                queue.remove(alarm);
+                size--;
+                Runnable action = alarm.action;
+                alarm.action = null;
+
+                if(alarm.cancelled_volatile)
+                    continue;
+                Alarm _alarm = alarm;
+                _Exec.execNbDelayed(Duration.ofNanos(alarm.deadline-now), ()->
+                {
+                    if(!_alarm.cancelled_volatile)
+                        action.run();
+                });
+                // the scheduled future is not cancelled; cancel() only sets the flag.
+            }
+        }
+    }
+
+
+    static final class Queue
+    {
+        final Duration duration;
+        final long nanos;
+        Alarm head, tail;
+
+        Queue(Duration duration)
+        {
+            this.duration = duration;
+            this.nanos = duration.toNanos(); // fails if duration is more than 292 years
+        }
+
+        void addLast(Alarm alarm)
+        {
+            if(tail==null)
+                head = alarm;
+            else
+            {
+                tail.next = alarm;
+                alarm.prev = tail;
+            }
+            tail = alarm;
+        }
+
+        void remove(Alarm alarm)
+        {
+            if(alarm.prev==null)
+                head = alarm.next;
+            else
+                alarm.prev.next = alarm.next;
+
+            if(alarm.next==null)
+                tail = alarm.prev;
+            else
+                alarm.next.prev = alarm.prev;
+
+            alarm.prev = alarm.next = null;
+        }
+    }
+
+    static final class Alarm implements _Alarm
+    {
+        final _LocalTimer timer;
+        final Queue queue;
+        final long deadline;
+
+        // accessed only by owner thread
+        Runnable action; // null after removed from queue
+        Alarm prev, next;
+
+        volatile boolean cancelled_volatile;
+
+        Alarm(_LocalTimer timer, Queue queue, long deadline, Runnable action)
+        {
+            this.timer = timer;
+            this.queue = queue;
+            this.deadline = deadline;
+            this.action = action;
+        }
+
+        @Override
+        public void cancel()
+        {
+            if(Thread.currentThread()!=timer.owner)
+            {
+                cancelled_volatile = true; // removed later by owner thread
+                return;
+            }
+
+            if(action==null) // already removed
+                return;
+
+            queue.remove(this);
+            timer.size--;
+            action = null;
+        }
+    }
+}
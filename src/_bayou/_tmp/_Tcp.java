@@ -7,13 +7,25 @@ import bayou.ssl.SslConnection;
 import bayou.tcp.TcpChannel;
 import bayou.tcp.TcpConnection;
 
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
 import java.time.Duration;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Supplier;
 
 public class _Tcp
 {
+    // bytes of non-direct ByteBuffers copied to direct buffers by plain tcp connections before channel write.
+    // producers can avoid the copy by writing to direct buffers, see _TcpConnWriteBuffer.
+    public static final LongAdder writeCopiedBytes = new LongAdder();
+
+    public static long getWriteCopiedBytes()
+    {
+        return writeCopiedBytes.sum();
+    }
 
     public static int[] defaultSelectorIds()
     {
@@ -25,6 +37,27 @@ public class _Tcp
     }
 
 
+    // StandardSocketOptions.SO_REUSEPORT, since java 9. null if not available, or not supported on this OS.
+    @SuppressWarnings("unchecked")
+    public static SocketOption<Boolean> soReusePort()
+    {
+        try
+        {
+            SocketOption<Boolean> option = (SocketOption<Boolean>)
+                StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+            try(ServerSocketChannel test = ServerSocketChannel.open())
+            {
+                if(!test.supportedOptions().contains(option))
+                    return null;
+            }
+            return option;
+        }
+        catch (Exception e)
+        {
+            return null;
+        }
+    }
+
     public static void validate_confSelectorIds(int[] confSelectorIds) throws IllegalArgumentException
     {
         _Util.require(confSelectorIds.length>0, "confSelectorIds.length>0");
@@ -63,7 +96,15 @@ public class _Tcp
 
     static Async<Void> drain_then_close(TcpChannel channel, _ByteBufferPool bufferPool, Promise<Void> promise)
     {
-        ByteBuffer readBuffer = bufferPool.checkOut();
+        ByteBuffer readBuffer;
+        try
+        {
+            readBuffer = bufferPool.checkOut();
+        }
+        catch(_DirectArena.BudgetExceededException e) // no drain then
+        {
+            return done(channel, promise, null);
+        }
         try
         {
             while(true)
@@ -0,0 +1,17 @@
+package _bayou._tmp;
+
+import java.nio.channels.FileChannel;
+
+// implemented by a TcpConnection that can write file bytes directly to the socket by FileChannel.transferTo().
+// the bytes are not copied to user space. this is not possible for SSL connections.
+public interface _TcpConnTransfer
+{
+    // false if transferFrom() is not supported, e.g. the underlying channel is not a SocketChannel.
+    public boolean isTransferSupported();
+
+    // write file bytes [position, position+count) to the socket, without blocking.
+    // return the number of bytes written, which can be 0 if the socket is not writable.
+    // must be called only when there's no queued writes, i.e. getWriteQueueSize()==0.
+    public long transferFrom(FileChannel file, long position, long count) throws Exception;
+
+}
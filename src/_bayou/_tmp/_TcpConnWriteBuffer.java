@@ -0,0 +1,18 @@
+package _bayou._tmp;
+
+import java.nio.ByteBuffer;
+
+// implemented by a TcpConnection that lends direct buffers to producers of outbound bytes.
+// producer encodes bytes directly into the buffer, flips it, then queueWrite() it, as is.
+// the connection returns the buffer to its pool after it's fully written, or when the connection is closed.
+// this saves copying heap bytes to direct buffers (PlainTcpConnection.copyBuffer), e.g. for http response heads.
+//
+// the buffer must be queued by queueWrite() before next call of any method on the connection,
+// and it must not be touched by the producer afterwards.
+public interface _TcpConnWriteBuffer
+{
+    // return a cleared direct buffer with at least `minCapacity` bytes of room;
+    // return null if not available, producer should fall back to heap buffers.
+    public ByteBuffer checkOutWriteBuffer(int minCapacity);
+
+}
@@ -0,0 +1,17 @@
+package _bayou._tmp;
+
+// implemented by a thread that measures how busy it is, e.g. a selector thread.
+public interface _ThreadLoad
+{
+    // recent fraction of time that the thread is busy, 0.0-1.0
+    public float getLoad();
+
+    // load of the current thread; -1 if unknown.
+    public static float current()
+    {
+        Thread thread = Thread.currentThread();
+        if(thread instanceof _ThreadLoad)
+            return ((_ThreadLoad)thread).getLoad();
+        return -1.0f;
+    }
+}
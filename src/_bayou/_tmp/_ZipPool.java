@@ -0,0 +1,94 @@
+package _bayou._tmp;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// pool of Deflater/Inflater, in nowrap mode (raw deflate, as in gzip).
+// a new Deflater allocates big native buffers (~256K), freed by end(). with auto gzip, every response
+// would pay for that. instead, instances are reset and reused.
+// the pool is global and bounded. an instance can be released on any thread.
+public class _ZipPool
+{
+    // max number of idle instances, per Deflater level, and for Inflater. 0 to disable pooling.
+    static final int maxPooled = Integer.getInteger(_ZipPool.class.getName()+".maxPooled", 16).intValue();
+
+    static final class Pool<T>
+    {
+        final ConcurrentLinkedQueue<T> queue = new ConcurrentLinkedQueue<>();
+        final AtomicInteger size = new AtomicInteger(0); // approximately queue.size()
+
+        T poll()
+        {
+            T t = queue.poll();
+            if(t!=null)
+                size.decrementAndGet();
+            return t;
+        }
+
+        boolean offer(T t)
+        {
+            if(size.incrementAndGet()>maxPooled)
+            {
+                size.decrementAndGet();
+                return false;
+            }
+            queue.offer(t);
+            return true;
+        }
+    }
+
+    static final Pool<Deflater>[] deflaters = newDeflaterPools(); // for level 0-9
+    static final Pool<Inflater> inflaters = new Pool<>();
+
+    @SuppressWarnings("unchecked")
+    static Pool<Deflater>[] newDeflaterPools()
+    {
+        Pool<Deflater>[] pools = (Pool<Deflater>[])new Pool<?>[10];
+        for(int i=0; i<pools.length; i++)
+            pools[i] = new Pool<>();
+        return pools;
+    }
+
+    // level: 0-9, or Deflater.DEFAULT_COMPRESSION (not pooled)
+    public static Deflater deflater(int level)
+    {
+        Deflater deflater = null;
+        if(0<=level && level<=9)
+            deflater = deflaters[level].poll();
+        if(deflater==null)
+            deflater = new Deflater(level, true);
+        return deflater;
+    }
+
+    // `level` must be the same one that the deflater was obtained with.
+    // the deflater may be in any state, e.g. not finished. it must not be used after release.
+    public static void release(Deflater deflater, int level)
+    {
+        if(0<=level && level<=9)
+        {
+            deflater.reset();
+            if(deflaters[level].offer(deflater))
+                return;
+        }
+        deflater.end();
+    }
+
+    public static Inflater inflater()
+    {
+        Inflater inflater = inflaters.poll();
+        if(inflater==null)
+            inflater = new Inflater(true);
+        return inflater;
+    }
+
+    // the inflater may be in any state. it must not be used after release.
+    public static void release(Inflater inflater)
+    {
+        inflater.reset();
+        if(!inflaters.offer(inflater))
+            inflater.end();
+    }
+
+}
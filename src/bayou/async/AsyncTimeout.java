@@ -4,24 +4,23 @@ import _bayou._async._Asyncs;
 import _bayou._tmp._Exec;
 import bayou.util.Result;
 
+import _bayou._tmp._Alarm;
+
 import java.time.Duration;
-import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeoutException;
 import java.util.function.Consumer;
 import java.util.function.Supplier;
 
 // for impl Async.timeout()
 
-// Currently we use ScheduledThreadPoolExecutor for timeout.
-// We may be able to create a better tool.
 // In most timeout(duration) calls, duration is one of several fixed values.
 // For example, we call timeout(server.confKeepAliveTimeout) a lot.
-// We can have a very simple data structure for timeouts of the same duration.
 // Another fact: most promise completes way before timeout is reached,
-// for example, socket read/write timeout. we may optimize for that to save space/time.
+// for example, socket read/write timeout.
 //
-// Currently, ScheduledThreadPoolExecutor seems fine,
-// so we leave improvement for future versions.
+// On a selector thread, the alarm is scheduled in the thread's _LocalTimer, which keeps
+// one FIFO queue per duration; arming and cancelling are O(1) without locks,
+// and timeout fires on the same thread. On other threads, we fall back to ScheduledThreadPoolExecutor.
 
 class AsyncTimeout<T> implements Consumer<Result<T>>, Runnable
 {
@@ -31,7 +30,7 @@ class AsyncTimeout<T> implements Consumer<Result<T>>, Runnable
     Duration duration;
     Supplier<Exception> exSupplier;  // may be null
 
-    ScheduledFuture<?> alarm;
+    _Alarm alarm;
 
     public AsyncTimeout(Async<T> target, Duration duration, Supplier<Exception> exSupplier)
     {
@@ -40,8 +39,9 @@ class AsyncTimeout<T> implements Consumer<Result<T>>, Runnable
         this.duration = duration;
         this.exSupplier = exSupplier;
 
-        ScheduledFuture<?> alarm = _Exec.execNbDelayed(duration, this/*run()*/);
+        _Alarm alarm = _Exec.alarm(duration, this/*run()*/);
         // note: `this` is leaked. timeout could reach at any time, even before [A]
+        //       (not with a local timer, which fires on the current thread)
         this.alarm = alarm;  // [A]
 
         _Asyncs.onCompletion(target, Runnable::run, this/*accept()*/);
@@ -54,13 +54,13 @@ class AsyncTimeout<T> implements Consumer<Result<T>>, Runnable
     //
     // if timeout is reached before completion (which should be rare)
     //     run()->target.cancel()->this.accept()->alarm.cancel()
-    // here, alarm.cancel() is unnecessary; but it's cheap, just a volatile read.
+    // here, alarm.cancel() is unnecessary; but it's cheap.
 
 
     @Override // Consumer<Result<T>> // target is completed // after [A]
     public void accept(Result<T> result)
     {
-        alarm.cancel(false);
+        alarm.cancel();
     }
 
     @Override // Runnable // timeout event // may arrive before [A]
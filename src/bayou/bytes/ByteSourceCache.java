@@ -3,13 +3,19 @@ package bayou.bytes;
 import _bayou._async._Asyncs;
 import _bayou._log._Logger;
 import _bayou._tmp._ByteBufferUtil;
+import _bayou._tmp._DirectArena;
 import _bayou._tmp._Util;
 import bayou.async.Async;
 import bayou.async.AsyncIterator;
 import bayou.async.Promise;
 import bayou.util.End;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 
 /**
@@ -32,6 +38,9 @@ import java.util.ArrayList;
  *     If an error occurred while the cache reads the origin source,
  *     the error will be reflected when reading from views.
  * </p>
+ * <p>
+ *     A cache can also be backed by a memory-mapped file, see {@link #mapFile(Path)}.
+ * </p>
  */
 
 // as soon as the cache is created, it can be read thru views, even tho copying is still ongoing.
@@ -68,6 +77,10 @@ import java.util.ArrayList;
 //
 // in this impl we use uniformed 8K buffers (except the last buffer).
 // even if source is big, the overhead of having numerous 8K buffers should be fine.
+//
+// mapped mode: for large files. bytes are not copied; views serve read-only slices of MappedByteBuffers.
+// the memory is the OS page cache, shared with other readers of the file, and not counted as heap/direct.
+// slices are direct buffers, which can be written to sockets without copying.
 
 
 public class ByteSourceCache
@@ -86,6 +99,12 @@ public class ByteSourceCache
 
     ArrayList<WaitingView> waitingList = new ArrayList<>();
 
+    int bufSize = BB_SIZE;  // size of each buffer served to views (except the last one)
+
+    MappedByteBuffer[] regions; // mapped mode only. each region is MAP_REGION bytes, except the last one
+    static final int MAP_REGION = 1<<30;
+    static final int MAP_CHUNK = 64*1024;  // buffer size served to views; MAP_REGION is a multiple of it
+
 
     /**
      * Create an in-memory cache of the origin source.
@@ -107,6 +126,61 @@ public class ByteSourceCache
         }
     }
 
+    /**
+     * Create a cache backed by a memory-mapped file.
+     * <p>
+     *     The file content is not copied; views serve slices of the mapped file.
+     *     The memory is the OS page cache of the file, not heap or direct memory of this process;
+     *     see {@link #isMapped()}.
+     * </p>
+     * <p>
+     *     The file must not be modified (e.g. truncated) while the cache is in use.
+     *     To update the file, create a new file and move it to replace the old one.
+     * </p>
+     * <p>
+     *     This method does blocking IO to open and map the file.
+     * </p>
+     */
+    public static ByteSourceCache mapFile(Path file) throws IOException
+    {
+        MappedByteBuffer[] regions;
+        long size;
+        try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ))
+        {
+            size = channel.size();
+            regions = new MappedByteBuffer[(int)((size+MAP_REGION-1)/MAP_REGION)];
+            for(int i=0; i<regions.length; i++)
+            {
+                long position = (long)i*MAP_REGION;
+                regions[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAP_REGION, size-position));
+            }
+        }
+        // the mapping remains valid after the channel is closed
+
+        ByteSourceCache cache = new ByteSourceCache(null, size);
+        cache.copyBuffers = null;
+        cache.waitingList = null;
+        cache.regions = regions;
+        cache.bufSize = MAP_CHUNK;
+        synchronized (cache.lock())
+        {
+            cache.state_volatile = State.done;
+        }
+        return cache;
+    }
+
+    /**
+     * Whether this cache is backed by a memory-mapped file.
+     * <p>
+     *     If true, the {@link #getTotalBytes() cached bytes} are in the OS page cache;
+     *     otherwise they are copied in direct memory.
+     * </p>
+     */
+    public boolean isMapped()
+    {
+        return regions!=null;
+    }
+
     /**
      * Return the total number of bytes in the origin source; null if unknown yet.
      * <p>
@@ -305,6 +379,9 @@ public class ByteSourceCache
 
         assert _state==State.done;
 
+        if(regions!=null)
+            return view_readMapped(view, promise);
+
         if(view.iBuf < copyBuffers.size())
             return view_read3(view, promise);
         else
@@ -320,6 +397,23 @@ public class ByteSourceCache
 
 
 
+    Async<ByteBuffer> view_readMapped(View view, Promise<ByteBuffer> promise)
+    {
+        long position = (long)view.iBuf * MAP_CHUNK;
+        if(position >= dataSize_volatile.longValue())
+            return _Asyncs.fail(promise, End.instance());
+        view.iBuf++;
+
+        MappedByteBuffer region = regions[(int)(position/MAP_REGION)];
+        int offset = (int)(position%MAP_REGION);
+        ByteBuffer buf = region.asReadOnlyBuffer(); // a duplicate; position/limit are independent
+        buf.limit(Math.min(offset+MAP_CHUNK, region.limit()));
+        buf.position(offset);
+        return _Asyncs.succeed(promise, buf);
+    }
+
+
+
     static class WaitingView
     {
         View view;
@@ -363,8 +457,9 @@ public class ByteSourceCache
             // but if data is huge, copyBuffers is huge, it's a little faster to skip buffers internally.
             _Util.require(n>=0, "n>=0");
 
-            // note: last buffer may be smaller than BB_SIZE
-            long buffersToSkip = n/BB_SIZE;
+            // note: last buffer may be smaller than bufSize
+            final int bufSize = cache.bufSize;
+            long buffersToSkip = n/bufSize;
             long iBufNew = (long)iBuf + buffersToSkip;
             final long INT_MAX = (long)Integer.MAX_VALUE;
             if(iBufNew>INT_MAX)
@@ -374,7 +469,7 @@ public class ByteSourceCache
             }
             iBuf = (int)iBufNew;  // may be beyond EOF
 
-            return buffersToSkip * BB_SIZE; // usually < n
+            return buffersToSkip * bufSize; // usually < n
         }
 
         @Override
@@ -398,8 +493,12 @@ public class ByteSourceCache
 
 
     // we don't use a pool. it's not likely that we'll frequently alloc and dealloc.
-    static ByteBuffer alloc(int size)
+    // if _DirectArena is enabled, buffers are carved from its slabs, within its budget;
+    // they are reclaimed after the cache (and all views/duplicates) becomes garbage.
+    static ByteBuffer alloc(int size) throws OutOfMemoryError
     {
+        if(_DirectArena.enabled)
+            return _DirectArena.allocateBump(size); // throws if budget exceeded
         return ByteBuffer.allocateDirect(size);
     }
     static final int BB_SIZE = 8*1024;
@@ -1,6 +1,7 @@
 package bayou.bytes;
 
 import _bayou._async._Asyncs;
+import _bayou._tmp._FileRegion;
 import _bayou._tmp._Util;
 import bayou.async.Async;
 
@@ -27,7 +28,7 @@ import java.nio.ByteBuffer;
  *     this class can skip the origin by read and discard bytes.
  * </p>
  */
-public class RangedByteSource implements ByteSource
+public class RangedByteSource implements ByteSource, _FileRegion.Source
 {
     ByteSource origin;
     long min, max;
@@ -99,6 +100,20 @@ public class RangedByteSource implements ByteSource
         }
     }
 
+    // for sendfile. available if origin is a file region, and nothing has been read or skipped.
+    @Override
+    public _FileRegion getFileRegion()
+    {
+        if(closed || position!=0)
+            return null;
+
+        _FileRegion originRegion = _FileRegion.of(origin);
+        if(originRegion==null)
+            return null;
+
+        return originRegion.sub(min, max);
+    }
+
     /**
      * Read the next chunk of bytes.
      *
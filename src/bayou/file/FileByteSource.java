@@ -3,7 +3,9 @@ package bayou.file;
 import _bayou._log._Logger;
 import _bayou._tmp._ByteBufferPool;
 import _bayou._tmp._ByteBufferUtil;
+import _bayou._tmp._DirectArena;
 import _bayou._tmp._Exec;
+import _bayou._tmp._FileRegion;
 import _bayou._tmp._Util;
 import bayou.async.Async;
 import bayou.async.Promise;
@@ -37,7 +39,7 @@ import java.util.concurrent.ExecutorService;
  *
  * Each FileByteSource depends on an {@link AsynchronousFileChannel}, obtained from a {@link ChannelProvider}.
  */
-public class FileByteSource implements ByteSource
+public class FileByteSource implements ByteSource, _FileRegion.Source
 {
     // experimented on local machine, file->socket, bigger bufferSize shows a lot better performance.
     // the overhead of read->complete is not small (0.1ms? on my PC)
@@ -186,7 +188,16 @@ public class FileByteSource implements ByteSource
     {
         ReadCompleteHandler handler = new ReadCompleteHandler();
 
-        ByteBuffer buffer = bbPool.checkOut();
+        ByteBuffer buffer;
+        try
+        {
+            buffer = bbPool.checkOut();
+        }
+        catch (_DirectArena.BudgetExceededException e)
+        {
+            handler.promise.fail(e);
+            return handler.promise;
+        }
         try
         {
             channel.read(buffer, position, buffer, handler);  // throws
@@ -237,6 +248,24 @@ public class FileByteSource implements ByteSource
 
 
 
+    // for sendfile. only if the file path is known, and nothing has been read.
+    @Override
+    public _FileRegion getFileRegion()
+    {
+        if(closed || channel!=null)
+            return null;
+
+        Path file;
+        if(channelProvider instanceof SimpleChannelProvider)
+            file = ((SimpleChannelProvider)channelProvider).file;
+        else if(channelProvider instanceof SharedChannelProvider)
+            file = ((SharedChannelProvider)channelProvider).file;
+        else
+            return null;
+
+        return new _FileRegion(file, position, Long.MAX_VALUE);
+    }
+
     /**
      * Close this source.
      */
@@ -108,7 +108,8 @@ public class StaticFileConf
 
     boolean gzip; // init by constructor
     // fileSize: a file can be too small to benefit from gzip. (tho not much harm if it's gzip-ed anyway)
-    // if gzip=true, the gzip-ed content can be cached in memory or on disk, depending on `cache`.
+    // if gzip=true, the gzip-ed and deflate-d content can be cached in memory or on disk, depending on `cache`.
+    // they are created in background; until then the original content is served.
 
     /**
      * Whether this file should be compressed by gzip.
@@ -119,6 +120,11 @@ public class StaticFileConf
      *     Do not pre-gzip the file; just store the original file under the directory,
      *     StaticHandler will take care of caching the compressed file on disk or in memory.
      * </p>
+     * <p>
+     *     If enabled, both "gzip" and "deflate" encodings of the file are created in background,
+     *     and the one preferred by the client's "Accept-Encoding" is served.
+     *     Until the encoded file is ready, the original file is served.
+     * </p>
      * @return `this`
      */
     public StaticFileConf gzip(boolean gzip)
@@ -132,8 +138,7 @@ public class StaticFileConf
 
 
     boolean cache = false;
-    // if cache && gzip, only the gzip-ed content is cached, original content is not.
-    //    if client doesn't accept gzip (e.g. apache ab) we'll read disk for original content.
+    // if cache && gzip, the original content and the encoded contents are all cached.
 
     /**
      * Whether to cache the file content in memory.
@@ -150,6 +155,33 @@ public class StaticFileConf
 
 
 
+    boolean cacheMapped = false;
+    // big files cached by copying pin direct memory, duplicating the OS page cache.
+
+    /**
+     * Whether to cache the file content by memory mapping, if {@link #cache(boolean) cache} is true.
+     * <p><code>
+     *     default: false
+     * </code></p>
+     * <p>
+     *     If true, the file content is not copied into memory; it is served from
+     *     a memory-mapped file (see {@link bayou.bytes.ByteSourceCache#mapFile(Path)}).
+     *     This is suitable for large files.
+     * </p>
+     * <p>
+     *     The file must not be modified in place while it's mapped;
+     *     to update the file, move a new file to replace it.
+     * </p>
+     * @return `this`
+     */
+    public StaticFileConf cacheMapped(boolean cacheMapped)
+    {
+        this.cacheMapped=cacheMapped;
+        return this;
+    }
+
+
+
 
 
     boolean isIndexFile; // init by constructor
@@ -267,7 +299,8 @@ public class StaticFileConf
      * </p>
      * <p>
      *     If a response for this file uses <code>"Content-Encoding: gzip"</code>,
-     *     its ETag will be this ETag appended with <code>".gzip"</code>.
+     *     its ETag will be this ETag appended with <code>".gzip"</code>;
+     *     similarly <code>".deflate"</code> for <code>"Content-Encoding: deflate"</code>.
      * </p>
      * @return `this`
      */
@@ -323,6 +356,8 @@ public class StaticFileConf
 
     public boolean get_cache(){ return cache; }
 
+    public boolean get_cacheMapped(){ return cacheMapped; }
+
     public boolean get_isIndexFile(){ return isIndexFile; }
 
     public Duration get_expiresRelative(){ return expiresRelative; }
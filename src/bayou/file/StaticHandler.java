@@ -9,6 +9,7 @@ import _bayou._tmp.*;
 import bayou.bytes.ByteSource;
 import bayou.bytes.ByteSource2InputStream;
 import bayou.bytes.ByteSourceCache;
+import bayou.bytes.InputStream2ByteSource;
 import bayou.gzip.GzipByteSource;
 import bayou.http.*;
 import bayou.mime.ContentType;
@@ -18,11 +19,15 @@ import bayou.util.function.ConsumerX;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.file.*;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterInputStream;
 
 import static bayou.mime.Headers.Accept_Encoding;
 
@@ -119,7 +124,7 @@ import static bayou.mime.Headers.Accept_Encoding;
 // performance: apache ab -k -c8 -n100000 http://localhost:8080/...
 // small files only, < 1kB
 // cached: 45k req/sec
-//    note: ab does not accept gzip, therefore if cache=true, gzip=true, we actually read disk, not memory, that's slow.
+//    note: ab does not accept gzip; the identity form is served, which is cached in memory as well.
 // not cached:  20k req/sec windows, 30k req/sec linux
 //    this is if we share file channel.
 //    if not shared, 10k windows, 20k linux
@@ -144,6 +149,10 @@ public class StaticHandler implements HttpHandler
     volatile boolean monitoring_volatile;
     volatile long lastRequestTime_volatile = System.currentTimeMillis();
 
+    // builds encoded variants of files, one file at a time, so that a dir of many files
+    // doesn't flood the machine with compression tasks on startup.
+    final ThreadPoolExecutor encodingExec = _Exec.newSerialExecutor("file handler encoding thread");
+
     /**
      * Create a StaticHandler with default settings.
      * <p>
@@ -427,6 +436,21 @@ public class StaticHandler implements HttpHandler
                     file2info.put(info.file, info);
                 tr("fileCount", file2info.size());
 
+                // cached bytes: copied in memory, vs mapped (OS page cache)
+                long memoryBytes=0, mappedBytes=0;
+                for(FileInfo info : file2info.values())
+                {
+                    if(info.bodyCache!=null && info.bodyCache.isMapped())
+                        mappedBytes += info.fileLength;
+                    else if(info.bodyCache!=null)
+                        memoryBytes += info.fileLength;
+                    for(Variant v : info.variants)
+                        if(v.cache_volatile!=null)
+                            memoryBytes += v.length_volatile;
+                }
+                tr("cache memory bytes", memoryBytes);
+                tr("cache mapped bytes", mappedBytes);
+
                 for(FileInfo info : file2info.values())
                     dumpFile(info);
             }
@@ -441,9 +465,12 @@ public class StaticHandler implements HttpHandler
                 tr("file size", info.fileLength);
 
                 tr("gzip", info.doGzip);
-                // if(info.gzFile!=null) tr("gz file", info.gzFile.gzFile);
+                for(Variant v : info.variants)
+                    tr(v.coding+" variant", v.ready()? ""+v.length_volatile+" bytes" : "not ready");
 
                 tr("cache", info.doCache);
+                if(info.bodyCache!=null && info.bodyCache.isMapped())
+                    tr("cache mapped", true);
 
                 tr("ETag", info.etag);  // can be null
                 if(info.etag!=null)
@@ -544,7 +571,6 @@ public class StaticHandler implements HttpHandler
         boolean doCache;
 
         String etag; // can be null
-        String etagGzip;
 
         String uriTagged;  // uri?etag
 
@@ -570,10 +596,40 @@ public class StaticHandler implements HttpHandler
 
         FileByteSource.ChannelProvider originFileCP;
 
-        ByteSourceCache bodyCache;
-        // if doGzip && doCache, the bodyCache contains gzip-ed data. plain file data not cached in memory.
+        ByteSourceCache bodyCache; // if doCache. plain file data.
+
+        static final Variant[] variantsNone = new Variant[0];
+        Variant[] variants = variantsNone;
+        // if doGzip: gzip, deflate. in order of our preference.
+        // encoded data are cached in memory if doCache, otherwise on disk.
 
-        GzFile gzFile; // if doGzip && !doCache
+        // set when this info is removed from the map (file modified or deleted).
+        // variants not built yet are then skipped; nobody will serve them.
+        volatile boolean replaced_volatile;
+
+        // the most preferred variant that is acceptable to the client and is ready; null for identity.
+        Variant selectVariant(HttpRequest request)
+        {
+            if(variants.length==0)
+                return null;
+            String hAcceptEncoding = request.header(Headers.Accept_Encoding);
+            if(hAcceptEncoding==null)
+                return null;
+
+            Variant best = null;
+            float bestQ = 0.0f;
+            for(Variant v : variants)
+            {
+                float q = _HttpUtil.acceptEncodingQ(hAcceptEncoding, v.coding); // negative if malformed
+                if(q>bestQ && v.ready())  // on tie, the earlier one wins
+                {
+                    best = v;
+                    bestQ = q;
+                }
+            }
+            return best;
+            // we don't check "identity;q=0". identity is always acceptable in practice.
+        }
 
         HttpResponseImpl makeResponse(HttpRequest request, int iQM)
         {
@@ -600,45 +656,16 @@ public class StaticHandler implements HttpHandler
             }
 
 
-            final boolean clientAcceptsGzip = request.acceptsGzip();
-            final boolean gzipResp = doGzip && clientAcceptsGzip;
-            final ByteSource src;  // if null, call bodyCache.newView() later. we don't want to call newView() yet.
+            // a variant not ready yet is skipped; identity is served instead.
+            // we never compress on the request path; variants are built in background.
+            final Variant variant = selectVariant(request);
             final Long bodyLength;
-            if(doCache)
-            {
-                if(doGzip && !clientAcceptsGzip)
-                {
-                    // we need to return plain file data. but the cached data is gzip-ed. so we'll read data from disk.
-                    // that's ok. we expect that most clients accept gzip, no need to cater to those few who don't.
-                    // if however this case does occur frequently, it won't be very slow either due to OS cache.
-                    // note: apache benchmark tool 'ab' does not accept gzip.
-                    src = new FileByteSource(originFileCP);
-                    bodyLength = fileLength;
-                    // another solution is to un-gzip the cached data on the fly. that costs cpu and memory.
-                    // if this case does occur frequently, the solution is unlikely faster than reading the disk.
-                    // if this case is rare, we don't need to optimize for an one-off case
-                }
-                else  // doGzip && clientAcceptGzip or !doGzip.
-                {
-                    src = null; // to use bodyCache.newView()
-                    bodyLength = bodyCache.getTotalBytes(); // could be null (if gzip and copying not done)
-                }
-            }
+            if(variant!=null)
+                bodyLength = variant.length_volatile;
+            else if(doCache)
+                bodyLength = bodyCache.getTotalBytes();
             else
-            {
-                if(gzipResp)
-                {
-                    src = gzFile.getSource();
-                    bodyLength = gzFile.getLength(); // could be null (if gz file not created)
-                    // if the disk-cached gz file is deleted, we can't recover automatically.
-                    // user will have to touch the original file, or restart server.
-                }
-                else
-                {
-                    src = new FileByteSource(originFileCP);
-                    bodyLength = fileLength;
-                }
-            }
+                bodyLength = fileLength;
 
             HttpEntity entity = new HttpEntity()
             {
@@ -648,11 +675,15 @@ public class StaticHandler implements HttpHandler
                 }
                 @Override public String contentEncoding()
                 {
-                    return gzipResp? "gzip" : null;
+                    return variant!=null? variant.coding : null;
                 }
                 @Override public ByteSource body()
                 {
-                    return src!=null? src : bodyCache.newView();
+                    if(variant!=null)
+                        return variant.newSource();
+                    if(doCache)
+                        return bodyCache.newView();
+                    return new FileByteSource(originFileCP);
                 }
                 @Override public Long contentLength()
                 {
@@ -660,7 +691,7 @@ public class StaticHandler implements HttpHandler
                 }
                 @Override public String etag()
                 {
-                    return gzipResp ? etagGzip : etag;
+                    return variant!=null? variant.etag : etag;
                 }
                 @Override public Instant lastModified()
                 {
@@ -783,8 +814,11 @@ public class StaticHandler implements HttpHandler
     {
         FileInfo info = uri2info.remove(uriPath);
         if(info!=null)
+        {
+            info.replaced_volatile = true;
             for(UriPath alt : info.uriAlt)
                 uri2info.remove(alt);
+        }
     }
 
     void updateFile(Path file) // file is created or updated
@@ -843,8 +877,6 @@ public class StaticHandler implements HttpHandler
         info.expiresRelative = conf.expiresRelative;
 
         info.etag = conf.etag;
-        if(info.etag!=null)
-            info.etagGzip = info.etag+".gzip";
 
         info.uri = uriPath.string();
 
@@ -895,85 +927,85 @@ public class StaticHandler implements HttpHandler
 
         info.originFileCP =  FileByteSource.ChannelProvider.pooled(conf.filePath) ;
 
-        if(info.doCache)
+        if(info.doCache && conf.cacheMapped) // map plain file data
         {
-            if(info.doGzip) // cache gzip-ed data in memory; plain file data not cached
-                info.bodyCache = new ByteSourceCache( gzSrc(info.originFileCP), null );
-            else // cache plain file data
-                info.bodyCache = new ByteSourceCache(new FileByteSource(info.originFileCP), info.fileLength);
-            // all involved sources are lazy, no real resource is consumed,
-            // until bodyCache.newView() is invoked for the 1st time.
+            try
+            {
+                info.bodyCache = ByteSourceCache.mapFile(conf.filePath);
+                info.fileLength = info.bodyCache.getTotalBytes(); // in case the file changed after conf
+            }
+            catch (IOException e) // e.g. out of address space. fall back to copying
+            {
+                logger.error("Error mapping file %s: %s", conf.filePath, e);
+            }
         }
-        else
+        if(info.doCache && info.bodyCache==null) // cache plain file data
+            info.bodyCache = new ByteSourceCache(new FileByteSource(info.originFileCP), info.fileLength);
+            // lazy, no real resource is consumed, until bodyCache.newView() is invoked for the 1st time.
+
+        if(info.doGzip)
         {
-            if(info.doGzip) // cache gzip-ed data on disk
-                info.gzFile = new GzFile(info);  // lazy
+            info.variants = new Variant[]{ new Variant(info, "gzip"), new Variant(info, "deflate") };
+            for(Variant v : info.variants)
+                if(!v.ready())
+                    encodingExec.execute(v::build);
         }
 
-
         return info;
     }
 
-    static class GzFile
+    // an encoded variant of a file, for a content coding, e.g. "gzip".
+    // it is built once in background, when the FileInfo is created (on startup, or after the file is modified).
+    // until it's ready, requests are served with the identity form. nothing is compressed on the request path.
+    // if the file is modified before the variant is built, the FileInfo is replaced, and the build is skipped;
+    // if it's modified while the variant is being built, the stale variant will be discarded along with the FileInfo.
+    static class Variant
     {
-        final Object lock(){ return this; }
-
-        final Path originFile;
-        final Path gzFile;
-
-        final FileByteSource.ChannelProvider originFileCP;
-        final FileByteSource.ChannelProvider gzFileCP;
+        final FileInfo info;
+        final String coding;
+        final String etag; // info.etag + "." + coding. null if info.etag==null
 
+        final Path encFile;  // if !info.doCache. encoded data cached on disk
+        final FileByteSource.ChannelProvider encFileCP;
 
-        enum State{ notCreated, creating, created, error }
-        volatile State state_volatile;
-        volatile Long gzLength_volatile;
+        // written once by build(); non-null length means ready.
+        volatile ByteSourceCache cache_volatile;  // if info.doCache. in direct buffers, like bodyCache
+        volatile Long length_volatile;
 
-        GzFile(FileInfo info) throws Exception
+        Variant(FileInfo info, String coding) throws Exception
         {
-            this.originFile = info.file;
-            this.originFileCP = info.originFileCP;
+            this.info = info;
+            this.coding = coding;
+            this.etag = info.etag==null? null : info.etag + "." + coding;
 
-            this.gzFile = getGzPath(originFile, info);
-
-            this.gzFileCP  = FileByteSource.ChannelProvider.pooled(this.gzFile);
-
-            if(Files.exists(gzFile))  // created by a prev vm
+            if(info.doCache)
             {
-                gzLength_volatile = Files.size(gzFile); // throws
-                state_volatile = State.created;
+                encFile = null;
+                encFileCP = null;
             }
             else
             {
-                gzLength_volatile = null;
-                state_volatile = State.notCreated;
+                encFile = getEncPath(info.file, info, coding);
+                encFileCP = FileByteSource.ChannelProvider.pooled(encFile);
+                if(Files.exists(encFile))  // created by a prev vm
+                    length_volatile = Files.size(encFile); // throws
             }
         }
 
-        ByteSource getSource()
+        boolean ready()
         {
-            if(state_volatile ==State.created)
-                return new FileByteSource(gzFileCP);
-
-            synchronized (lock())
-            {
-                if(state_volatile ==State.notCreated) // then let me create it
-                {
-                    state_volatile = State.creating;
-                    asyncCreate();
-                }
-            }
-
-            // on-the-fly gzip.
-            return gzSrc(originFileCP);
+            return length_volatile!=null;
         }
-        Long getLength()
+
+        ByteSource newSource() // only if ready
         {
-            return gzLength_volatile;
+            if(encFileCP!=null)
+                return new FileByteSource(encFileCP);
+            else
+                return cache_volatile.newView();
         }
 
-
-        static Path getGzPath(Path originFile, FileInfo info) throws Exception
+        static Path getEncPath(Path originFile, FileInfo info, String coding) throws Exception
         {
             // originFile is absolute normalized
 
@@ -983,59 +1015,79 @@ public class StaticHandler implements HttpHandler
                 dir = dir.substring(root.toString().length());   //  "/x/y" => "x/y"
             // we may confuse C:\ and D:\, end up with same gz dir, but that's ok
 
-            // gz path is versioned by file version; currently we use timestamp as the version.
+            // path is versioned by file version; currently we use timestamp as the version.
             // probably better to use etag instead, but then we need to worry about special chars.
             // timestamp, in ns, is probably good enough for now.
             String fileName = originFile.getFileName().toString();
-            String ver = _HttpUtil.defaultEtag(info.lastModified, "gzip"); // t-####-####.gzip
-            String gzFileName = fileName + "." + ver;
+            String ver = _HttpUtil.defaultEtag(info.lastModified, coding); // t-####-####.gzip
+            String encFileName = fileName + "." + ver;
 
-            return Paths.get("/tmp/bayou/file_handler_gz_cache", dir, gzFileName);  // absolute, normalized
-            // "/tmp" is ok. machine is not restarted often. even if restarted, recreate gz file isn't too slow.
-            // if user complains, we may need to provide customization of gz dir, or even customize gz path per file.
+            return Paths.get("/tmp/bayou/file_handler_gz_cache", dir, encFileName);  // absolute, normalized
+            // "/tmp" is ok. machine is not restarted often. even if restarted, recreating files isn't too slow.
+            // if user complains, we may need to provide customization of the dir, or even customize path per file.
         }
 
-        void asyncCreate()
+        // blocking. run in encodingExec.
+        void build()
         {
-            _Exec.executeB(() -> {
-                Long len = null;
-                try
-                {
-                    createGzFile(); // throws
-                    // now gzFile exists
-                    len = Files.size(gzFile); // throws
-                }
-                catch (Exception e)
-                {
-                    logger.error("Error creating gz file: %s", e);
-                }
+            if(info.replaced_volatile) // file modified or deleted while this task was queued
+                return;
 
-                // no sync - vars are volatile, and no one else is writing to them.
-                if (len != null) // all ok
+            try
+            {
+                if(info.doCache)
                 {
-                    gzLength_volatile = len;
-                    state_volatile = State.created;
+                    // encoded data stream into the cache's direct buffers; no intermediary copy.
+                    // drain a view to fill the cache now, on this thread. total bytes are known after that.
+                    ByteSourceCache cache = new ByteSourceCache(encodedSource(), null);
+                    try(InputStream in = new ByteSource2InputStream(cache.newView(), Duration.ofSeconds(60)))
+                    {
+                        byte[] buffer = new byte[16*1024];
+                        while(in.read(buffer)!=-1)
+                            continue;
+                    }
+                    Long length = cache.getTotalBytes(); // non-null after EOF
+                    cache_volatile = cache;
+                    length_volatile = length;  // after cache_volatile
                 }
                 else
                 {
-                    state_volatile = State.error;
-                    // error is sticky. won't try again to create the gz file. on-the-fly gzip if error.
+                    createEncFile(); // throws
+                    // now encFile exists
+                    length_volatile = Files.size(encFile); // throws
                 }
-            });
+            }
+            catch (Exception e)
+            {
+                logger.error("Error creating %s variant of %s: %s", coding, info.file, e);
+                // error is sticky. won't try again. identity is served.
+            }
         }
-        void createGzFile() throws Exception  // ok if the file is created by another VM
+
+        void createEncFile() throws Exception  // ok if the file is created by another VM
         {
-            if(Files.exists(gzFile)) // we checked it in constructor, which can be a while ago.
+            if(Files.exists(encFile)) // we checked it in constructor, which can be a while ago.
                 return;
 
-            Path dir = gzFile.getParent();
+            Path dir = encFile.getParent();
             Files.createDirectories(dir);
-            Path tmpFile = Files.createTempFile(dir, gzFile.getFileName().toString()+".", ".tmp");
+            Path tmpFile = Files.createTempFile(dir, encFile.getFileName().toString()+".", ".tmp");
 
             try
             {
-                // write gz content to tmpFile, then move tmpFile to gzFile
-                createGzFile2(tmpFile); // throws
+                // write encoded content to tmpFile, then move tmpFile to encFile
+                try(OutputStream out = Files.newOutputStream(tmpFile))
+                {
+                    encode(out);
+                }
+
+                Files.move(tmpFile, encFile, StandardCopyOption.ATOMIC_MOVE);
+            }
+            catch (FileAlreadyExistsException e)
+            {
+                // another vm wins. not rare with multiple server instances.
+                deleteSilent(tmpFile);
+                // as if move succeeded
             }
             catch(Exception e)
             {
@@ -1044,30 +1096,57 @@ public class StaticHandler implements HttpHandler
             }
         }
 
-        void createGzFile2(Path tmpFile) throws Exception
+        void encode(OutputStream out) throws Exception
         {
-            try (InputStream is = new ByteSource2InputStream(gzSrc(originFileCP), Duration.ofSeconds(60)))
+            try (InputStream in = new ByteSource2InputStream(encodedSource(), Duration.ofSeconds(60)))
             {
-                // System.out.println("write to "+tmpFile.toString());
-                Files.copy(is, tmpFile, StandardCopyOption.REPLACE_EXISTING); // tmpFile is existing.
+                copy(in, out);
             }
-            // auto close is
+        }
+
+        ByteSource encodedSource() throws Exception
+        {
+            if(coding.equals("gzip"))
+                return gzSrc(info.originFileCP);
 
+            // "deflate", which is the zlib format (RFC1950), not raw deflate.
+            Deflater deflater = new Deflater(9);
+            InputStream in;
             try
             {
-                Files.move(tmpFile, gzFile, StandardCopyOption.ATOMIC_MOVE);
-                // System.out.println("moved to "+gzFile.toString());
+                in = Files.newInputStream(info.file); // throws
             }
-            catch (FileAlreadyExistsException e)
+            catch(Exception e)
             {
-                // another vm wins. not rare with multiple server instances.
-                deleteSilent(tmpFile);
-                // as if move succeeded
+                deflater.end();
+                throw e;
             }
-            // other exceptions
+            InputStream din = new DeflaterInputStream(in, deflater, 16*1024)
+            {
+                @Override public void close() throws IOException
+                {
+                    try
+                    {
+                        super.close(); // doesn't end a deflater supplied by us
+                    }
+                    finally
+                    {
+                        deflater.end();
+                    }
+                }
+            };
+            return new InputStream2ByteSource(din, 16*1024);
+        }
+
+        static void copy(InputStream in, OutputStream out) throws IOException
+        {
+            byte[] buffer = new byte[16*1024];
+            int r;
+            while((r=in.read(buffer))!=-1)
+                out.write(buffer, 0, r);
         }
 
-        void deleteSilent(Path file)
+        static void deleteSilent(Path file)
         {
             try
             {
@@ -1084,7 +1163,7 @@ public class StaticHandler implements HttpHandler
     // it's important that gz is consistent: same origin data yields same gz data.
     // same compression level must be used.
     // since we cache gz data (in mem or on disk), 9 is used for max compression.
-    // it's slower, but on-the-fly gz is not common here.
+    // it's slower, but it's done once, in background.
     static GzipByteSource gzSrc(FileByteSource.ChannelProvider originFileCP)
     {
         return new GzipByteSource( new FileByteSource(originFileCP), 9 );
@@ -1,6 +1,7 @@
 package bayou.gzip;
 
 import _bayou._async._Asyncs;
+import _bayou._tmp._ZipPool;
 import bayou.async.Async;
 import bayou.bytes.ByteSource;
 import bayou.util.End;
@@ -140,7 +141,7 @@ public class GunzipByteSource implements ByteSource
 
         headerParser =null;
 
-        inflater = new Inflater(true);
+        inflater = _ZipPool.inflater();
         crc = new CRC32();
         return inflateBody(obb);
     }
@@ -193,7 +194,7 @@ public class GunzipByteSource implements ByteSource
             ByteBuffer obb = ByteBuffer.wrap(array, off + len - r, r);
 
             trailer = ByteBuffer.wrap(GzipByteSource.trailer(crc.getValue(), inflater.getBytesWritten()));
-            inflater.end();
+            _ZipPool.release(inflater);
             inflater=null;
             crc=null;
 
@@ -242,7 +243,7 @@ public class GunzipByteSource implements ByteSource
         if(origin!=null)
             origin.close();
         if(inflater!=null)
-            inflater.end();
+            _ZipPool.release(inflater);
 
         origin=null;
         error=null;
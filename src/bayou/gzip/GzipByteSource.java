@@ -3,6 +3,7 @@ package bayou.gzip;
 import _bayou._async._Asyncs;
 import _bayou._tmp._ByteBufferUtil;
 import _bayou._tmp._Util;
+import _bayou._tmp._ZipPool;
 import bayou.async.Async;
 import bayou.bytes.ByteSource;
 import bayou.util.Result;
@@ -24,8 +25,9 @@ public class GzipByteSource implements ByteSource
 
     SourceWrapper origin;
     int compressionLevel;
+    boolean syncFlush;
 
-    enum State{gzipHeader, reading, deflating, gzipTrailer, gzipDone, closed }
+    enum State{gzipHeader, reading, deflating, flushing, gzipTrailer, gzipDone, closed }
     State state;
 
 
@@ -37,9 +39,28 @@ public class GzipByteSource implements ByteSource
      * </p>
      */
     public GzipByteSource(ByteSource origin, int compressionLevel)  // caller assumes no throw
+    {
+        this(origin, compressionLevel, false);
+    }
+
+    /**
+     * Create a GzipByteSource, which compresses the origin source with gzip.
+     * <p>
+     *     If `syncFlush` is true, whenever a read of the origin source stalls,
+     *     data that have been read so far are flushed (see {@link Deflater#SYNC_FLUSH}) and served,
+     *     instead of being held in the compressor waiting for more data.
+     *     This is useful if the origin produces data progressively, e.g. server-sent events.
+     *     It may reduce the compression ratio slightly.
+     * </p>
+     * <p>
+     *     See {@link #GzipByteSource(ByteSource, int)} for `compressionLevel`.
+     * </p>
+     */
+    public GzipByteSource(ByteSource origin, int compressionLevel, boolean syncFlush)  // caller assumes no throw
     {
         this.origin = new SourceWrapper(origin);
         this.compressionLevel = compressionLevel;
+        this.syncFlush = syncFlush;
 
         this.state = State.gzipHeader;
     }
@@ -51,14 +72,16 @@ public class GzipByteSource implements ByteSource
     // without producing any output; then when input>100K, it starts to produce outputs (~30K).
     // once deflater starts to produce, we drain the output asap to the client.
     //
-    // we don't force flush; if inputs come in small chunks over extended time,
+    // we don't force flush, unless syncFlush=true; if inputs come in small chunks over extended time,
     // client won't detect progress promptly.
+    // with syncFlush, when the origin stalls, we flush the deflater and serve the output. when the origin is
+    // producing data faster than we consume, it does not stall, and we don't flush.
 
 
     // created on 1st read
     Deflater deflater;
     CRC32 crc;
-    // Deflater uses out-of-vm resources; remember to call close() to promptly free resources.
+    // Deflater uses out-of-vm resources; remember to call close() to promptly return it to the pool.
 
     byte[] outputBuffer;
     static final int outputBufferCap = 4*1024;
@@ -76,7 +99,7 @@ public class GzipByteSource implements ByteSource
         {
             case gzipHeader:
 
-                this.deflater = new Deflater(compressionLevel, true);
+                this.deflater = _ZipPool.deflater(compressionLevel);
                 this.crc = new CRC32();
 
                 state = State.reading;
@@ -94,6 +117,14 @@ public class GzipByteSource implements ByteSource
                 else // no output, needs new input
                     return read_deflate_loop();
 
+            case flushing:
+
+                ByteBuffer flushed = flush();
+                if(flushed!=null)
+                    return Result.success(flushed);
+                else // flush completed. needs new input
+                    return read_deflate_loop();
+
             case gzipTrailer:
 
                 byte[] gzip_trailer = trailer(crc.getValue(), deflater.getBytesRead());
@@ -125,9 +156,13 @@ public class GzipByteSource implements ByteSource
     Async<ByteBuffer> read_deflate_loop()
     {
         // in case of origin.read() error, it may be recoverable, state==reading
-        return _Asyncs.scan(origin::read,
+        return _Asyncs.scan(this::nextInput,
             obb ->
             {
+                if(obb==FLUSH) // origin stalls
+                    return flush(); // not null
+                unflushed = true;
+
                 // set input
                 int len = obb.remaining();
                 byte[] array;
@@ -167,6 +202,52 @@ public class GzipByteSource implements ByteSource
             });
     }
 
+    static final ByteBuffer FLUSH = ByteBuffer.allocate(0);
+    Async<ByteBuffer> pendingRead; // an origin read that stalled
+    boolean unflushed; // some input has been given to deflater since last flush
+
+    // input for read_deflate_loop
+    Async<ByteBuffer> nextInput()
+    {
+        Async<ByteBuffer> read = pendingRead;
+        pendingRead = null;
+        if(read==null)
+            read = origin.read();
+        if(syncFlush && unflushed && !read.isCompleted())
+        {
+            // the origin stalls. flush what we have so far, instead of waiting.
+            // continue with this read after the flush
+            pendingRead = read;
+            return Result.success(FLUSH);
+        }
+        return read;
+    }
+
+    // state==reading, i.e. all inputs are consumed by deflater.
+    // next state is set before returning.
+    // return null if all output is drained. (state==reading)
+    ByteBuffer flush()
+    {
+        unflushed = false;
+
+        if(outputBuffer==null)
+            outputBuffer = new byte[outputBufferCap];
+
+        int outputLength = deflater.deflate(outputBuffer, 0, outputBufferCap, Deflater.SYNC_FLUSH);
+        // the 1st flush after some input produces at least a few bytes (the empty stored block)
+        if(outputLength==0)
+        {
+            state = State.reading;
+            return null; // outputBuffer is kept
+        }
+        // if outputBuffer is full, there may be more flushed output
+        state = (outputLength==outputBufferCap) ? State.flushing : State.reading;
+
+        ByteBuffer bb = ByteBuffer.wrap(outputBuffer, 0, outputLength);
+        outputBuffer = null;
+        return bb;
+    }
+
     // next state is set before returning
     // return null if need more inputs. (state==reading)
     ByteBuffer deflate()
@@ -268,15 +349,24 @@ public class GzipByteSource implements ByteSource
             return Async.VOID;
         state = State.closed;
 
-        origin.close();
+        ByteSource originL = origin;
         origin=null;
+        if(pendingRead==null)
+            originL.close();
+        else // can't close origin during read pending; only after read is completed
+        {
+            pendingRead.cancel(new Exception("closed"));
+            pendingRead.onCompletion(result ->
+                originL.close());
+            pendingRead=null;
+        }
 
         if(outputBuffer!=null)
             outputBuffer=null;
 
         if(deflater!=null)
         {
-            deflater.end(); // free resources
+            _ZipPool.release(deflater, compressionLevel); // reset and reused; or end() to free resources
             deflater=null;
             crc=null;
         }
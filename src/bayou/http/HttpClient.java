@@ -401,6 +401,24 @@ public class HttpClient
     }
     Async<HttpResponse> send1(HttpRequest request, TcpAddress dest, boolean sendAbsUri)
     {
+        if(connMan.h2Applicable(dest, sendAbsUri))
+        {
+            Object h2 = connMan.getH2(dest);
+            if(h2 instanceof HttpClientH2Conn)
+                return sendH2((HttpClientH2Conn)h2, request, dest);
+            if(h2 instanceof Promise)
+            {
+                // connecting. don't propagate cancellation to the shared promise
+                @SuppressWarnings("unchecked")
+                Promise<HttpClientH2Conn> connecting = (Promise<HttpClientH2Conn>)h2;
+                Promise<HttpClientH2Conn> promise = new Promise<>();
+                connecting.onCompletion(promise::complete);
+                return promise.then(conn -> conn!=null? sendH2(conn, request, dest) : send1(request, dest, false));
+                // conn==null: server doesn't accept h2. send1() again will use HTTP/1.1
+            }
+            // NO_H2
+        }
+
         // get a conn for dest
         // do the rest of work (send2) on conn's selector thread
 
@@ -426,6 +444,23 @@ public class HttpClient
         return execOn(tcpClientR.getExecutor(), () ->
             connMan.newConn(dest, tcpClientR, sendAbsUri).then(conn -> send2(conn, request)));
     }
+    Async<HttpResponse> sendH2(HttpClientH2Conn conn, HttpRequest request, TcpAddress dest)
+    {
+        if(conn.executor==Thread.currentThread())
+            return sendH2b(conn, request, dest);
+        else
+            return execOn(conn.executor, () -> sendH2b(conn, request, dest));
+    }
+    // on conn's selector thread
+    Async<HttpResponse> sendH2b(HttpClientH2Conn conn, HttpRequest request, TcpAddress dest)
+    {
+        Async<HttpResponse> result = conn.send(request);
+        if(result==null) // conn is closing, and was removed from connMan. a new conn will be created.
+            return send1(request, dest, false);
+        return result;
+        // response body is fed by the connection, which is shared, and is freed on its own.
+    }
+
     // on conn's selector thread
     Async<HttpResponse> send2(HttpClientConnection conn, HttpRequest request)
     {
@@ -61,6 +61,7 @@ import static _bayou._tmp._Util.require;
  *         {@link #autoDecompress(boolean) autoDecompress} ,
  *         {@link #autoRedirectMax(int) autoRedirectMax} ,
  *         {@link #cookieStorage(CookieStorage) cookieStorage} ,
+ *         {@link #http2(boolean) http2} ,
  *         etc.
  *     </dd>
  *     <dt>Logging</dt>
@@ -563,6 +564,35 @@ public final class HttpClientConf implements Cloneable
 
 
 
+    boolean http2 = false;
+    /**
+     * Whether to use HTTP/2 for https requests.
+     * <p><code>
+     *     default: false
+     * </code></p>
+     * <p>
+     *     If enabled, HttpClient offers "h2" through TLS ALPN when connecting to an https server.
+     *     If the server accepts it, requests to that server are multiplexed as concurrent streams
+     *     over a single connection; otherwise HttpClient falls back to HTTP/1.1 for that server.
+     * </p>
+     * <p>
+     *     HTTP/2 is not used for plain http requests, requests through a {@link #proxy(HttpProxy) proxy},
+     *     or if {@link #keepAliveTimeout(java.time.Duration) keepAliveTimeout} is null.
+     *     ALPN requires JDK 9+ (or JDK 8u252+); on older JDKs this option has no effect.
+     * </p>
+     * <p>
+     *     Responses received over HTTP/2 have {@link HttpResponse#httpVersion() httpVersion} "2.0".
+     * </p>
+     * @return `this`
+     */
+    public HttpClientConf http2(boolean http2)
+    {
+        this.http2 = http2;
+        return this;
+    }
+
+
+
 
 
 
@@ -744,6 +774,10 @@ public final class HttpClientConf implements Cloneable
     {
         return cookieStorage;
     }
+    public boolean get_http2()
+    {
+        return http2;
+    }
     public Duration get_keepAliveTimeout()
     {
         return keepAliveTimeout;
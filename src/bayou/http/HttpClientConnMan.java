@@ -7,6 +7,9 @@ import bayou.async.Promise;
 import bayou.ssl.SslChannel2Connection;
 import bayou.tcp.*;
 import bayou.util.Result;
+import bayou.util.function.ConsumerX;
+
+import javax.net.ssl.SSLEngine;
 
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -26,6 +29,8 @@ class HttpClientConnMan
 
     SslChannel2Connection sslChannel2Connection;
 
+    SslChannel2Connection sslChannel2ConnectionH2; // offers "h2" in ALPN. null if HTTP/2 is not enabled
+
 
     HttpClientConnMan(HttpClient httpClient) throws Exception
     {
@@ -35,6 +40,16 @@ class HttpClientConnMan
         this.tcpChannel2Connection = new TcpChannel2Connection(conf.readBufferSize, conf.writeBufferSize);
         this.sslChannel2Connection = new SslChannel2Connection(true, conf.sslContext, conf.x_sslEngineConf());
 
+        if(conf.http2 && _Alpn.isSupported())
+        {
+            ConsumerX<SSLEngine> engineConf = conf.x_sslEngineConf();
+            this.sslChannel2ConnectionH2 = new SslChannel2Connection(true, conf.sslContext, engine->
+            {
+                _Alpn.setProtocols(engine, "h2", "http/1.1");
+                engineConf.accept(engine);
+            });
+        }
+
         if(conf.tunnels.length>0)
             this.tunnels = new _Array2ReadOnlyList<TcpTunnel>(conf.tunnels);
 
@@ -225,26 +240,27 @@ class HttpClientConnMan
     Async<HttpClientConnection> newConn(TcpAddress dest, TcpClient tcpClient, boolean sendAbsoluteUri)
     {
         // inside tcpClient.executor
-        return createConnectionChain(dest, tcpClient)
+        return createConnectionChain(dest, tcpClient, false)
             .map( tcpConn->new HttpClientConnection(dest, tcpConn, sendAbsoluteUri, conf, false) );
     }
-    Async<TcpConnection> createConnectionChain(TcpAddress finalHop, TcpClient tcpClient)
+    // h2: offer "h2" in ALPN to finalHop
+    Async<TcpConnection> createConnectionChain(TcpAddress finalHop, TcpClient tcpClient, boolean h2)
     {
         // create an tcp connection, possibly through tunnels, to finalHop
         if(tunnels==null) // most likely.
-            return tcpConnect(finalHop, tcpClient);
+            return tcpConnect(finalHop, tcpClient, h2);
 
-        return tcpConnect(tunnels.get(0).address(), tcpClient)
-            .then(conn -> tunnelTo(conn, 0, finalHop));
+        return tcpConnect(tunnels.get(0).address(), tcpClient, false)
+            .then(conn -> tunnelTo(conn, 0, finalHop, h2));
     }
-    Async<TcpConnection> tcpConnect(TcpAddress hop, TcpClient tcpClient)
+    Async<TcpConnection> tcpConnect(TcpAddress hop, TcpClient tcpClient, boolean h2)
     {
         return _Dns
             .resolve(hop.host())
             .then( ip->tcpClient.connect(hop.host(), ip, hop.port()) )
-            .then( tcpChann -> tcpChann2Conn(tcpChann, hop.ssl()));
+            .then( tcpChann -> tcpChann2Conn(tcpChann, hop.ssl(), h2));
     }
-    Async<TcpConnection> tunnelTo(TcpConnection tcpConn, int iTunnel, TcpAddress finalHop)
+    Async<TcpConnection> tunnelTo(TcpConnection tcpConn, int iTunnel, TcpAddress finalHop, boolean h2)
     {
         // we have a tcp conn to the tunnel
         // now tunnel to the next hop (which could be another tunnel)
@@ -254,30 +270,126 @@ class HttpClientConnMan
         Async<TcpConnection> result = tunnels.get(iTunnel)
             .tunnelTo(tcpConn, nextHop.host(), nextHop.port());
         if(nextHop.ssl()) // perform SSL handshake on tcpConn (which could be ssl itself)
-            result = result.then(_tcpConn->tcpConn2ssl(_tcpConn, nextHop.host(), nextHop.port()));
+            result = result.then(_tcpConn->tcpConn2ssl(_tcpConn, nextHop.host(), nextHop.port(), h2 && lastTunnel));
         if(!lastTunnel)
-            result = result.then(_tcpConn->tunnelTo(_tcpConn, iNextTunnel, finalHop));
+            result = result.then(_tcpConn->tunnelTo(_tcpConn, iNextTunnel, finalHop, h2));
         return result;
     }
 
 
-    Async<TcpConnection> tcpChann2Conn(TcpChannel tcpChann, boolean ssl)
+    Async<TcpConnection> tcpChann2Conn(TcpChannel tcpChann, boolean ssl, boolean h2)
     {
         if(!ssl)
             return Async.success(tcpChannel2Connection.convert(tcpChann)); // won't fail
         else
-            return sslChannel2Connection.convert(tcpChann).covary();
+            return ssl2Conn(h2).convert(tcpChann).covary();
         // [close on exception] - if ssl fails, tcpChann is automatically closed
     }
 
-    Async<TcpConnection> tcpConn2ssl(TcpConnection tcpConn, String peerHost, int peerPort)
+    Async<TcpConnection> tcpConn2ssl(TcpConnection tcpConn, String peerHost, int peerPort, boolean h2)
     {
         assert tcpConn instanceof _TcpConn2Chann;
         TcpChannel chann = ((_TcpConn2Chann)tcpConn).toChann(peerHost, peerPort);
         // it's important to set peerHost here for SSL host name verification.
 
-        return sslChannel2Connection.convert(chann).covary();
+        return ssl2Conn(h2).convert(chann).covary();
         // [close on exception] - if ssl fails, chann is automatically closed
     }
 
+    SslChannel2Connection ssl2Conn(boolean h2)
+    {
+        return h2? sslChannel2ConnectionH2 : sslChannel2Connection;
+    }
+
+
+
+    // HTTP/2
+    //##############################################################################################################
+
+    // each TcpAddress is mapped to one of
+    //     Promise<HttpClientH2Conn> - connecting. succeeds with null if the server doesn't accept h2.
+    //     HttpClientH2Conn          - shared by all requests to the dest
+    //     NO_H2                     - the server doesn't accept h2; use HTTP/1.1 from now on.
+    // no entry - HTTP/2 is not tried yet; or the previous connection is closing.
+    final HashMap<TcpAddress, Object> h2Conns = new HashMap<>();  // synchronized(h2Conns)
+
+    static final Object NO_H2 = "NO_H2";
+
+    boolean h2Applicable(TcpAddress dest, boolean sendAbsUri)
+    {
+        // not through proxy; the connection would be to the proxy, not to dest.
+        // HTTP/2 connections are long-lived; not without keep-alive.
+        return sslChannel2ConnectionH2!=null && dest.ssl() && !sendAbsUri && conf.keepAliveTimeout!=null;
+    }
+
+    Object getH2(TcpAddress dest)
+    {
+        synchronized (h2Conns)
+        {
+            Object h2 = h2Conns.get(dest);
+            if(h2==null) // we are the first. start connecting.
+            {
+                Promise<HttpClientH2Conn> promise = new Promise<>();
+                h2Conns.put(dest, promise);
+                connectH2(dest, promise);
+                h2 = promise;
+            }
+            return h2;
+        }
+    }
+
+    void removeH2(TcpAddress dest, Object h2)
+    {
+        synchronized (h2Conns)
+        {
+            if(h2Conns.get(dest)==h2)
+                h2Conns.remove(dest);
+        }
+    }
+
+    // the connection is shared; it's not cancelled if some of the requests waiting on it are cancelled.
+    void connectH2(TcpAddress dest, Promise<HttpClientH2Conn> promise)
+    {
+        TcpClient tcpClient0 = httpClient.getCurrTcpClient();
+        TcpClient tcpClient = tcpClient0!=null? tcpClient0 : httpClient.getRandomTcpClient();
+        tcpClient.getExecutor().execute(() ->
+        {
+            Async<TcpConnection> connecting = createConnectionChain(dest, tcpClient, true);
+            _Asyncs.onCompletion(connecting, tcpClient.getExecutor(), r -> onConnectH2(dest, promise, r));
+        });
+    }
+
+    // on the selector thread
+    void onConnectH2(TcpAddress dest, Promise<HttpClientH2Conn> promise, Result<TcpConnection> result)
+    {
+        TcpConnection tcpConn = result.getValue();
+        if(tcpConn==null) // connect failed. next request will try again
+        {
+            removeH2(dest, promise);
+            promise.fail(result.getException());
+            return;
+        }
+
+        if("h2".equals(_Alpn.getProtocol(tcpConn)))
+        {
+            HttpClientH2Conn conn = new HttpClientH2Conn(this, dest, tcpConn);
+            synchronized (h2Conns)
+            {
+                h2Conns.put(dest, conn);
+            }
+            promise.succeed(conn);
+        }
+        else
+        {
+            // HTTP/1.1 connection. put it in cache, it'll be checked out by a waiting request.
+            HttpClientConnection conn = new HttpClientConnection(dest, tcpConn, false, conf, false);
+            checkIn(conn);
+            synchronized (h2Conns)
+            {
+                h2Conns.put(dest, NO_H2);
+            }
+            promise.succeed(null);
+        }
+    }
+
 }
@@ -0,0 +1,1307 @@
+package bayou.http;
+
+import _bayou._async._Asyncs;
+import _bayou._http._Hpack;
+import _bayou._http._HttpUtil;
+import _bayou._http._Rfc6265;
+import _bayou._tmp._ByteBufferUtil;
+import _bayou._tmp._TrafficDumpWrapper;
+import bayou.async.Async;
+import bayou.async.Promise;
+import bayou.bytes.ByteSource;
+import bayou.mime.HeaderMap;
+import bayou.mime.Headers;
+import bayou.ssl.SslConnection;
+import bayou.tcp.TcpAddress;
+import bayou.tcp.TcpConnection;
+import bayou.util.End;
+import bayou.util.Result;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeoutException;
+
+import static bayou.http.ImplH2Conn.*;
+
+// HTTP/2 connection, client side. RFC 7540
+//
+// created by HttpClientConnMan when the server accepts "h2" in ALPN. there is one connection per dest,
+// shared by all requests to the dest; each request is sent on a new stream.
+//
+// all code runs on the selector thread of tcpConn; callers dispatch to tcpConn.getExecutor().
+// no locking is needed, except for the connection map in HttpClientConnMan.
+//
+// frames are read and written in the same way as ImplH2Conn (server side); constants and frame helpers are shared.
+// server push is disabled by SETTINGS_ENABLE_PUSH=0. we don't send priority.
+class HttpClientH2Conn
+{
+    final HttpClientConnMan connMan;
+    final HttpClientConf conf;
+    final TcpAddress dest;
+    final TcpConnection tcpConn;
+    final Executor executor;
+
+    final _TrafficDumpWrapper dump;
+
+    final _Hpack.Decoder hpackDecoder = new _Hpack.Decoder(4096);
+    final _Hpack.Encoder hpackEncoder = new _Hpack.Encoder(4096);
+
+    final HashMap<Integer,Stream> streams = new HashMap<>();
+    final ArrayDeque<Stream> waiting = new ArrayDeque<>(); // streams not started, due to peerMaxStreams
+    int nextStreamId = 1;
+    int peerMaxStreams = 100; // till server SETTINGS. RFC 7540 recommends no less than 100
+
+    long sendWindow = INITIAL_WINDOW; // connection level
+    int recvUnacked; // connection level DATA bytes received, not yet acknowledged by WINDOW_UPDATE
+    int peerInitialWindow = INITIAL_WINDOW;
+
+    boolean settingsReceived;
+    boolean accepting = true;  // new requests can be sent on this connection
+    boolean goAwaySent;
+    boolean closing;  // GOAWAY and FIN queued; close after flush
+    boolean closed;
+
+    static final long outboundBufferSize = 16*1024; // same as HttpClientOutbound
+
+    // on tcpConn executor
+    HttpClientH2Conn(HttpClientConnMan connMan, TcpAddress dest, TcpConnection tcpConn)
+    {
+        this.connMan = connMan;
+        this.conf = connMan.conf;
+        this.dest = dest;
+        this.tcpConn = tcpConn;
+        this.executor = tcpConn.getExecutor();
+
+        this.dump = conf.trafficDumpWrapper;
+        if(dump!=null)
+            dump.print(connId(), " open [",
+                dest.host(), ":", ""+dest.port(), " SSL] HTTP/2 ==\r\n");
+
+        tcpConn.queueWrite(ByteBuffer.wrap(PREFACE));
+        byte[] payload = new byte[6];
+        putSetting(payload, 0, SETTINGS_ENABLE_PUSH, 0);
+        queueFrame(tcpConn, SETTINGS, 0, 0, payload, 0, payload.length);
+
+        read(); // flushes
+    }
+
+    String connId()
+    {
+        return "== connection #"+ tcpConn.getId();
+    }
+
+
+    // on tcpConn executor. return null if this connection no longer accepts requests;
+    // caller should try another connection.
+    Async<HttpResponse> send(HttpRequest request)
+    {
+        if(!accepting)
+            return null;
+
+        ArrayList<String> fields;
+        try
+        {
+            fields = headFields(request); // throws
+        }
+        catch (Exception e) // illegal header
+        {
+            return Async.failure(e);
+        }
+
+        Stream stream = new Stream(request, fields);
+        if(streams.size()<peerMaxStreams)
+            stream.start();
+        else
+            waiting.addLast(stream);
+        return stream.promise;
+    }
+
+    // request head as HTTP/2 header fields; name, value, name, value, ...
+    // similar to HttpClientOutbound.makeHead()
+    static ArrayList<String> headFields(HttpRequest request) throws IllegalArgumentException
+    {
+        HeaderMap headers = new HeaderMap();
+        for(Map.Entry<String,String> entry : request.headers().entrySet())
+        {
+            String name = entry.getKey();
+            String value = entry.getValue();
+            // we don't trust name/value. check them.
+            _HttpUtil.checkHeader(name, value);
+            headers.put(name, value);
+        }
+
+        HttpEntity entity = request.entity();
+        Long len = null;
+        if(entity!=null)
+        {
+            _HttpUtil.copyEntityHeaders(entity, headers);
+            len = entity.contentLength();
+        }
+        // if length is unknown, the body ends with END_STREAM; there's no chunked coding in HTTP/2.
+        if(len!=null)
+            headers.xPut(Headers.Content_Length, len.toString());
+        else
+            headers.xRemove(Headers.Content_Length);
+
+        ArrayList<String> fields = new ArrayList<>(8+2*headers.size());
+        fields.add(":method");    fields.add(request.method());
+        fields.add(":scheme");    fields.add("https");
+        fields.add(":authority"); fields.add(request.host());
+        fields.add(":path");      fields.add(_HttpUtil.target(request, false));
+        for(Map.Entry<String,String> entry : headers.entrySet())
+        {
+            String name = entry.getKey().toLowerCase();
+            String value = entry.getValue();
+            switch(name)
+            {
+                case "host": // replaced by :authority
+                case "connection": case "keep-alive": case "proxy-connection":
+                case "transfer-encoding": case "upgrade":
+                    continue; // connection-specific; not allowed in HTTP/2
+                case "te":
+                    if(!value.equalsIgnoreCase("trailers"))
+                        continue;
+                    break;
+                default:
+            }
+            fields.add(name);
+            fields.add(value);
+        }
+        return fields;
+    }
+
+
+    // read flow ===============================================================================================
+
+    final ByteBuffer inBuffer = ByteBuffer.allocate(FRAME_HEAD+MAX_FRAME_SIZE); // in write mode
+
+    void read()
+    {
+        // yield after some reads, to be fair to other connections; server may keep sending frames
+        for(int i=0; i<16; i++)
+        {
+            ByteBuffer bb;
+            try
+            {
+                bb = tcpConn.read(); // throws
+            }
+            catch (Exception e)
+            {
+                close(null, "error while reading: ", e);
+                return;
+            }
+
+            if(bb==TcpConnection.STALL)
+            {
+                flush();
+                if(!closed)
+                    awaitReadable();
+                return;
+            }
+
+            if(bb==TcpConnection.TCP_FIN || bb==SslConnection.SSL_CLOSE_NOTIFY)
+            {
+                close(null, "closed by server", null);
+                return;
+            }
+
+            try
+            {
+                onBytes(bb);
+            }
+            catch (H2Error e) // connection error
+            {
+                goAway(e.code, e.getMessage());
+                return;
+            }
+            catch (Exception|Error e) // from our code
+            {
+                goAway(INTERNAL_ERROR, "unexpected error: "+e);
+                return;
+            }
+
+            if(goAwaySent)  // stop reading
+            {
+                flush();
+                return;
+            }
+        }
+
+        flush();
+        executor.execute(this::read);
+    }
+
+    void awaitReadable()
+    {
+        // if there are no streams, the connection is idle; we'll close it after keepAliveTimeout.
+        // otherwise, just wait again after timeout. response body read() has its own timeout.
+        tcpConn.awaitReadable(/*accepting*/false).timeout(conf.keepAliveTimeout)
+            .onCompletion(result -> {
+                if(closed)
+                    return;
+                Exception error = result.getException();
+                if(error==null)
+                    read();
+                else if(!(error instanceof TimeoutException))
+                    close(null, "error while waiting for frames: ", error);
+                else if(streams.isEmpty() && waiting.isEmpty())
+                    goAway(NO_ERROR, "keep alive timeout");
+                else
+                    awaitReadable();
+            });
+    }
+
+    void onBytes(ByteBuffer bb) throws H2Error
+    {
+        while(bb.hasRemaining())
+        {
+            int n = Math.min(bb.remaining(), inBuffer.remaining());
+            inBuffer.put(_ByteBufferUtil.slice(bb, n));
+            inBuffer.flip();
+            try
+            {
+                parseFrames();
+            }
+            finally
+            {
+                inBuffer.compact();
+            }
+            if(goAwaySent)
+                return;
+        }
+    }
+
+    void parseFrames() throws H2Error
+    {
+        byte[] array = inBuffer.array();
+        int offset = inBuffer.arrayOffset();
+
+        while(inBuffer.remaining()>=FRAME_HEAD)
+        {
+            int p = inBuffer.position();
+            int length = (array[offset+p]&0xff)<<16 | (array[offset+p+1]&0xff)<<8 | (array[offset+p+2]&0xff);
+            if(length>MAX_FRAME_SIZE)
+                throw connError(FRAME_SIZE_ERROR, "frame too large: "+length);
+            if(inBuffer.remaining()<FRAME_HEAD+length)
+                return;
+
+            int type = array[offset+p+3]&0xff;
+            int flags = array[offset+p+4]&0xff;
+            int streamId = inBuffer.getInt(p+5) & 0x7fff_ffff;
+            inBuffer.position(p+FRAME_HEAD+length);
+
+            try
+            {
+                onFrame(type, flags, streamId, array, offset+p+FRAME_HEAD, length);
+            }
+            catch (H2Error e)
+            {
+                if(e.streamId==0)
+                    throw e;
+                resetStream(e.streamId, e.code, e.getMessage());
+            }
+            if(goAwaySent)
+                return;
+        }
+    }
+
+    int headersStreamId; // non-zero if expecting CONTINUATION
+    boolean headersEndStream;
+    final Bytes headerBlock = new Bytes();
+
+    void onFrame(int type, int flags, int streamId, byte[] bytes, int off, int len) throws H2Error
+    {
+        if(headersStreamId!=0 && type!=CONTINUATION)
+            throw connError(PROTOCOL_ERROR, "expect CONTINUATION");
+        if(!settingsReceived && type!=SETTINGS)
+            throw connError(PROTOCOL_ERROR, "expect SETTINGS");
+
+        switch(type)
+        {
+            case DATA          : onData(flags, streamId, bytes, off, len); break;
+            case HEADERS       : onHeaders(flags, streamId, bytes, off, len); break;
+            case PRIORITY      : break; // ignored
+            case RST_STREAM    : onRstStream(streamId, bytes, off, len); break;
+            case SETTINGS      : onSettings(flags, streamId, bytes, off, len); break;
+            case PUSH_PROMISE  : throw connError(PROTOCOL_ERROR, "PUSH_PROMISE while push is disabled");
+            case PING          : onPing(flags, streamId, bytes, off, len); break;
+            case GOAWAY        : onGoAway(streamId, bytes, off, len); break;
+            case WINDOW_UPDATE : onWindowUpdate(streamId, bytes, off, len); break;
+            case CONTINUATION  : onContinuation(flags, streamId, bytes, off, len); break;
+            default: // unknown frame types are ignored
+        }
+    }
+
+    // the stream that a frame is on. null if the stream was closed.
+    Stream stream(int streamId, String frame) throws H2Error
+    {
+        if(streamId==0)
+            throw connError(PROTOCOL_ERROR, frame+" on stream 0");
+        Stream stream = streams.get(streamId);
+        if(stream==null && ((streamId&1)==0 || streamId>=nextStreamId))
+            throw connError(PROTOCOL_ERROR, frame+" on idle stream");
+        return stream;
+    }
+
+    void onData(int flags, int streamId, byte[] bytes, int off, int len) throws H2Error
+    {
+        Stream stream = stream(streamId, "DATA");
+
+        int frameLength = len; // padding counts for flow control
+        if((flags&PADDED)!=0)
+        {
+            len = unpad(bytes, off, len);
+            off++;
+        }
+
+        // connection level window. acknowledged immediately, so that one stream won't block others.
+        // stream level window is acknowledged after app reads the data.
+        recvUnacked += frameLength;
+        if(recvUnacked>INITIAL_WINDOW)
+            throw connError(FLOW_CONTROL_ERROR, "connection window exceeded");
+        if(recvUnacked>=INITIAL_WINDOW/2)
+        {
+            queueWindowUpdate(tcpConn, 0, recvUnacked);
+            recvUnacked = 0;
+        }
+
+        if(stream!=null)
+            stream.onData(bytes, off, len, frameLength, (flags&END_STREAM)!=0); // throws
+    }
+
+    void onHeaders(int flags, int streamId, byte[] bytes, int off, int len) throws H2Error
+    {
+        if(streamId==0)
+            throw connError(PROTOCOL_ERROR, "HEADERS on stream 0");
+        int end = off+len;
+        if((flags&PADDED)!=0)
+        {
+            end = off+1+unpad(bytes, off, len);
+            off++;
+        }
+        if((flags&PRIORITY_FLAG)!=0)
+        {
+            if(end-off<5)
+                throw connError(FRAME_SIZE_ERROR, "invalid HEADERS frame");
+            off += 5; // ignore priority
+        }
+
+        headersStreamId = streamId;
+        headersEndStream = (flags&END_STREAM)!=0;
+        headerBlock.reset();
+        appendHeaderBlock(bytes, off, end-off);
+
+        if((flags&END_HEADERS)!=0)
+            onHeaderBlock();
+    }
+
+    void onContinuation(int flags, int streamId, byte[] bytes, int off, int len) throws H2Error
+    {
+        if(headersStreamId==0 || streamId!=headersStreamId)
+            throw connError(PROTOCOL_ERROR, "unexpected CONTINUATION");
+
+        appendHeaderBlock(bytes, off, len);
+
+        if((flags&END_HEADERS)!=0)
+            onHeaderBlock();
+    }
+
+    void appendHeaderBlock(byte[] bytes, int off, int len) throws H2Error
+    {
+        // compressed size; a loose limit. the decoded size is checked against responseHeadTotalMaxLength.
+        if(headerBlock.size()+len > 2*conf.responseHeadTotalMaxLength+1024)
+            throw connError(ENHANCE_YOUR_CALM, "header block too large");
+        headerBlock.write(bytes, off, len);
+    }
+
+    void onHeaderBlock() throws H2Error
+    {
+        int streamId = headersStreamId;
+        headersStreamId = 0;
+
+        // must decode even if we'll ignore the headers, to keep the dynamic table in sync
+        ArrayList<String> fields = new ArrayList<>();
+        try
+        {
+            hpackDecoder.decode(headerBlock.array(), 0, headerBlock.size(), (name, value) -> {
+                fields.add(name);
+                fields.add(value);
+            });
+        }
+        catch (Exception e)
+        {
+            throw connError(COMPRESSION_ERROR, "header decoding error: "+e.getMessage());
+        }
+
+        Stream stream = stream(streamId, "HEADERS");
+        if(stream!=null)
+            stream.onHeaders(fields, headersEndStream); // throws
+    }
+
+    void onRstStream(int streamId, byte[] bytes, int off, int len) throws H2Error
+    {
+        if(len!=4)
+            throw connError(FRAME_SIZE_ERROR, "invalid RST_STREAM frame");
+        Stream stream = stream(streamId, "RST_STREAM");
+        if(stream==null)
+            return;
+
+        int code = getInt(bytes, off);
+        streams.remove(streamId);
+        Exception reason = new IOException("stream reset by server, error code="+code);
+        if(code==REFUSED_STREAM) // not processed by server
+            stream.retry(reason);
+        else
+            stream.abort(reason);
+        afterStreamRemoved();
+    }
+
+    void onSettings(int flags, int streamId, byte[] bytes, int off, int len) throws H2Error
+    {
+        if(streamId!=0)
+            throw connError(PROTOCOL_ERROR, "SETTINGS on stream "+streamId);
+        if((flags&ACK)!=0)
+        {
+            if(len!=0)
+                throw connError(FRAME_SIZE_ERROR, "invalid SETTINGS ACK");
+            return;
+        }
+        if(len%6!=0)
+            throw connError(FRAME_SIZE_ERROR, "invalid SETTINGS frame");
+
+        for(int i=off; i<off+len; i+=6)
+        {
+            int id = (bytes[i]&0xff)<<8 | (bytes[i+1]&0xff);
+            long value = getInt(bytes, i+2) & 0xffff_ffffL;
+            switch(id)
+            {
+                case SETTINGS_HEADER_TABLE_SIZE:
+                    hpackEncoder.setMaxTableSize((int)Math.min(value, MAX_WINDOW));
+                    break;
+
+                case SETTINGS_ENABLE_PUSH:
+                    if(value>1)
+                        throw connError(PROTOCOL_ERROR, "invalid SETTINGS_ENABLE_PUSH");
+                    break;
+
+                case SETTINGS_MAX_CONCURRENT_STREAMS:
+                    peerMaxStreams = (int)Math.min(value, MAX_WINDOW);
+                    break;
+
+                case SETTINGS_INITIAL_WINDOW_SIZE:
+                    if(value>MAX_WINDOW)
+                        throw connError(FLOW_CONTROL_ERROR, "invalid SETTINGS_INITIAL_WINDOW_SIZE");
+                    int delta = (int)value - peerInitialWindow;
+                    peerInitialWindow = (int)value;
+                    for(Stream stream : streams.values())
+                    {
+                        stream.sendWindow += delta;
+                        if(stream.sendWindow>MAX_WINDOW)
+                            throw connError(FLOW_CONTROL_ERROR, "stream window overflow");
+                        if(delta>0)
+                            stream.checkWriteReady();
+                    }
+                    break;
+
+                case SETTINGS_MAX_FRAME_SIZE:
+                    if(value<16384 || value>16777215)
+                        throw connError(PROTOCOL_ERROR, "invalid SETTINGS_MAX_FRAME_SIZE");
+                    // we don't send frames larger than the default anyway
+                    break;
+
+                default: // MAX_HEADER_LIST_SIZE: advisory. unknown settings are ignored.
+            }
+        }
+
+        settingsReceived = true;
+        queueFrame(tcpConn, SETTINGS, ACK, 0, null, 0, 0);
+        startWaiting();
+    }
+
+    void onPing(int flags, int streamId, byte[] bytes, int off, int len) throws H2Error
+    {
+        if(streamId!=0)
+            throw connError(PROTOCOL_ERROR, "PING on stream "+streamId);
+        if(len!=8)
+            throw connError(FRAME_SIZE_ERROR, "invalid PING frame");
+        if((flags&ACK)==0)
+            queueFrame(tcpConn, PING, ACK, 0, bytes, off, 8);
+    }
+
+    void onGoAway(int streamId, byte[] bytes, int off, int len) throws H2Error
+    {
+        if(streamId!=0)
+            throw connError(PROTOCOL_ERROR, "GOAWAY on stream "+streamId);
+        if(len<8)
+            throw connError(FRAME_SIZE_ERROR, "invalid GOAWAY frame");
+
+        // server won't process streams after lastStreamId; they can be retried on a new connection.
+        // we'll close the connection after the other streams are done.
+        int lastStreamId = getInt(bytes, off) & 0x7fff_ffff;
+        stopAccepting();
+
+        Exception reason = new IOException("GOAWAY from server, error code="+getInt(bytes, off+4));
+        ArrayList<Stream> list = new ArrayList<>();
+        for(Stream stream : streams.values())
+            if(stream.id>lastStreamId)
+                list.add(stream);
+        for(Stream stream : list)
+        {
+            streams.remove(stream.id);
+            stream.retry(reason);
+        }
+        afterStreamRemoved();
+    }
+
+    void onWindowUpdate(int streamId, byte[] bytes, int off, int len) throws H2Error
+    {
+        if(len!=4)
+            throw connError(FRAME_SIZE_ERROR, "invalid WINDOW_UPDATE frame");
+        int increment = getInt(bytes, off) & 0x7fff_ffff;
+
+        if(streamId==0)
+        {
+            if(increment==0)
+                throw connError(PROTOCOL_ERROR, "WINDOW_UPDATE increment 0");
+            sendWindow += increment;
+            if(sendWindow>MAX_WINDOW)
+                throw connError(FLOW_CONTROL_ERROR, "connection window overflow");
+            return; // flush() will pump data
+        }
+
+        Stream stream = stream(streamId, "WINDOW_UPDATE");
+        if(stream==null)
+            return;
+        if(increment==0)
+            throw new H2Error(streamId, PROTOCOL_ERROR, "WINDOW_UPDATE increment 0");
+        stream.sendWindow += increment;
+        if(stream.sendWindow>MAX_WINDOW)
+            throw new H2Error(streamId, FLOW_CONTROL_ERROR, "stream window overflow");
+        stream.checkWriteReady();
+    }
+
+
+    // streams =================================================================================================
+
+    void stopAccepting()
+    {
+        if(!accepting)
+            return;
+        accepting = false;
+        connMan.removeH2(dest, this);
+        // new requests to dest will go to a new connection
+
+        for(Stream stream : waiting)
+            executor.execute(() -> stream.retry(new IOException("connection is closing")));
+        waiting.clear();
+    }
+
+    void startWaiting()
+    {
+        while(!waiting.isEmpty() && streams.size()<peerMaxStreams)
+            waiting.pollFirst().start();
+    }
+
+    // stream error
+    void resetStream(int streamId, int code, String message)
+    {
+        queueRstStream(tcpConn, streamId, code);
+        Stream stream = streams.remove(streamId);
+        if(stream!=null)
+            stream.abort(new IOException("stream error: "+message));
+        afterStreamRemoved();
+    }
+
+    void afterStreamRemoved()
+    {
+        startWaiting();
+
+        if(!accepting && streams.isEmpty() && !goAwaySent)
+            goAway(NO_ERROR, "connection is drained");
+    }
+
+
+    // write flow ==============================================================================================
+
+    // streams that have DATA to send
+    final ArrayDeque<Stream> writeReady = new ArrayDeque<>();
+
+    // produce DATA frames from ready streams, round-robin, one frame at a time.
+    void pumpData()
+    {
+        while(sendWindow>0 && !writeReady.isEmpty() && tcpConn.getWriteQueueSize()<outboundBufferSize)
+        {
+            Stream stream = writeReady.pollFirst();
+            stream.writeData(); // may add itself back to writeReady
+        }
+    }
+
+    boolean flushPending;
+    // called by streams after they queue frames. coalesce frames from multiple streams in one write.
+    void requestFlush()
+    {
+        if(flushPending || closed)
+            return;
+        flushPending = true;
+        executor.execute(()->
+        {
+            flushPending = false;
+            flush();
+        });
+    }
+
+    boolean awaitingWritable;
+
+    void flush()
+    {
+        if(closed || awaitingWritable)
+            return;
+
+        while(true)
+        {
+            if(!closing)
+                pumpData();
+
+            long remaining;
+            try
+            {
+                tcpConn.write(); // throws
+                remaining = tcpConn.getWriteQueueSize();
+            }
+            catch (Exception e)
+            {
+                close(null, "error while writing: ", e);
+                return;
+            }
+
+            if(remaining>0)
+            {
+                awaitingWritable = true;
+                // no timeout. it's up to higher layer to cancel the request. see HttpClientOutbound
+                tcpConn.awaitWritable()
+                    .onCompletion(result -> {
+                        awaitingWritable = false;
+                        if(closed)
+                            return;
+                        Exception error = result.getException();
+                        if(error!=null)
+                            close(null, "error while writing: ", error);
+                        else
+                            flush();
+                    });
+                return;
+            }
+
+            if(closing)
+            {
+                close(Duration.ofSeconds(1), goAwayReason, null);
+                return;
+            }
+
+            if(sendWindow<=0 || writeReady.isEmpty())
+                return;
+            // else, more DATA can be produced
+        }
+    }
+
+    String goAwayReason;
+
+    // graceful close; send GOAWAY, flush, then close.
+    void goAway(int code, String reason)
+    {
+        if(goAwaySent)
+            return;
+        goAwaySent = true;
+        goAwayReason = reason;
+
+        stopAccepting();
+        abortStreams(new IOException("connection closing: "+reason));
+
+        byte[] payload = new byte[8];
+        putInt(payload, 0, 0); // we don't accept pushed streams
+        putInt(payload, 4, code);
+        queueFrame(tcpConn, GOAWAY, 0, 0, payload, 0, 8);
+        tcpConn.queueWrite(SslConnection.SSL_CLOSE_NOTIFY);
+        tcpConn.queueWrite(TcpConnection.TCP_FIN);
+        closing = true;
+
+        flush();
+    }
+
+    void abortStreams(Exception reason)
+    {
+        if(streams.isEmpty())
+            return;
+        ArrayList<Stream> list = new ArrayList<>(streams.values());
+        streams.clear();
+        writeReady.clear();
+        for(Stream stream : list)
+            stream.abort(reason);
+    }
+
+    void close(Duration drainTimeout, String reason, Throwable exception)
+    {
+        if(closed)
+            return;
+        closed = true;
+
+        if(dump!=null)
+            dump.print(
+                connId(), " closed == ",
+                reason==null?"":reason,
+                exception==null?"":exception.toString(),
+                "\r\n"
+            );
+
+        stopAccepting();
+        abortStreams(new IOException("connection closed: "+(reason==null?"":reason)
+            +(exception==null?"":exception.toString())));
+
+        tcpConn.close(drainTimeout);
+    }
+
+
+    // stream ==================================================================================================
+
+    // a request-response exchange
+    class Stream
+    {
+        final HttpRequest request;
+        final ArrayList<String> fields; // request head
+        final Promise<HttpResponse> promise = new Promise<>();
+        int id;
+
+        boolean started;      // HEADERS sent
+        boolean remoteClosed; // END_STREAM received
+        boolean localClosed;  // END_STREAM sent
+        boolean done;         // both directions closed, or stream is aborted
+
+        long sendWindow;
+        int recvWindow = INITIAL_WINDOW;  // what server can still send
+        int recvUnacked;
+
+        // request body
+        ByteSource body;
+        long bodyLength = -1;
+        long bodyWritten;
+        Async<ByteBuffer> bodyPendingRead;
+        ByteBuffer pendingData;
+        boolean bodyEnd;
+        boolean inWriteQueue;
+
+        // response
+        HttpResponseImpl response;
+        ResponseBody responseBody; // null if response has no body
+        long contentLength = -1;
+        long bytesReceived;
+
+        Stream(HttpRequest request, ArrayList<String> fields)
+        {
+            this.request = request;
+            this.fields = fields;
+
+            promise.onCancel(reason -> executor.execute(() -> cancel(reason)));
+        }
+
+        String reqId()
+        {
+            return "== request #"+ tcpConn.getId()+"-"+id+" HTTP/2 ==\r\n";
+        }
+        String respId()
+        {
+            return "== response #"+ tcpConn.getId()+"-"+id+" HTTP/2 ==\r\n";
+        }
+
+        void start()
+        {
+            started = true;
+            id = nextStreamId;
+            nextStreamId += 2;
+            if(nextStreamId<0) // stream ids are exhausted
+                stopAccepting();
+            sendWindow = peerInitialWindow;
+            streams.put(id, this);
+
+            HttpEntity entity = request.entity();
+            if(entity!=null)
+            {
+                Long len = entity.contentLength();
+                bodyLength = len==null? -1 : len.longValue();
+                if(bodyLength!=0)
+                    body = entity.body();
+            }
+            boolean endStream = (body==null);
+
+            Bytes block = new Bytes();
+            hpackEncoder.beginBlock(block);
+            for(int i=0; i<fields.size(); i+=2)
+                hpackEncoder.encode(block, fields.get(i), fields.get(i+1));
+            queueHeaders(tcpConn, id, block, endStream);
+
+            if(dump!=null)
+            {
+                ArrayList<CharSequence> toDump = new ArrayList<>();
+                toDump.add(reqId());
+                for(int i=0; i<fields.size(); i+=2)
+                    toDump.add(fields.get(i)+": "+fields.get(i+1)+"\r\n");
+                toDump.add(endStream? "\r\n" : "<DATA>\r\n\r\n");
+                dump.print(toDump);
+            }
+
+            if(endStream)
+                localClosed = true;
+            else
+                readBody();
+            // we don't wait for 100-continue; the body is sent right away, within flow control windows.
+
+            requestFlush();
+        }
+
+        // send the request on another connection. the request was not processed by server.
+        void retry(Exception reason)
+        {
+            if(done)
+                return;
+            // if response is received, the request was processed; we must not send it again.
+            // abort() also aborts the response body, if any.
+            if(response!=null || started && request.entity()!=null) // body may have been consumed
+            {
+                abort(reason);
+                return;
+            }
+            done = true;
+            closeBody();
+
+            Async<HttpResponse> retry = connMan.httpClient.send1(request, dest, false);
+            retry.onCompletion(promise::complete);
+            promise.onCancel(retry::cancel);
+        }
+
+        void cancel(Exception reason)
+        {
+            if(done)
+                return;
+            if(!started)
+            {
+                waiting.remove(this);
+                done = true;
+                promise.fail(reason);
+                return;
+            }
+            reset(CANCEL, reason);
+        }
+
+        // reset by us
+        void reset(int code, Exception reason)
+        {
+            if(done)
+                return;
+            queueRstStream(tcpConn, id, code);
+            streams.remove(id);
+            abort(reason);
+            afterStreamRemoved();
+            requestFlush();
+        }
+
+        // stream is reset, or connection is closed
+        void abort(Exception reason)
+        {
+            if(responseBody!=null)
+                responseBody.abort(reason);
+
+            if(done)
+                return;
+            done = true;
+
+            pendingData = null;
+            closeBody();
+
+            if(!promise.isCompleted())
+                promise.fail(reason);
+        }
+
+        // both directions are closed
+        void checkDone()
+        {
+            if(done || !localClosed || !remoteClosed)
+                return;
+            done = true;
+
+            streams.remove(id);
+            afterStreamRemoved();
+        }
+
+
+        // request body ----------------------------------------------------------------------------------------
+
+        void readBody()
+        {
+            if(done)
+                return;
+
+            Async<ByteBuffer> readAsync = body.read();
+            bodyPendingRead = readAsync;
+            _Asyncs.onCompletion(readAsync, executor, this::onBodyRead);
+        }
+
+        void onBodyRead(Result<ByteBuffer> result)
+        {
+            bodyPendingRead = null;
+            if(done)
+                return;
+
+            ByteBuffer bb = result.getValue();
+            Exception error = result.getException();
+            if(error instanceof End)
+            {
+                if(bodyLength>=0 && bodyWritten<bodyLength)
+                {
+                    reset(CANCEL, new IOException(
+                        "request entity body is smaller than Content-Length. "+bodyWritten+"<"+bodyLength));
+                    return;
+                }
+                bodyEnd = true;
+            }
+            else if(error!=null)
+            {
+                reset(CANCEL, error);
+                return;
+            }
+            else if(bodyLength>=0 && bodyWritten+bb.remaining()>bodyLength)
+            {
+                reset(CANCEL, new IOException(
+                    "request entity body is larger than Content-Length. "+(bodyWritten+bb.remaining())+">"+bodyLength));
+                return;
+            }
+            else if(!bb.hasRemaining())
+            {
+                readBody();
+                return;
+            }
+            else
+            {
+                pendingData = bb;
+            }
+
+            checkWriteReady();
+            requestFlush();
+        }
+
+        void checkWriteReady()
+        {
+            if(inWriteQueue || done || localClosed)
+                return;
+            if(bodyEnd || pendingData!=null && sendWindow>0)
+            {
+                inWriteQueue = true;
+                writeReady.addLast(this);
+            }
+        }
+
+        // by pumpData(). write one DATA frame.
+        void writeData()
+        {
+            inWriteQueue = false;
+            if(done || localClosed)
+                return;
+
+            if(pendingData==null) // body end; empty DATA to end the stream
+            {
+                queueData(tcpConn, id, ByteBuffer.allocate(0), true);
+                localClosed = true;
+                closeBody();
+                checkDone();
+                return;
+            }
+
+            long n = Math.min(Math.min(pendingData.remaining(), MAX_FRAME_SIZE), Math.min(sendWindow, HttpClientH2Conn.this.sendWindow));
+            if(n<=0)
+                return; // await WINDOW_UPDATE
+            ByteBuffer data = _ByteBufferUtil.slice(pendingData, (int)n);
+            sendWindow -= n;
+            HttpClientH2Conn.this.sendWindow -= n;
+            bodyWritten += n;
+
+            boolean last = !pendingData.hasRemaining() && bodyWritten==bodyLength;
+            queueData(tcpConn, id, data, last);
+            if(last)
+            {
+                pendingData = null;
+                localClosed = true;
+                closeBody();
+                checkDone();
+                return;
+            }
+
+            if(pendingData.hasRemaining())
+            {
+                checkWriteReady();
+            }
+            else
+            {
+                pendingData = null;
+                executor.execute(this::readBody);
+            }
+        }
+
+        void closeBody()
+        {
+            if(body==null) // was closed
+                return;
+            ByteSource bodyL = body;
+            body = null;
+
+            if(bodyPendingRead==null)
+                bodyL.close();
+            else // can't close during read pending; only after read is completed
+            {
+                bodyPendingRead.cancel(new Exception("cancelled"));
+                bodyPendingRead.onCompletion(result ->
+                    bodyL.close());
+                bodyPendingRead = null;
+            }
+        }
+
+
+        // response --------------------------------------------------------------------------------------------
+
+        // fields: name, value, name, value, ...
+        void onHeaders(ArrayList<String> fields, boolean endStream) throws H2Error
+        {
+            if(remoteClosed)
+                throw new H2Error(id, STREAM_CLOSED, "HEADERS after END_STREAM");
+
+            if(response!=null) // trailers. must end the stream. ignored.
+            {
+                if(!endStream)
+                    throw new H2Error(id, PROTOCOL_ERROR, "trailers without END_STREAM");
+                onData(null, 0, 0, 0, true); // throws
+                return;
+            }
+
+            HttpResponseImpl response = new HttpResponseImpl();
+            response.httpVersion = "2.0";
+            response.headers = new HeaderMap();
+            response.cookies = new ArrayList<>();
+
+            ArrayList<CharSequence> toDump = null;
+            if(dump!=null)
+            {
+                toDump = new ArrayList<>();
+                toDump.add(respId());
+            }
+
+            String status = null;
+            HeaderMap headers = response.headers;
+            int total = 0;
+            for(int i=0; i<fields.size(); i+=2)
+            {
+                String name = fields.get(i);
+                String value = fields.get(i+1);
+                total += name.length() + value.length() + 32;  // as in SETTINGS_MAX_HEADER_LIST_SIZE
+                if(toDump!=null)
+                    toDump.add(name+": "+value+"\r\n");
+
+                if(name.startsWith(":"))
+                {
+                    if(!name.equals(":status") || status!=null || !headers.isEmpty() || !response.cookies.isEmpty())
+                        throw new H2Error(id, PROTOCOL_ERROR, "invalid pseudo header: "+name);
+                    status = value;
+                }
+                else if(name.equals("set-cookie")) // Set-Cookie is special. (it's the only one)
+                {
+                    Cookie cookie = _Rfc6265.parseSetCookieHeader(value.toCharArray(), 0, value.length());
+                    if(cookie!=null)
+                        response.cookies.add(cookie);
+                    // if parse error, ignore this particular header, don't reject the whole response.
+                }
+                else
+                {
+                    String oldValue = headers.put(name, value);
+                    if(oldValue!=null)   // headers with same name
+                        headers.put(name, oldValue + ", " + value);
+                }
+            }
+            if(toDump!=null)
+            {
+                toDump.add(endStream? "\r\n" : "<DATA>\r\n\r\n");
+                dump.print(toDump);
+            }
+
+            if(total > conf.responseHeadTotalMaxLength)
+                throw new H2Error(id, PROTOCOL_ERROR, "Response head total length > "+conf.responseHeadTotalMaxLength);
+
+            int code = -1;
+            if(status!=null && status.length()==3)
+            {
+                try
+                {   code = Integer.parseInt(status); }
+                catch (NumberFormatException e)
+                {   code = -1; }
+            }
+            if(code<100)
+                throw new H2Error(id, PROTOCOL_ERROR, "invalid :status "+status);
+
+            if(code/100==1) // intermediary 1xx response, ignore
+            {
+                if(endStream)
+                    throw new H2Error(id, PROTOCOL_ERROR, "1xx response with END_STREAM");
+                return;
+            }
+
+            response.status = HttpStatus.of(code);
+            remoteClosed = endStream;
+            try
+            {
+                response.entity = makeEntity(response);
+            }
+            catch (HttpResponseException e)
+            {
+                throw new H2Error(id, PROTOCOL_ERROR, e.getMessage());
+            }
+            this.response = response;
+            promise.succeed(response);
+
+            checkDone();
+        }
+
+        // similar to HttpClientInbound.makeEntity()
+        ImplHttpEntity makeEntity(HttpResponseImpl response) throws HttpResponseException
+        {
+            // no entity: 204, 304
+            int code = response.statusCode();
+            if(code==204 || code==304)
+                return null;
+
+            HeaderMap headers = response.headers();
+            String hv;
+
+            Long bodyLength = null;
+            if(null!=(hv=headers.xGet(Headers.Content_Length)))
+            {
+                long len;
+                try
+                {   len = Long.parseLong(hv, 10); }
+                catch (NumberFormatException e)
+                {   len = -1; }
+                if(len<0)  // 0 is ok
+                    throw new HttpResponseException("Bad Content-Length: "+hv, response);
+                bodyLength = len;
+            }
+
+            boolean reqIsHead = request.method().equals("HEAD");
+            if(bodyLength!=null && !reqIsHead)
+            {
+                contentLength = bodyLength.longValue();
+                if(contentLength>0 && remoteClosed)
+                    throw new HttpResponseException("Content-Length with END_STREAM", response);
+            }
+
+            responseBody = new ResponseBody();
+            responseBody.end = remoteClosed;
+            responseBody.awaitEof = new Promise<>();
+            if(responseBody.eof())
+                responseBody.awaitEof.succeed(null);
+            else
+                _Asyncs.onCompletion(responseBody.awaitEof, executor, this::onBodyEof);
+
+            ImplHttpEntity entity = new ImplHttpEntity(responseBody, bodyLength);
+            HttpClientInbound.entityMetadata(entity, headers);
+            return entity;
+        }
+
+        // DATA frame; or trailers (bytes==null)
+        void onData(byte[] bytes, int off, int len, int frameLength, boolean endStream) throws H2Error
+        {
+            if(remoteClosed)
+                throw new H2Error(id, STREAM_CLOSED, "DATA after END_STREAM");
+            if(response==null && bytes!=null)
+                throw new H2Error(id, PROTOCOL_ERROR, "DATA before HEADERS");
+
+            recvWindow -= frameLength;
+            if(recvWindow<0)
+                throw new H2Error(id, FLOW_CONTROL_ERROR, "stream window exceeded");
+
+            bytesReceived += len;
+            if(contentLength!=-1 && (bytesReceived>contentLength || endStream && bytesReceived!=contentLength))
+                throw new H2Error(id, PROTOCOL_ERROR, "response body length does not match Content-Length");
+
+            if(endStream)
+                remoteClosed = true;
+
+            ResponseBody body = responseBody;
+            if(body!=null && !body.closed && body.error==null)
+            {
+                recvUnacked += frameLength-len; // padding is acknowledged with the next update
+                if(len>0)
+                    body.onData(bytes, off, len);
+                if(endStream)
+                    body.onEnd();
+            }
+            // otherwise discard. no need to update stream window
+
+            checkDone();
+        }
+
+        // data is acknowledged after it's read by app, so that a slow app can throttle the server.
+        void recvConsumed(int bytes)
+        {
+            recvUnacked += bytes;
+            if(recvUnacked >= INITIAL_WINDOW/2 && !remoteClosed && !done)
+            {
+                queueWindowUpdate(tcpConn, id, recvUnacked);
+                recvWindow += recvUnacked;
+                recvUnacked = 0;
+                requestFlush();
+            }
+        }
+
+        // app closes the response body before EOF. we don't need the rest of it.
+        void onBodyEof(Result<Void> result)
+        {
+            if(result.isFailure() && !remoteClosed)
+                reset(CANCEL, new AsynchronousCloseException());
+        }
+
+        // response body, fed by DATA frames.
+        // app may read it on any thread; reads are dispatched to the connection executor.
+        class ResponseBody extends ImplH2Body
+        {
+            ResponseBody()
+            {
+                super(HttpClientH2Conn.this.tcpConn, Duration.ofSeconds(15), 0, Long.MAX_VALUE); // same as HTTP/1
+            }
+
+            @Override
+            void consumed(int bytes)
+            {
+                recvConsumed(bytes);
+            }
+
+            @Override
+            public Async<ByteBuffer> read()
+            {
+                if(executor==Thread.currentThread())
+                    return super.read();
+                return HttpClient.execOn(executor, super::read);
+            }
+
+            @Override
+            public Async<Void> close()
+            {
+                if(executor==Thread.currentThread())
+                    return super.close();
+                executor.execute(super::close);
+                return Async.VOID;
+            }
+        }
+    }
+
+}
@@ -388,7 +388,16 @@ class HttpClientInbound
             entity = new ImplHttpEntity(tcpConn, reqIsHead, false, null);
         }
 
-        // entity metadata
+        entityMetadata(entity, headers);
+
+        return entity;
+    }
+
+    // also used for HTTP/2 responses
+    static void entityMetadata(ImplHttpEntity entity, HeaderMap headers)
+    {
+        String hv; // var for header values
+
         if(null!=(hv=headers.xGet(Headers.Content_Type)))
         {
             try
@@ -420,8 +429,6 @@ class HttpClientInbound
             entity.etagIsWeak = hv.startsWith("W/");
             entity.etag = parseEtag(hv, entity.etagIsWeak?2:0, hv.length()); // null if fail
         }
-
-        return entity;
     }
 
     static String parseEtag(String string, int start, int end)
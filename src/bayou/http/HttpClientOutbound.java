@@ -715,10 +715,13 @@ class HttpClientOutbound
         _CharSeqSaver out = new _CharSeqSaver( 8 + 4*headers.size());
         {
             String reqTarget = _HttpUtil.target(request, absUri);
+            String httpVersion = request.httpVersion();
+            if(!httpVersion.startsWith("1.")) // e.g. a request received over HTTP/2, forwarded by a proxy
+                httpVersion = "1.1";
             out
                 .append(request.method()).append(" ")
                 .append(reqTarget)
-                .append(" HTTP/").append(request.httpVersion()).append("\r\n");
+                .append(" HTTP/").append(httpVersion).append("\r\n");
 
             for(Map.Entry<String,String> nv : headers.entrySet())
             {
@@ -1,6 +1,7 @@
 package bayou.http;
 
 import _bayou._log._Logger;
+import _bayou._tmp._Alpn;
 import _bayou._tmp._Util;
 import bayou.async.Async;
 import bayou.mime.HeaderMap;
@@ -11,12 +12,18 @@ import bayou.tcp.TcpChannel2Connection;
 import bayou.tcp.TcpConnection;
 import bayou.tcp.TcpServer;
 import bayou.util.Result;
+import bayou.util.function.ConsumerX;
 
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSessionContext;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.nio.channels.ServerSocketChannel;
 import java.time.Duration;
 import java.util.*;
 import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 /**
  * Http server.
@@ -83,6 +90,8 @@ public class HttpServer
 
     ImplTunneller tunneller;
 
+    SslChannel2Connection toSsl; // null if there's no ssl port
+
     /**
      * Create an HttpServer.
      * <p>
@@ -115,7 +124,11 @@ public class HttpServer
 
     void onConnect(TcpConnection tcpConn)
     {
-        new ImplConn(this, tcpConn);
+        if(conf.http2 && "h2".equals(_Alpn.getProtocol(tcpConn))) // negotiated during ssl handshake
+            new ImplH2Conn(this, tcpConn);
+        else
+            new ImplConn(this, tcpConn);
+        // for plain connections, HTTP/2 with prior knowledge is detected by ImplConnReq
     }
 
 
@@ -208,8 +221,32 @@ public class HttpServer
 
         if(!conf.sslPorts.isEmpty())
         {
+            ConsumerX<SSLEngine> sslEngineConf = conf.sslEngineConf;
+            if(conf.http2) // offer h2 through ALPN; app conf may override it
+            {
+                ConsumerX<SSLEngine> appEngineConf = sslEngineConf;
+                sslEngineConf = engine->
+                {
+                    _Alpn.setProtocols(engine, "h2", "http/1.1");
+                    appEngineConf.accept(engine);
+                };
+            }
+            SSLContext sslContext = conf.sslContext;
+            if(sslContext==null) // default context. need system properties, javax.net.ssl.keyStore etc
+                sslContext = SSLContext.getDefault();
+            SSLSessionContext sessionContext = sslContext.getServerSessionContext();
+            if(sessionContext!=null)
+            {
+                if(conf.sslSessionCacheSize!=null)
+                    sessionContext.setSessionCacheSize(conf.sslSessionCacheSize.intValue());
+                if(conf.sslSessionTimeout!=null)
+                    sessionContext.setSessionTimeout((int)conf.sslSessionTimeout.getSeconds());
+            }
             SslChannel2Connection toSsl =
-                new SslChannel2Connection(false, conf.sslContext, conf.sslEngineConf);
+                new SslChannel2Connection(false, sslContext, sslEngineConf);
+            if(conf.sslHandshakeThreads>0)
+                toSsl.setHandshakeExecutor(conf.sslHandshakeThreads, conf.sslHandshakeMaxQueue);
+            this.toSsl = toSsl;
             Consumer<TcpChannel> handlerSsl=null;
             Consumer<TcpChannel> handlerMixed=null;
             for(Integer sslPort : conf.sslPorts)
@@ -218,7 +255,14 @@ public class HttpServer
                 if(!tcpConf.handlers.containsKey(address))
                 {
                     if(handlerSsl==null)
-                        handlerSsl = channHandler(null, toSsl);
+                    {
+                        if(conf.sslPlainPeers==null)
+                            handlerSsl = channHandler(null, toSsl);
+                        else
+                            handlerSsl = channHandlerPlainPeers(toPlain!=null? toPlain
+                                : new TcpChannel2Connection(conf.readBufferSize, conf.writeBufferSize),
+                                toSsl, conf.sslPlainPeers);
+                    }
                     tcpConf.handlers.put(address, handlerSsl);
                 }
                 else // same port for plain/ssl
@@ -277,6 +321,21 @@ public class HttpServer
         };
     }
 
+    // SSL-only port, but trusted peers may connect without SSL. see HttpServerConf.sslPlainPeers
+    Consumer<TcpChannel> channHandlerPlainPeers(TcpChannel2Connection toPlain, SslChannel2Connection toSsl,
+                                                Predicate<InetAddress> plainPeers)
+    {
+        Consumer<TcpChannel> handlerSsl = channHandler(null, toSsl);
+        Consumer<TcpChannel> handlerMixed = channHandler(toPlain, toSsl);
+        return chann->
+        {
+            if(plainPeers.test(chann.getPeerIp()))
+                handlerMixed.accept(chann);
+            else
+                handlerSsl.accept(chann);
+        };
+    }
+
     void initHotHandler()
     {
         if(handler instanceof HotHttpHandler)
@@ -312,6 +371,106 @@ public class HttpServer
         return tcpServer.getConnectionCount();
     }
 
+    /**
+     * Get the total time that selector threads of this server spent on idle spinning.
+     * See {@link HttpServerConf#selectorIdleSpin(Duration, Duration)}.
+     */
+    public Duration getSelectorSpinTime()
+    {
+        return tcpServer.getSelectorSpinTime();
+    }
+
+    /**
+     * Get the total time that selector threads of this server spent on blocking select.
+     * See {@link HttpServerConf#selectorIdleSpin(Duration, Duration)}.
+     */
+    public Duration getSelectorBlockTime()
+    {
+        return tcpServer.getSelectorBlockTime();
+    }
+
+    /**
+     * Get the number of successful SSL handshakes.
+     * <p>
+     *     To get handshakes per second, sample this number periodically.
+     * </p>
+     */
+    public long getSslHandshakeCount()
+    {
+        return toSsl==null? 0 : toSsl.getHandshakeCount();
+    }
+
+    /**
+     * Get the number of successful SSL handshakes that resumed a previous session.
+     * <p>
+     *     The number of full handshakes is <code>getSslHandshakeCount()-getSslHandshakeResumedCount()</code>.
+     *     See {@link HttpServerConf#sslSessionCacheSize(Integer)}.
+     * </p>
+     */
+    public long getSslHandshakeResumedCount()
+    {
+        return toSsl==null? 0 : toSsl.getHandshakeResumedCount();
+    }
+
+    /**
+     * Get the number of plain connections accepted on SSL ports.
+     * <p>
+     *     These are connections on ports that are both plain and SSL, see {@link HttpServerConf#sslPort(int...)},
+     *     or connections from {@link HttpServerConf#sslPlainPeers(java.util.function.Predicate) trusted peers}.
+     *     Connections on the SSL path are counted by {@link #getSslHandshakeCount()}.
+     * </p>
+     */
+    public long getSslPlainCount()
+    {
+        return toSsl==null? 0 : toSsl.getPlainCount();
+    }
+
+    /**
+     * Get the total time of successful SSL handshakes.
+     * Divide it by {@link #getSslHandshakeCount()} to get the average handshake latency.
+     */
+    public Duration getSslHandshakeTime()
+    {
+        return toSsl==null? Duration.ZERO : toSsl.getHandshakeTime();
+    }
+
+    /**
+     * Get the number of SSL handshake tasks waiting for threads.
+     * See {@link HttpServerConf#sslHandshakeThreads(int)}.
+     */
+    public int getSslHandshakeQueueDepth()
+    {
+        return toSsl==null? 0 : toSsl.getHandshakeQueueDepth();
+    }
+
+    /**
+     * Get the number of SSL connections refused because too many handshakes are pending.
+     * See {@link HttpServerConf#sslHandshakeMaxQueue(int)}.
+     */
+    public long getSslHandshakeRefuseCount()
+    {
+        return toSsl==null? 0 : toSsl.getHandshakeRefuseCount();
+    }
+
+    /**
+     * Get the number of bytes saved by auto gzip, i.e. bytes before compression minus bytes after.
+     * See {@link HttpServerConf#autoGzip(boolean)}.
+     */
+    public long getAutoGzipBytesSaved()
+    {
+        ImplGzipPolicy policy = conf.autoGzipPolicy;
+        return policy.bytesIn.sum() - policy.bytesOut.sum();
+    }
+
+    /**
+     * Get the total time spent on auto gzip compression.
+     * See {@link HttpServerConf#autoGzip(boolean)}.
+     */
+    public Duration getAutoGzipTime()
+    {
+        return Duration.ofNanos(conf.autoGzipPolicy.nanos.sum());
+    }
+
     /**
      * Pausing accepting new requests. See <a href="#life-cycle">Life Cycle</a>.
      */
@@ -376,6 +535,8 @@ public class HttpServer
     {
         ArrayList<String> protocols = new ArrayList<>();
         protocols.add("http");
+        if(conf.http2)
+            protocols.add("h2");
         protocols.addAll(upgraderMap.keySet());
 
         String ip = conf.ip.getHostAddress(); // numeric ip, no other stuff. // e.g. 0:0:0:0:0:0:0:0
@@ -17,6 +17,7 @@ import java.nio.channels.SocketChannel;
 import java.time.Duration;
 import java.util.*;
 import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 import static _bayou._tmp._Util.require;
 
@@ -60,6 +61,8 @@ import static _bayou._tmp._Util.require;
  *     <dt>HTTP</dt>
  *     <dd>
  *         {@link #supportedMethods(String...) supportedMethods} ,
+ *         {@link #http2(boolean) http2} ,
+ *         {@link #pipelineMaxRequests(int) pipelineMaxRequests} ,
  *         {@link #xForwardLevel(int) xForwardLevel},
  *         {@link #autoGzip(boolean) autoGzip} ,
  *         {@link #autoConditional(boolean) autoConditional} ,
@@ -355,6 +358,48 @@ public final class HttpServerConf
         return this;
     }
 
+    /**
+     * Whether every selector thread has its own server socket for each port, with SO_REUSEPORT.
+     * <p><code>
+     *     default: false
+     * </code></p>
+     * <p>
+     *     If enabled, the OS load-balances incoming connections among selector threads,
+     *     so that accepting is not a bottleneck under connection storms.
+     *     See {@link bayou.tcp.TcpServer.Conf#reusePort}.
+     * </p>
+     * @return `this`
+     */
+    public HttpServerConf reusePort(boolean reusePort)
+    {
+        assertCanChange();
+        tcpConf.reusePort = reusePort;
+        return this;
+    }
+
+    /**
+     * Idle strategy of selector threads: how long to spin, then yield, before blocking.
+     * <p><code>
+     *     default: ZERO, ZERO
+     * </code></p>
+     * <p>
+     *     For latency critical deployments where selector threads have dedicated cores,
+     *     a selector thread can busy-spin for a short time when it becomes idle,
+     *     instead of blocking immediately. This trades CPU for tail latency.
+     *     See {@link bayou.tcp.TcpServer.Conf#selectorIdleSpin}.
+     * </p>
+     * @return `this`
+     */
+    public HttpServerConf selectorIdleSpin(Duration spin, Duration yield)
+    {
+        assertCanChange();
+        require(spin!=null && !spin.isNegative(), "spin>=0");
+        require(yield!=null && !yield.isNegative(), "yield>=0");
+        tcpConf.selectorIdleSpin = spin;
+        tcpConf.selectorIdleYield = yield;
+        return this;
+    }
+
 
 
     // conf SSL ............................................................................
@@ -454,6 +499,95 @@ public final class HttpServerConf
         );
     }
 
+    Predicate<InetAddress> sslPlainPeers = null;
+    /**
+     * Peers that are allowed to connect to SSL ports without SSL.
+     * <p><code>
+     *     default: null (none)
+     * </code></p>
+     * <p>
+     *     If non-null, on an SSL-only port, a connection from a peer IP accepted by this predicate
+     *     is treated as if the port were also a plain port
+     *     (see {@link #sslPort(int...)}) -- the client may connect with or without SSL,
+     *     detected from its initial bytes. Connections from other peers must use SSL.
+     * </p>
+     * <p>
+     *     This is useful when SSL is required for external traffic, but a local sidecar/proxy connects
+     *     to the same port; the encrypt/decrypt cost on the intra-host hop can be avoided. For example
+     * </p>
+     * <pre>
+     *     server.conf()
+     *         .port()  // no plain ports
+     *         .sslPort(8443)
+     *         .sslPlainPeers(InetAddress::isLoopbackAddress);
+     * </pre>
+     * <p>
+     *     Requests on such plain connections are not {@link HttpRequest#isHttps() https},
+     *     unless made so by <code>X-Forwarded-Proto</code>, see {@link #xForwardLevel(int)}.
+     * </p>
+     * <p>
+     *     See {@link HttpServer#getSslPlainCount()} for the number of plain connections on SSL ports.
+     * </p>
+     * @return `this`
+     */
+    public HttpServerConf sslPlainPeers(Predicate<InetAddress> sslPlainPeers)
+    {
+        assertCanChange();
+        this.sslPlainPeers = sslPlainPeers;
+        return this;
+    }
+
+    Integer sslSessionCacheSize = null;
+    /**
+     * Max number of SSL sessions cached for resumption.
+     * <p><code>
+     *     default: null
+     * </code></p>
+     * <p>
+     *     If non-null, it's set on the server session context of the
+     *     {@link #sslContext(javax.net.ssl.SSLContext) sslContext}; 0 means no limit.
+     *     If null, the setting of the SSLContext is not changed.
+     * </p>
+     * <p>
+     *     A returning client can resume its session, skipping the expensive key exchange.
+     *     See {@link HttpServer#getSslHandshakeResumedCount()}.
+     * </p>
+     * <p>
+     *     See also {@link bayou.ssl.SslConf#sessionCacheSize(Integer)}.
+     * </p>
+     * @return `this`
+     */
+    public HttpServerConf sslSessionCacheSize(Integer sslSessionCacheSize)
+    {
+        assertCanChange();
+        require(sslSessionCacheSize==null || sslSessionCacheSize.intValue()>=0, "sslSessionCacheSize>=0");
+        this.sslSessionCacheSize = sslSessionCacheSize;
+        return this;
+    }
+
+    Duration sslSessionTimeout = null;
+    /**
+     * How long an SSL session can be resumed after it's created.
+     * <p><code>
+     *     default: null
+     * </code></p>
+     * <p>
+     *     If non-null, it's set on the server session context of the
+     *     {@link #sslContext(javax.net.ssl.SSLContext) sslContext}, in seconds.
+     *     If null, the setting of the SSLContext is not changed.
+     * </p>
+     * @return `this`
+     */
+    public HttpServerConf sslSessionTimeout(Duration sslSessionTimeout)
+    {
+        assertCanChange();
+        require(sslSessionTimeout==null ||
+            !sslSessionTimeout.isNegative() && sslSessionTimeout.getSeconds()<=Integer.MAX_VALUE,
+            "sslSessionTimeout within [0, Integer.MAX_VALUE] seconds");
+        this.sslSessionTimeout = sslSessionTimeout;
+        return this;
+    }
+
     ConsumerX<SSLEngine> sslEngineConf = engine->{};
     /**
      * Action to configure each SSLEngine.
@@ -498,6 +632,56 @@ public final class HttpServerConf
     }
 
 
+    int sslHandshakeThreads = 0;
+    /**
+     * Number of threads dedicated to SSL handshake tasks.
+     * <p><code>
+     *     default: 0
+     * </code></p>
+     * <p>
+     *     SSL handshake involves CPU intensive tasks (e.g. RSA/ECDHE crypto), which are run on an executor.
+     *     If <code>sslHandshakeThreads</code> is 0, the tasks run on a system executor with unlimited threads,
+     *     shared with other blocking tasks.
+     *     Otherwise they run on a dedicated pool of this many threads,
+     *     with {@link #sslHandshakeMaxQueue(int) sslHandshakeMaxQueue} for admission control,
+     *     so that a burst of handshakes (e.g. clients reconnecting after a restart)
+     *     doesn't starve other work of the server.
+     * </p>
+     * <p>
+     *     See {@link HttpServer#getSslHandshakeCount()} etc. for handshake metrics.
+     * </p>
+     * @return `this`
+     */
+    public HttpServerConf sslHandshakeThreads(int sslHandshakeThreads)
+    {
+        assertCanChange();
+        require(sslHandshakeThreads >= 0, "sslHandshakeThreads>=0");
+        this.sslHandshakeThreads = sslHandshakeThreads;
+        return this;
+    }
+
+    int sslHandshakeMaxQueue = 256;
+    /**
+     * Max number of SSL handshake tasks waiting for threads, beyond which new SSL connections are refused.
+     * <p><code>
+     *     default: 256
+     * </code></p>
+     * <p>
+     *     This is effective only if {@link #sslHandshakeThreads(int) sslHandshakeThreads} is positive.
+     *     When the queue is too deep, a new SSL connection is closed immediately, before any handshake work;
+     *     handshakes in progress are not affected, so that they can complete in time.
+     * </p>
+     * @return `this`
+     */
+    public HttpServerConf sslHandshakeMaxQueue(int sslHandshakeMaxQueue)
+    {
+        assertCanChange();
+        require(sslHandshakeMaxQueue >= 0, "sslHandshakeMaxQueue>=0");
+        this.sslHandshakeMaxQueue = sslHandshakeMaxQueue;
+        return this;
+    }
+
+
 
 
 
@@ -545,6 +729,84 @@ public final class HttpServerConf
         return this;
     }
 
+    boolean http2;
+    /**
+     * Whether to support HTTP/2.
+     * <p><code>
+     *     default: false
+     * </code></p>
+     * <p>
+     *     If enabled, on SSL ports, "h2" is offered to clients through ALPN,
+     *     which requires a JDK that supports ALPN (Java 9+, or Java 8u252+);
+     *     on plain ports, clients can start HTTP/2 with prior knowledge (RFC7540 section 3.4).
+     *     HTTP/1 connections are served as usual.
+     * </p>
+     * <p>
+     *     Requests over HTTP/2 are handled by the same {@link HttpHandler};
+     *     <code>request.httpVersion()</code> returns "2.0".
+     *     CONNECT requests and {@link HttpServer#addUpgrader(String, HttpUpgrader) upgraders}
+     *     are not supported over HTTP/2.
+     * </p>
+     * @return `this`
+     */
+    public HttpServerConf http2(boolean http2)
+    {
+        assertCanChange();
+        this.http2 = http2;
+        return this;
+    }
+
+    int pipelineMaxRequests = 0;
+    /**
+     * Max number of pipelined requests to be handled concurrently on an HTTP/1 connection.
+     * <p><code>
+     *     default: 0 (disabled)
+     * </code></p>
+     * <p>
+     *     By default, requests on an HTTP/1 connection are handled one at a time;
+     *     the next request is read after the previous response is written.
+     * </p>
+     * <p>
+     *     If this value is positive, and a client pipelines GET/HEAD requests (without bodies),
+     *     the server parses up to this number of requests that are already received,
+     *     and invokes the handler for them concurrently, each in its own fiber.
+     *     Responses are still written in the order of the requests.
+     *     Other requests are handled after previous responses are written, as usual.
+     * </p>
+     * <p>
+     *     This is useful if clients, e.g. a load balancer, pipeline requests heavily.
+     *     See also {@link #pipelineMaxBytes(int) pipelineMaxBytes}.
+     * </p>
+     * @return `this`
+     */
+    public HttpServerConf pipelineMaxRequests(int pipelineMaxRequests)
+    {
+        assertCanChange();
+        require(pipelineMaxRequests >= 0, "pipelineMaxRequests>=0");
+        this.pipelineMaxRequests = pipelineMaxRequests;
+        return this;
+    }
+
+    int pipelineMaxBytes = 64*1024;
+    /**
+     * Max total length of request heads of pipelined requests that are read ahead on an HTTP/1 connection.
+     * <p><code>
+     *     default: 64*1024 (64KB)
+     * </code></p>
+     * <p>
+     *     This limits the memory used by pipelined requests awaiting their responses to be written.
+     *     See {@link #pipelineMaxRequests(int) pipelineMaxRequests}.
+     * </p>
+     * @return `this`
+     */
+    public HttpServerConf pipelineMaxBytes(int pipelineMaxBytes)
+    {
+        assertCanChange();
+        require(pipelineMaxBytes > 0, "pipelineMaxBytes>0");
+        this.pipelineMaxBytes = pipelineMaxBytes;
+        return this;
+    }
+
     Duration readTimeout = Duration.ofSeconds(15);
     /**
      * Timeout for read() when reading a request body.
@@ -967,6 +1229,9 @@ public final class HttpServerConf
      *         {@link bayou.file.StaticFileConf#gzip(boolean) StaticHandler.FileConf.gzip}
      *     </li>
      * </ul>
+     * <p>
+     *     See also {@link #autoGzipAdaptive(boolean) autoGzipAdaptive}.
+     * </p>
      * @return `this`
      */
     public HttpServerConf autoGzip(boolean autoGzip)
@@ -976,6 +1241,46 @@ public final class HttpServerConf
         return this;
     }
 
+    // runtime state of auto gzip (history of compression ratios, metrics). not a config variable.
+    final ImplGzipPolicy autoGzipPolicy = new ImplGzipPolicy();
+
+    boolean autoGzipAdaptive = false;
+    /**
+     * Whether auto gzip adapts the compression level to the server load.
+     * <p><code>
+     *     default: false
+     * </code></p>
+     * <p>
+     *     If disabled, auto gzip always uses compression level 1.
+     * </p>
+     * <p>
+     *     If enabled, the level is chosen per response, by the load of the selector thread,
+     *     and by the compression ratios seen so far for the content type:
+     * </p>
+     * <ul>
+     *     <li>
+     *         light load - level 6 if the content type compresses well, otherwise level 1
+     *     </li>
+     *     <li>
+     *         heavy load - no gzip if the content type compresses poorly, otherwise level 1
+     *     </li>
+     *     <li>
+     *         otherwise - level 1
+     *     </li>
+     * </ul>
+     * <p>
+     *     See {@link HttpServer#getAutoGzipBytesSaved()} and {@link HttpServer#getAutoGzipTime()}
+     *     for the effect of auto gzip.
+     * </p>
+     * @return `this`
+     */
+    public HttpServerConf autoGzipAdaptive(boolean autoGzipAdaptive)
+    {
+        assertCanChange();
+        this.autoGzipAdaptive = autoGzipAdaptive;
+        return this;
+    }
+
     // list of content types
     // for each content type, subtype can be *, but (main) type cannot be.
     HashSet<String> _autoGzipContentTypes; // exact values set by user
@@ -1335,6 +1640,18 @@ public final class HttpServerConf
     {
         return tcpConf.selectorIds.clone();
     }
+    public boolean get_reusePort()
+    {
+        return tcpConf.reusePort;
+    }
+    public Duration get_selectorIdleSpin()
+    {
+        return tcpConf.selectorIdleSpin;
+    }
+    public Duration get_selectorIdleYield()
+    {
+        return tcpConf.selectorIdleYield;
+    }
     public List<Integer> get_sslPorts()
     {
         ArrayList<Integer> list = new ArrayList<>(sslPorts);
@@ -1349,16 +1666,48 @@ public final class HttpServerConf
     {
         return this.sslEngineConf;
     }
+    public Predicate<InetAddress> get_sslPlainPeers()
+    {
+        return sslPlainPeers;
+    }
+    public Integer get_sslSessionCacheSize()
+    {
+        return sslSessionCacheSize;
+    }
+    public Duration get_sslSessionTimeout()
+    {
+        return sslSessionTimeout;
+    }
     public Duration get_sslHandshakeTimeout()
     {
         return this.sslHandshakeTimeout;
     }
+    public int get_sslHandshakeThreads()
+    {
+        return sslHandshakeThreads;
+    }
+    public int get_sslHandshakeMaxQueue()
+    {
+        return sslHandshakeMaxQueue;
+    }
 
     public Set<String> get_supportedMethods()
     {
         return new HashSet<>(supportedMethods.values());
     }
 
+    public boolean get_http2()
+    {
+        return this.http2;
+    }
+    public int get_pipelineMaxRequests()
+    {
+        return this.pipelineMaxRequests;
+    }
+    public int get_pipelineMaxBytes()
+    {
+        return this.pipelineMaxBytes;
+    }
     public Duration get_readTimeout()
     {
         return readTimeout;
@@ -1420,6 +1769,11 @@ public final class HttpServerConf
         return autoGzip;
     }
 
+    public boolean get_autoGzipAdaptive()
+    {
+        return autoGzipAdaptive;
+    }
+
     public Set<String> get_autoGzipContentTypes()
     {
         return Collections.unmodifiableSet(_autoGzipContentTypes);
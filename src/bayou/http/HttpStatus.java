@@ -27,6 +27,7 @@ public class HttpStatus
     final int code;
     final String phrase;
     final String string; // "200 OK". server accesses this field frequently.
+    byte[] line11; // "HTTP/1.1 200 OK\r\n". pre-encoded by ImplRespHeadEncoder.
 
     /**
      * Create an HttpStatus instance.
@@ -1,5 +1,6 @@
 package bayou.http;
 
+import _bayou._http._HttpUtil;
 import _bayou._tmp._ByteBufferPool;
 import _bayou._tmp._TrafficDumpWrapper;
 import _bayou._tmp._Util;
@@ -14,6 +15,7 @@ import bayou.util.Result;
 
 import java.net.InetAddress;
 import java.time.Duration;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -86,10 +88,10 @@ class ImplConn
     {
         NA,  // suspended while awaiting, or stopped after close()
 
-        reqNew, reqNone, reqErr, reqBad, reqGood,
+        reqNew, reqNone, reqErr, reqBad, reqGood, reqH2,
 
         respStart, respWrite, respEnd, awaitReq,
-        respPipeBody, respDrainMark, respFlushAll,  // xResp internal goto
+        respPipeBody, respDrainMark, respFlushAll, respTransfer,  // xResp internal goto
 
     }
 
@@ -111,7 +113,7 @@ class ImplConn
             return;
         }
 
-        if(PIPELINE && flush==1) // delayed flush
+        if(flush==1) // delayed flush
             flush1();
     }
     Goto execOne(Goto g)
@@ -123,6 +125,7 @@ class ImplConn
             case reqErr  : return errorReadingRequest();
             case reqBad  : return gotBadRequest();
             case reqGood : return gotGoodRequest();
+            case reqH2   : return toH2();
 
             case respStart : return startResponding();
             case respWrite : return responseWrite();
@@ -132,6 +135,7 @@ class ImplConn
             case respPipeBody  : return xResp.pipeBody();
             case respDrainMark : return xResp.drainMark();
             case respFlushAll  : return xResp.flushAll();
+            case respTransfer  : return xResp.transferFile();
 
             default: throw new AssertionError();
         }
@@ -143,7 +147,10 @@ class ImplConn
     {
         reqId += 1;
 
-        xReq = new ImplConnReq(this);
+        if(aheads!=null && !aheads.isEmpty())
+            return nextAhead();
+
+        xReq = new ImplConnReq(this, reqId);
 
         return xReq.read();
     }
@@ -241,6 +248,20 @@ class ImplConn
         return handleRequest();
     }
 
+    Goto toH2()
+    {
+        // HTTP/2 connection preface at the start of a plain connection (h2c with prior knowledge).
+        // the preface bytes were unread; ImplH2Conn takes over the connection.
+        xReq = null;
+
+        TcpConnection conn = tcpConn;
+        tcpConn = null;
+        new ImplH2Conn(server, conn);
+
+        if(FIBER) promise.succeed(null); // this fiber ends
+        return Goto.NA;
+    }
+
     Goto tryUpgrade(HttpUpgrader upgrader)
     {
         Async<HttpResponse> upgradeAsync;
@@ -293,19 +314,26 @@ class ImplConn
     }
 
 
-    Goto handleRequest()
+    Async<HttpResponse> callHandler(HttpRequest request)
     {
-        Async<HttpResponse> respAsync;
         try
         {
-            respAsync = server.handler.handle(request); // should not throw
+            Async<HttpResponse> respAsync = server.handler.handle(request); // should not throw
             if(respAsync==null)
                 throw new NullPointerException("null returned from "+server.handler);
+            return respAsync;
         }
         catch (RuntimeException|Error e)
         {
-            respAsync = HttpResponse.internalError(e);
+            return HttpResponse.internalError(e);
         }
+    }
+
+    Goto handleRequest()
+    {
+        Async<HttpResponse> respAsync = callHandler(request);
+
+        readAhead(); // if pipelined requests are buffered, start their handlers too.
 
         if(request.method.equals("CONNECT"))
             respAsync = respAsync.then( resp->server.tunneller.tryConnect(request, resp, this) );
@@ -426,7 +454,8 @@ class ImplConn
 
         try
         {
-            List<Cookie> jarCookies = FIBER? (ArrayList<Cookie>)CookieJar.getAllChanges() : Collections.emptyList();
+            List<Cookie> jarCookies = ahead!=null? ahead.jarCookies // collected in the handler fiber
+                : FIBER? (ArrayList<Cookie>)CookieJar.getAllChanges() : Collections.emptyList();
             // leave fiber local cookie jars. may be needed by response body. clear them after response is written
 
             xResp = ImplRespMod.modApp(this, request, response, jarCookies);  // may throw. may be last response
@@ -448,9 +477,6 @@ class ImplConn
 
     Goto responseWrite()
     {
-        if(!PIPELINE)
-            return xResp.startWrite();
-
         switch(flush)
         {
             case 0 :
@@ -484,6 +510,7 @@ class ImplConn
 
         if(PREV_HEADERS) prevHeaders = request.headers;
         request = null;
+        ahead = null;
         ImplConnResp xRespL = xResp;
         xResp = null;
 
@@ -508,6 +535,9 @@ class ImplConn
 
     Goto awaitNewRequest()
     {
+        if(aheads!=null && !aheads.isEmpty()) // next request was read ahead
+            return Goto.reqNew;
+
         // typically client doesn't do pipeline, so it's unlikely connection is readable here.
         //   an imm read() at this point probably will fail, so we better awaitReadable() here.
         Async<Void> awaitReadable = tcpConn.awaitReadable(/*accepting*/true);
@@ -596,7 +626,16 @@ class ImplConn
             tunnelConn=null;
         }
 
-        if(PIPELINE) flush=0;
+        flush=0;
+
+        if(aheads!=null)
+        {
+            for(Ahead a : aheads)
+                if(a.respAsync!=null)
+                    a.respAsync.cancel(new Exception("connection closed"));
+            aheads.clear();
+            aheadBytes = 0;
+        }
 
         Async<Void> closing = tcpConn.close(drainTimeout);
         tcpConn =null;
@@ -641,9 +680,9 @@ class ImplConn
     }
 
 
-    String reqId()
+    String reqId(int id)
     {
-        return "== request #"+ tcpConn.getId()+"-"+reqId+" ==\r\n";
+        return "== request #"+ tcpConn.getId()+"-"+id+" ==\r\n";
     }
     String respId()
     {
@@ -659,8 +698,9 @@ class ImplConn
     // pipeline isn't common in browsers. most are half-duplex: drain the response before writing next request.
     // this class was written with that in mind, because half-duplex is simpler to code.
     // we patched this class with a little hack to batch-process pipelined requests.
-    // a better impl would be 2 concurrent flows, for inbound and outbound, like we do in HttpClient.
-    // and we should expose HttpServerConnection to app for low-level request/response handling. TBA.
+    // see also read-ahead below (conf.pipelineMaxRequests), which handles pipelined requests concurrently;
+    // it uses the same delayed flush if the next response is ready.
+    // we should expose HttpServerConnection to app for low-level request/response handling. TBA.
 
 
     byte flush; // [0] none [1] delayed  [2] awaitWritable  [3] new response
@@ -715,7 +755,136 @@ class ImplConn
     }
 
 
+    // read-ahead of pipelined requests ============================================================================
+    // after the head of a GET/HEAD request is parsed, if there are more bytes already buffered in tcpConn,
+    // parse following requests too, and start their handlers concurrently, each in its own fiber.
+    // responses are still written in order by this flow; a read-ahead request is dequeued as the "next request"
+    // after the previous response is written, and its response is awaited (or already completed).
+    //
+    // only bodiless GET/HEAD requests are handled concurrently; they are safe to be handled out of order,
+    // and they don't need to read inbound data. parsing stops at any other request (e.g. POST, or a request
+    // with a body, or an upgrade request); it'll be handled serially, as usual, after previous responses.
+    //
+    // memory is bounded by conf.pipelineMaxRequests and conf.pipelineMaxBytes (request heads).
+    // we only parse bytes that are already buffered; no read is attempted if there's no unread data.
+
+    static class Ahead
+    {
+        ImplConnReq xReq;
+        Goto g;  // result of xReq.read1(). null if head is incomplete; continue reading it when dequeued.
+        Async<HttpResponse> respAsync;  // non-null if handler is started
+        List<Cookie> jarCookies;  // collected in handler fiber
+    }
+
+    boolean buffered; // last head parsing left some bytes unread
+    ArrayDeque<Ahead> aheads; // lazily created
+    int aheadBytes;
+    Ahead ahead; // the current request, if it was read ahead
+
+    static boolean canPipeline(ImplHttpRequest request)
+    {
+        return request.entity==null
+            && (request.method.equals("GET") || request.method.equals("HEAD"))
+            && request.httpMinorVersion==1
+            && !_HttpUtil.containsToken(request.headers.xGet(Headers.Connection), "close");
+    }
+
+    void readAhead()
+    {
+        if(!buffered || conf.pipelineMaxRequests==0)
+            return;
+
+        if(aheads==null)
+            aheads = new ArrayDeque<>();
+
+        // the last request parsed must be one that can be pipelined
+        if(aheads.isEmpty() ? !canPipeline(request) : aheads.peekLast().respAsync==null)
+            return;
+
+        while(buffered && aheads.size()<conf.pipelineMaxRequests && aheadBytes<conf.pipelineMaxBytes)
+        {
+            Ahead a = new Ahead();
+            a.xReq = new ImplConnReq(this, reqId+aheads.size()+1);
+            a.g = a.xReq.read1();
+            aheads.addLast(a);
+            aheadBytes += a.xReq.headBytes;
+
+            if(a.g!=Goto.reqGood || !canPipeline(a.xReq.request) || server.findUpgrader(a.xReq.request.headers)!=null)
+                return; // to be handled serially, when dequeued
+
+            startAhead(a);
+        }
+    }
+
+    void startAhead(Ahead a)
+    {
+        ImplHttpRequest req = a.xReq.request;
+        if(!FIBER)
+        {
+            a.respAsync = callHandler(req);
+            a.jarCookies = Collections.emptyList();
+            return;
+        }
+
+        Promise<HttpResponse> respPromise = new Promise<>();
+        a.respAsync = respPromise;
+        new Fiber<Void>(tcpConn.getExecutor(), fiberName(req), ()->
+        {
+            Promise<Void> fiberPromise = new Promise<>();
+            fiberPromise.fiberTracePop();
+
+            HttpRequest.setFiberLocal(req);
+            Async<HttpResponse> respAsync = callHandler(req);
+            respPromise.onCancel(respAsync::cancel);
+            respAsync.onCompletion(result -> {
+                a.jarCookies = CookieJar.getAllChanges2();
+                CookieJar.clearAll();
+                HttpRequest.setFiberLocal(null);
+                respPromise.complete(result);
+                fiberPromise.succeed(null); // this fiber ends
+            });
+            return fiberPromise;
+        });
+    }
+
+    Goto nextAhead()
+    {
+        Ahead a = aheads.pollFirst();
+        aheadBytes -= a.xReq.headBytes;
+
+        xReq = a.xReq;
+        if(a.g==null) // head is incomplete
+            return xReq.read();
+        if(a.respAsync==null) // handle it serially, as usual
+            return a.g;
 
+        if(xReq.toDump!=null)
+            dump.print(xReq.toDump);
+
+        request = xReq.request;
+        xReq = null;
+        ahead = a;
+
+        if(FIBER) HttpRequest.setFiberLocal(request);
+        if(FIBER) Fiber.current().setName(fiberName(request));
 
+        readAhead(); // the window moves
+
+        Result<HttpResponse> respResult = a.respAsync.pollResult();
+        if(respResult!=null) // handler completed while previous responses were written
+            return handlerDone(respResult);
+
+        a.respAsync.onCompletion(result -> jump(handlerDone(result)));
+        return Goto.NA;
+    }
+
+    // the next response is ready to be written. delay flush of the current response, so that they are batched.
+    boolean nextResponseReady()
+    {
+        if(aheads==null || aheads.isEmpty())
+            return false;
+        Async<HttpResponse> respAsync = aheads.peekFirst().respAsync;
+        return respAsync!=null && respAsync.isCompleted();
+    }
 
 }
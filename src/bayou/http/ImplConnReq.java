@@ -28,6 +28,7 @@ import static bayou.http.ImplConn.Goto;
 class ImplConnReq
 {
     ImplConn hConn;
+    int id;  // request id within the connection
 
     _JobTimeout timeout;
 
@@ -35,10 +36,12 @@ class ImplConnReq
     ImplReqHeadParser parser;
     ArrayList<CharSequence> toDump;
     // above 3 fields are null if no bytes is read
+    int headBytes;  // bytes consumed by the parser
 
-    public ImplConnReq(ImplConn hConn)
+    public ImplConnReq(ImplConn hConn, int id)
     {
         this.hConn = hConn;
+        this.id = id;
 
         // conn should be readable at this point. we are not in keep-alive waiting
     }
@@ -89,6 +92,20 @@ class ImplConnReq
 
     ImplConn.Goto read() // no throw
     {
+        Goto g = read1();
+        if(g!=null)
+            return g;
+
+        awaitReadable();
+        return Goto.NA;
+    }
+
+    // return null if more bytes are needed. no await. no throw.
+    // also used by ImplConn.readAhead(), to parse pipelined requests that are already buffered.
+    Goto read1()
+    {
+        hConn.buffered = false;
+
         ByteBuffer bb;
         try
         {
@@ -101,10 +118,7 @@ class ImplConnReq
         }
 
         if(bb== TcpConnection.STALL) // not likely, conn should be readable here. maybe spuriously readable.
-        {
-            awaitReadable();
-            return Goto.NA;
-        }
+            return null;
 
         if(bb== TcpConnection.TCP_FIN || bb== SslConnection.SSL_CLOSE_NOTIFY) // EOF before head is complete
         {
@@ -117,23 +131,31 @@ class ImplConnReq
 
         // we have some bytes we can parse
 
+        if(request==null && id==1 && hConn.conf.http2 && !(hConn.tcpConn instanceof SslConnection)
+            && ImplH2Conn.isPreface(bb))
+        {
+            hConn.tcpConn.unread(bb);
+            return finish(Goto.reqH2);
+        }
+
         if(request==null) // beginning bytes
         {
             request = new ImplHttpRequest();
             request.ip = hConn.tcpConn.getPeerIp();
             request.isHttps = hConn.tcpConn instanceof SslConnection;
-            request.certs = certs();
+            request.certs = certs(hConn.tcpConn);
             parser = new ImplReqHeadParser(request);
 
             if(hConn.dump!=null)
             {
                 toDump = new ArrayList<>();
-                toDump.add(hConn.reqId());
+                toDump.add(hConn.reqId(id));
             }
         }
 
         int bb_pos0 = bb.position();
         parser.parse(bb, hConn.conf, hConn.prevHeaders);
+        headBytes += bb.position()-bb_pos0;
 
         if(toDump!=null)
         {
@@ -144,7 +166,10 @@ class ImplConnReq
         }
 
         if(bb.hasRemaining())
+        {
             hConn.tcpConn.unread(bb);
+            hConn.buffered = true;
+        }
 
         if(parser.state == ImplReqHeadParser.State.DONE)
         {
@@ -163,8 +188,7 @@ class ImplConnReq
         // otherwise needs more bytes to complete the head. this is rare.
         // we can imm try read() again, but that's unlikely to succeed, a wasteful sys call.
         // more likely there is nothing to read yet, so we better await readable.
-        awaitReadable();
-        return Goto.NA;
+        return null;
     }
 
     // head is syntactically correct. may still be "bad" request
@@ -340,12 +364,12 @@ class ImplConnReq
     }
 
 
-    List<X509Certificate> certs()
+    static List<X509Certificate> certs(TcpConnection tcpConn)
     {
-        if(!(hConn.tcpConn instanceof SslConnection))
+        if(!(tcpConn instanceof SslConnection))
             return Collections.emptyList();
 
-        SSLSession session = ((SslConnection)hConn.tcpConn).getSslSession();
+        SSLSession session = ((SslConnection)tcpConn).getSslSession();
 
         Certificate[] array;
         try
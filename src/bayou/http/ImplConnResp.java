@@ -2,6 +2,9 @@ package bayou.http;
 
 import _bayou._str._CharSeqSaver;
 import _bayou._str._StringSaver;
+import _bayou._tmp._FileRegion;
+import _bayou._tmp._TcpConnTransfer;
+import _bayou._tmp._TcpConnWriteBuffer;
 import _bayou._tmp._Util;
 import bayou.async.Async;
 import bayou.bytes.ByteSource;
@@ -14,6 +17,8 @@ import bayou.util.Result;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.time.Duration;
 import java.util.List;
 import java.util.Map;
@@ -87,6 +92,14 @@ class ImplConnResp
         // even if head is bigger than confResponseBufferSize (unlikely).
         // head will be pushed to client promptly, even if body read stalls.
 
+        if(bodyLength>=fileTransferMinLength && tcpConn instanceof _TcpConnTransfer
+            && ((_TcpConnTransfer)tcpConn).isTransferSupported())
+        {
+            fileRegion = _FileRegion.of(body);
+            if(fileRegion!=null)
+                return openFile();  // -> transferFile
+        }
+
         return pipeBody();
     }
 
@@ -116,9 +129,17 @@ class ImplConnResp
 
     void queueHead()
     {
-        _StringSaver chars = new _StringSaver( 64 );
-        printHead(chars);
-        tcpConn.queueWrite(ByteBuffer.wrap(chars.toLatin1Bytes()));
+        ImplRespHeadEncoder encoder = new ImplRespHeadEncoder(httpVersion, status, headers, cookies);
+
+        // encode head directly into a direct buffer lent by tcpConn, if possible. saves a copy.
+        ByteBuffer bb = null;
+        if(tcpConn instanceof _TcpConnWriteBuffer)
+            bb = ((_TcpConnWriteBuffer)tcpConn).checkOutWriteBuffer(encoder.length);
+        if(bb==null)
+            bb = ByteBuffer.allocate(encoder.length);
+        encoder.encode(bb);
+        bb.flip();
+        tcpConn.queueWrite(bb);
     }
 
     void dumpResp()
@@ -256,25 +277,27 @@ class ImplConnResp
 
         long remain = tcpConn.getWriteQueueSize();
         if(remain>0) // check throughput when write stalls
-        {
-            long timeSpent = System.currentTimeMillis() - writeT0 - readStallTime;  // exclude our read stall time.
-            // other than our read stall time, all overhead from us are included, and blamed on client.
-            // that should be fine on normal loads. on a busy system tho, it's unclear how to get accurate
-            // timeSpent that's fairly incurred by client.
-            // because the default min download throughput is quite low, if it's reached for many clients
-            // due to system overload, there is a big problem anyway.
-            // server probably should limit connections, so it never reaches such overload state.
-            // if server is willing to server many concurrent clients slowly, set a very low min download throughput.
-            if(timeSpent>10_000)  // don't check in the beginning
-            {
-                long minGoal = minThroughput * timeSpent / 1000;
-                if(writtenTotal < minGoal)
-                    throw new IOException("Client download throughput too low");  // as if network error
-            }
-        }
+            checkThroughput(); // throws
 
         return remain;
     }
+    void checkThroughput() throws Exception
+    {
+        long timeSpent = System.currentTimeMillis() - writeT0 - readStallTime;  // exclude our read stall time.
+        // other than our read stall time, all overhead from us are included, and blamed on client.
+        // that should be fine on normal loads. on a busy system tho, it's unclear how to get accurate
+        // timeSpent that's fairly incurred by client.
+        // because the default min download throughput is quite low, if it's reached for many clients
+        // due to system overload, there is a big problem anyway.
+        // server probably should limit connections, so it never reaches such overload state.
+        // if server is willing to server many concurrent clients slowly, set a very low min download throughput.
+        if(timeSpent>10_000)  // don't check in the beginning
+        {
+            long minGoal = minThroughput * timeSpent / 1000;
+            if(writtenTotal < minGoal)
+                throw new IOException("Client download throughput too low");  // as if network error
+        }
+    }
 
     Goto body_awaitReadComplete()
     {
@@ -335,7 +358,7 @@ class ImplConnResp
             tcpConn.queueWrite(TcpConnection.TCP_FIN);
         }
 
-        if(ImplConn.PIPELINE) // delay actual flush
+        if(ImplConn.PIPELINE || (!isLast && hConn.nextResponseReady())) // delay actual flush
         {
             writtenTotal+=tcpConn.getWriteQueueSize();
             hConn.flush=1;
@@ -405,8 +428,110 @@ class ImplConnResp
         return Goto.respEnd;
     }
 
+    // sendfile ====================================================================================
+    // if body is a file region (e.g. FileHttpEntity, StaticHandler, with or without range),
+    // and tcpConn is plain, write file bytes to socket by FileChannel.transferTo(), instead of reading body.
+    // not for SSL, or gzip-on-the-fly, or chunked; in these cases body isn't a file region, or tcpConn is not plain.
+    //
+    // opening a FileChannel is a blocking call, which is done in a blocking executor.
+    // that is not worth it for small files, which are better served by FileByteSource with a shared channel.
+
+    static final long fileTransferMinLength = Long.getLong(ImplConnResp.class.getName()+
+            ".fileTransferMinLength", 64*1024).longValue();
+    // set to Long.MAX_VALUE to disable sendfile
+
+    _FileRegion fileRegion;
+    FileChannel fileChannel;
+    Async<FileChannel> fileOpening;
+
+    Goto openFile()
+    {
+        fileOpening = Async.execute(() -> FileChannel.open(fileRegion.file, StandardOpenOption.READ));
+        fileOpening.onCompletion(result ->
+            hConn.jump(fileOpened(result)));
+        return Goto.NA;
+    }
+
+    Goto fileOpened(Result<FileChannel> result)
+    {
+        fileOpening = null;
+        try
+        {
+            fileChannel = result.getOrThrow();
+            // we need to know that the file has enough bytes; transferTo() beyond EOF returns 0, same as stall.
+            if(fileChannel.size() < fileRegion.position + bodyLength)
+                throw new IllegalStateException(
+                    "response entity body is shorter than Content-Length. file="+fileRegion.file);
+        }
+        catch (Exception e)
+        {
+            return bodyErr(e);
+        }
+
+        return transferFile();
+    }
+
+    Goto transferFile()
+    {
+        long remaining;
+        try
+        {
+            remaining = tcpConn_write(); // head, and previous pipelined responses
+            if(remaining==0)
+            {
+                long w = ((_TcpConnTransfer)tcpConn).transferFrom(
+                    fileChannel, fileRegion.position + bodyTotal, bodyLength - bodyTotal); // throws
+                bodyTotal += w;
+                writtenTotal += w;
+                remaining = bodyLength - bodyTotal;
+                if(remaining>0)
+                    checkThroughput(); // throws
+            }
+        }
+        catch (Exception e)
+        {   return connErr(e);   }
+
+        if(remaining>0)
+            return tcpConn_uponWritable(Goto.respTransfer);  // loop transferFile
+
+        closeBody();
+        return toFlushAll();
+    }
+
+    void closeFile()
+    {
+        if(fileOpening!=null) // can't close during open pending
+        {
+            fileOpening.cancel(new Exception("cancelled"));
+            fileOpening.onCompletion(result -> {
+                if(result.isSuccess())
+                    closeFileChannel(result.getValue());
+            });
+            fileOpening = null;
+        }
+
+        if(fileChannel!=null)
+        {
+            closeFileChannel(fileChannel);
+            fileChannel = null;
+        }
+    }
+    static void closeFileChannel(FileChannel fileChannel)
+    {
+        try
+        {
+            fileChannel.close();
+        }
+        catch (Exception e) // not supposed to happen
+        {
+            HttpServer.logUnexpected(e);
+        }
+    }
+
     void closeBody()
     {
+        closeFile();
+
         if(body ==null) // was closed
             return;
 
@@ -0,0 +1,160 @@
+package bayou.http;
+
+import _bayou._tmp._ThreadLoad;
+import bayou.async.Async;
+import bayou.bytes.ByteSource;
+import bayou.gzip.GzipByteSource;
+import bayou.gzip.GzipHttpEntity;
+import bayou.mime.ContentType;
+import bayou.util.End;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// auto gzip: compression level policy, and metrics. see HttpServerConf.autoGzipAdaptive.
+// one instance per server conf, shared by all connections, accessed from all selector threads.
+//
+// adaptive level, by the load of the current selector thread, and by the ratio(out/in) seen for the content type:
+//    light load : level 6 if the type compresses well; level 1 otherwise.
+//    heavy load : no gzip if the type compresses poorly; level 1 otherwise.
+//    otherwise  : level 1
+// if not adaptive, always level 1, which is good enough for on-the-fly gzip.
+class ImplGzipPolicy
+{
+    static final float LOAD_LIGHT = 0.5f, LOAD_HEAVY = 0.85f;
+    static final float RATIO_GOOD = 0.35f, RATIO_POOR = 0.8f;
+    static final int LEVEL_FAST = 1, LEVEL_GOOD = 6;
+
+    // history per content type (type/subtype). the number of types is limited by autoGzipContentTypes,
+    // except for wildcard subtypes; beyond maxTypes, the main type is used as the key.
+    static final int maxTypes = 256;
+    final ConcurrentHashMap<String,TypeStats> typeStats = new ConcurrentHashMap<>();
+
+    static final class TypeStats
+    {
+        // moving average of out/in; -1 if no sample yet.
+        // concurrent updates may race and lose samples; that's fine for an estimate.
+        volatile float ratio = -1.0f;
+
+        void sample(float r)
+        {
+            float avg = ratio;
+            ratio = avg<0 ? r : avg*0.875f + r*0.125f;
+        }
+    }
+
+    TypeStats typeStats(ContentType contentType)
+    {
+        String key = contentType.types();
+        TypeStats stats = typeStats.get(key);
+        if(stats!=null)
+            return stats;
+        if(typeStats.size()>=maxTypes)
+            key = contentType.type();
+        return typeStats.computeIfAbsent(key, k->new TypeStats());
+    }
+
+    // metrics
+    final LongAdder bytesIn = new LongAdder();
+    final LongAdder bytesOut = new LongAdder();
+    final LongAdder nanos = new LongAdder();
+
+    // return the entity to be sent; it's `entity` itself if gzip is skipped.
+    // entity.contentType() is not null, see ImplRespMod.shouldGzip()
+    HttpEntity gzip(HttpEntity entity, boolean adaptive)
+    {
+        TypeStats stats = typeStats(entity.contentType());
+        int level = LEVEL_FAST;
+        if(adaptive)
+        {
+            float load = _ThreadLoad.current(); // -1 if unknown, e.g. not on a selector thread
+            float ratio = stats.ratio;          // -1 if unknown
+            if(load>=LOAD_HEAVY && ratio>RATIO_POOR)
+                return entity;  // not worth the CPU
+            if(load>=0 && load<LOAD_LIGHT && ratio>=0 && ratio<RATIO_GOOD)
+                level = LEVEL_GOOD;
+        }
+        return new Entity(entity, level, stats);
+    }
+
+    class Entity extends GzipHttpEntity
+    {
+        final int level;
+        final TypeStats stats;
+
+        Entity(HttpEntity origin, int level, TypeStats stats)
+        {
+            super(origin, level);
+            this.level = level;
+            this.stats = stats;
+        }
+
+        @Override
+        public ByteSource body()
+        {
+            HttpEntity origin = getOriginEntity();
+            // unknown length: the body is probably produced progressively; don't hold back compressed data.
+            boolean syncFlush = origin.contentLength()==null;
+            return new Meter(origin.body(), level, syncFlush, stats);
+        }
+    }
+
+    // count bytes in/out, and time spent in gzip.read().
+    // the time includes synchronous reads of the origin body, which are usually cheap (e.g. bytes in memory);
+    // if an origin read completes asynchronously, its compression is done in callback and isn't counted.
+    class Meter implements ByteSource
+    {
+        final TypeStats stats;
+        final GzipByteSource gzip;
+
+        long in, out, time;
+        boolean eof;
+        boolean recorded;
+
+        Meter(ByteSource originBody, int level, boolean syncFlush, TypeStats stats)
+        {
+            this.stats = stats;
+            this.gzip = new GzipByteSource(new ByteSource()
+            {
+                @Override
+                public Async<ByteBuffer> read()
+                {
+                    return originBody.read().peek(bb -> in += bb.remaining());
+                }
+
+                @Override
+                public Async<Void> close()
+                {
+                    return originBody.close();
+                }
+            }, level, syncFlush);
+        }
+
+        @Override
+        public Async<ByteBuffer> read() throws IllegalStateException
+        {
+            long t0 = System.nanoTime();
+            Async<ByteBuffer> result = gzip.read();
+            time += System.nanoTime() - t0;
+            return result.peek(bb -> out += bb.remaining(),
+                ex -> { if(ex instanceof End) eof = true; });
+        }
+
+        @Override
+        public Async<Void> close()
+        {
+            if(!recorded)
+            {
+                recorded = true;
+                bytesIn.add(in);
+                bytesOut.add(out);
+                nanos.add(time);
+                if(eof && in>0) // a partial body is not a good sample; deflater buffers lots of input.
+                    stats.sample((float)out/in);
+            }
+            return gzip.close();
+        }
+    }
+
+}
@@ -0,0 +1,137 @@
+package bayou.http;
+
+import _bayou._async._Asyncs;
+import bayou.async.Async;
+import bayou.async.Promise;
+import bayou.tcp.TcpConnection;
+import bayou.util.End;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayDeque;
+
+// message body fed by HTTP/2 DATA frames, instead of read from tcpConn directly.
+// used for request bodies on server side, and response bodies on client side.
+// all methods are invoked on the selector thread of the connection.
+abstract class ImplH2Body extends ImplHttpEntity.Body
+{
+    final ArrayDeque<ByteBuffer> chunks = new ArrayDeque<>();
+    boolean end;
+    Exception error;
+    Promise<ByteBuffer> pending;
+    final long bodyMaxLength;
+
+    ImplH2Body(TcpConnection tcpConn, Duration confReadTimeout, long minThroughput, long bodyMaxLength)
+    {
+        super(tcpConn, confReadTimeout, minThroughput);
+        this.bodyMaxLength = bodyMaxLength;
+    }
+
+    // `bytes` of data are consumed by the reader. the stream window can be updated.
+    abstract void consumed(int bytes);
+
+    // DATA frame. the bytes are copied, since the frame buffer will be reused.
+    void onData(byte[] bytes, int off, int len)
+    {
+        byte[] copy = new byte[len];
+        System.arraycopy(bytes, off, copy, 0, len);
+        chunks.addLast(ByteBuffer.wrap(copy));
+        wake();
+    }
+
+    // END_STREAM
+    void onEnd()
+    {
+        end = true;
+        wake();
+    }
+
+    // stream is reset, or connection is closed.
+    void abort(Exception reason)
+    {
+        if(error==null)
+            error = reason;
+        wake();
+    }
+
+    @Override
+    boolean eof()
+    {
+        return end && chunks.isEmpty();
+    }
+
+    @Override
+    ByteBuffer nb_read() throws Exception
+    {
+        if(error!=null)
+            throw error;
+
+        ByteBuffer bb = chunks.pollFirst();
+        if(bb==null)
+            return end? END : TcpConnection.STALL;
+
+        bytesRead += bb.remaining();
+        if(bytesRead > bodyMaxLength)
+            throw new IOException("body length exceeds "+bodyMaxLength);
+
+        consumed(bb.remaining());
+        return bb;
+    }
+
+    @Override
+    Async<ByteBuffer> read2(Promise<ByteBuffer> promise)
+    {
+        ByteBuffer bb;
+        try
+        {
+            bb = nb_read();
+        }
+        catch (Exception e)
+        {
+            return fail(promise, e);
+        }
+
+        if(bb==END)
+        {
+            if(awaitEof!=null && !awaitEof.isCompleted())
+                awaitEof.succeed(null);
+
+            return _Asyncs.fail(promise, End.instance());
+        }
+
+        if(bb!=TcpConnection.STALL)
+            return _Asyncs.succeed(promise, bb);
+
+        // read stalled. instead of tcpConn.awaitReadable(), wait for wake().
+        // check throughput, same as Body.read2()
+        long time = System.currentTimeMillis() - t0;
+        if(time> 10_000) // don't check in the beginning
+        {
+            long minRead = minThroughput * time / 1000;
+            if(bytesRead < minRead)
+                return fail(promise, new IOException("Transfer throughput too low"));
+        }
+
+        Promise<ByteBuffer> promiseF = (promise!=null)?promise : new Promise<ByteBuffer>();
+        pending = promiseF;
+        promiseF.onCancel(reason -> {
+            if(pending!=promiseF)
+                return;
+            pending = null;
+            fail(promiseF, reason);
+        });
+        return promiseF;
+    }
+
+    // more data, EOF, or error.
+    void wake()
+    {
+        Promise<ByteBuffer> p = pending;
+        if(p==null)
+            return;
+        pending = null;
+        read2(p);
+    }
+
+}
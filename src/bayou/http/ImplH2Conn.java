@@ -0,0 +1,953 @@
+package bayou.http;
+
+import _bayou._http._Hpack;
+import _bayou._tmp._ByteBufferUtil;
+import _bayou._tmp._TcpConnWriteBuffer;
+import _bayou._tmp._TrafficDumpWrapper;
+import bayou.async.Async;
+import bayou.async.Fiber;
+import bayou.async.Promise;
+import bayou.ssl.SslConnection;
+import bayou.tcp.TcpConnection;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.cert.X509Certificate;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeoutException;
+
+// HTTP/2 connection, server side. RFC 7540
+//
+// all code runs on the selector thread of tcpConn: connection level code in the connection fiber,
+// stream level code (handler, response body) in stream fibers. no locking is needed.
+//
+// read flow: read bytes -> frames -> streams. HEADERS starts a new stream, DATA feeds request bodies.
+// write flow: frames are queued to tcpConn, then flushed. DATA frames of responses are produced by pumpData(),
+//   round-robin among streams that have data ready, within flow control windows,
+//   and under the high mark (conf.outboundBufferSize) of the write queue.
+//
+// we don't do server push, or priority. PRIORITY frames are ignored.
+class ImplH2Conn
+{
+    static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+    static final int DATA=0, HEADERS=1, PRIORITY=2, RST_STREAM=3, SETTINGS=4, PUSH_PROMISE=5, PING=6,
+        GOAWAY=7, WINDOW_UPDATE=8, CONTINUATION=9;
+
+    static final int END_STREAM=0x1, ACK=0x1, END_HEADERS=0x4, PADDED=0x8, PRIORITY_FLAG=0x20;
+
+    static final int NO_ERROR=0x0, PROTOCOL_ERROR=0x1, INTERNAL_ERROR=0x2, FLOW_CONTROL_ERROR=0x3,
+        STREAM_CLOSED=0x5, FRAME_SIZE_ERROR=0x6, REFUSED_STREAM=0x7, CANCEL=0x8, COMPRESSION_ERROR=0x9,
+        ENHANCE_YOUR_CALM=0xb;
+
+    static final int SETTINGS_HEADER_TABLE_SIZE=1, SETTINGS_ENABLE_PUSH=2, SETTINGS_MAX_CONCURRENT_STREAMS=3,
+        SETTINGS_INITIAL_WINDOW_SIZE=4, SETTINGS_MAX_FRAME_SIZE=5, SETTINGS_MAX_HEADER_LIST_SIZE=6;
+
+    static final int FRAME_HEAD = 9;
+    static final int MAX_FRAME_SIZE = 16384;  // protocol default, for both directions. we don't change it.
+    static final int INITIAL_WINDOW = 65535;  // protocol default. we don't change it.
+    static final int MAX_WINDOW = Integer.MAX_VALUE;
+
+    static final int maxConcurrentStreams = Integer.getInteger(ImplH2Conn.class.getName()+
+        ".maxConcurrentStreams", 100).intValue();
+
+    // flood protection. a peer may send cheap frames that cost us work and memory, e.g. PING and SETTINGS
+    // that we must acknowledge, or streams that are opened and reset immediately (rapid reset),
+    // or frames that provoke RST_STREAM from us. (CVE-2019-9512/9514/9515, CVE-2023-44487)
+    // max number of PING, SETTINGS, or RST_STREAM(sent or received) frames per second, for each kind.
+    // beyond that, the connection is closed with ENHANCE_YOUR_CALM.
+    static final int maxFloodFrames = Integer.getInteger(ImplH2Conn.class.getName()+
+        ".maxFloodFrames", 200).intValue();
+
+
+    // whether bb starts with the connection preface. at least 4 bytes are needed, "PRI ".
+    // a partial preface is accepted; ImplH2Conn will check the full preface.
+    static boolean isPreface(ByteBuffer bb)
+    {
+        int n = Math.min(bb.remaining(), PREFACE.length);
+        if(n<4)
+            return false;
+        int p = bb.position();
+        for(int i=0; i<n; i++)
+            if(bb.get(p+i)!=PREFACE[i])
+                return false;
+        return true;
+    }
+
+    // stream error if streamId!=0; otherwise connection error
+    static class H2Error extends Exception
+    {
+        final int streamId;
+        final int code;
+        H2Error(int streamId, int code, String message)
+        {
+            super(message);
+            this.streamId = streamId;
+            this.code = code;
+        }
+    }
+    static H2Error connError(int code, String message)
+    {
+        return new H2Error(0, code, message);
+    }
+
+    // exposes the internal array, to avoid copying
+    static class Bytes extends ByteArrayOutputStream
+    {
+        byte[] array(){ return buf; }
+    }
+
+
+
+    HttpServer server;
+    HttpServerConf conf;
+    TcpConnection tcpConn;
+    Promise<Void> promise;
+    Executor executor; // of the connection fiber
+
+    _TrafficDumpWrapper dump;
+
+    List<X509Certificate> certs; // same for all requests
+
+    final _Hpack.Decoder hpackDecoder = new _Hpack.Decoder(4096);
+    final _Hpack.Encoder hpackEncoder = new _Hpack.Encoder(4096);
+
+    final HashMap<Integer,ImplH2Stream> streams = new HashMap<>();
+    int lastStreamId; // highest stream id initiated by client
+
+    long sendWindow = INITIAL_WINDOW; // connection level
+    int recvUnacked; // connection level DATA bytes received, not yet acknowledged by WINDOW_UPDATE
+    int peerInitialWindow = INITIAL_WINDOW;
+
+    boolean settingsReceived;
+    boolean goAwayReceived;
+    boolean goAwaySent;
+    boolean closing;  // GOAWAY and FIN queued; close after flush
+    boolean closed;
+
+    long floodWindowStart;
+    int pingCount, settingsCount, rstCount; // in the current 1-second window
+
+    ImplH2Conn(HttpServer server, TcpConnection tcpConn)
+    {
+        this.server = server;
+        this.conf = server.conf;
+        this.tcpConn = tcpConn;
+
+        this.dump = conf.trafficDumpWrapper;
+        if(dump!=null)
+            dump.print(connId(), " HTTP/2 [", tcpConn.getPeerIp().getHostAddress(), "] ==\r\n");
+
+        certs = ImplConnReq.certs(tcpConn);
+
+        startFiber();
+    }
+
+    void startFiber()
+    {
+        new Fiber<Void>(tcpConn.getExecutor(), fiberName(), ()->
+        {
+            promise = new Promise<>();
+            promise.fiberTracePop();
+            executor = Fiber.current().getExecutor();
+
+            queueSettings();
+            read();
+
+            return promise;
+        });
+    }
+
+    String connId()
+    {
+        return "== "+((tcpConn instanceof SslConnection)?"https":"http")+" connection #"+ tcpConn.getId();
+    }
+
+    String fiberName()
+    {
+        return ((tcpConn instanceof SslConnection)?"https":"http")+" connection #"+tcpConn.getId()
+            +" [" +tcpConn.getPeerIp().getHostAddress()+"] HTTP/2";
+    }
+
+
+    // read flow ===============================================================================================
+
+    final ByteBuffer inBuffer = ByteBuffer.allocate(FRAME_HEAD+MAX_FRAME_SIZE); // in write mode
+    int prefaceMatched;
+
+    // if the peer keeps sending frames that we must respond to, but doesn't read our responses,
+    // the write queue grows. stop reading when the queue is too big; resume after it's flushed.
+    boolean readPaused;
+
+    void read()
+    {
+        // yield after some reads, to be fair to other connections; peer may keep sending frames
+        for(int i=0; i<16; i++)
+        {
+            ByteBuffer bb;
+            try
+            {
+                bb = tcpConn.read(); // throws
+            }
+            catch (Exception e)
+            {
+                HttpServer.logErrorOrDebug(e);
+                close(null, "error while reading: ", e);
+                return;
+            }
+
+            if(bb==TcpConnection.STALL)
+            {
+                flush();
+                if(!closed)
+                    awaitReadable();
+                return;
+            }
+
+            if(bb==TcpConnection.TCP_FIN || bb==SslConnection.SSL_CLOSE_NOTIFY)
+            {
+                close(null, "closed by client", null);
+                return;
+            }
+
+            try
+            {
+                onBytes(bb);
+            }
+            catch (H2Error e) // connection error
+            {
+                goAway(e.code, e.getMessage());
+                return;
+            }
+            catch (Exception|Error e) // from our code; stream code catches app errors
+            {
+                HttpServer.logUnexpected(e);
+                goAway(INTERNAL_ERROR, "unexpected error: "+e);
+                return;
+            }
+
+            if(goAwaySent)  // stop reading
+            {
+                flush();
+                return;
+            }
+
+            if(tcpConn.getWriteQueueSize() > 2*conf.outboundBufferSize)
+            {
+                flush();
+                if(awaitingWritable) // flush() will resume reading
+                {
+                    readPaused = true;
+                    return;
+                }
+            }
+        }
+
+        flush();
+        executor.execute(this::read);
+    }
+
+    void awaitReadable()
+    {
+        // if there are no streams, the connection is idle; we'll close it after keepAliveTimeout.
+        // otherwise, just wait again after timeout. request body read() has its own timeout.
+        boolean idle = streams.isEmpty();
+        tcpConn.awaitReadable(/*accepting*/idle).timeout(conf.keepAliveTimeout)
+            .onCompletion(result -> {
+                if(closed)
+                    return;
+                Exception error = result.getException();
+                if(error==null)
+                    read();
+                else if(!(error instanceof TimeoutException))
+                {
+                    HttpServer.logErrorOrDebug(error);
+                    close(null, "error while waiting for frames: ", error);
+                }
+                else if(streams.isEmpty())
+                    goAway(NO_ERROR, "keep alive timeout");
+                else
+                    awaitReadable();
+            });
+    }
+
+    void onBytes(ByteBuffer bb) throws H2Error
+    {
+        while(bb.hasRemaining())
+        {
+            int n = Math.min(bb.remaining(), inBuffer.remaining());
+            inBuffer.put(_ByteBufferUtil.slice(bb, n));
+            inBuffer.flip();
+            try
+            {
+                parseFrames();
+            }
+            finally
+            {
+                inBuffer.compact();
+            }
+            if(goAwaySent)
+                return;
+        }
+    }
+
+    void parseFrames() throws H2Error
+    {
+        byte[] array = inBuffer.array();
+        int offset = inBuffer.arrayOffset();
+
+        if(prefaceMatched<PREFACE.length)
+        {
+            while(prefaceMatched<PREFACE.length && inBuffer.hasRemaining())
+            {
+                if(inBuffer.get()!=PREFACE[prefaceMatched++])
+                    throw connError(PROTOCOL_ERROR, "invalid connection preface");
+            }
+            if(prefaceMatched<PREFACE.length)
+                return;
+        }
+
+        while(inBuffer.remaining()>=FRAME_HEAD)
+        {
+            int p = inBuffer.position();
+            int length = (array[offset+p]&0xff)<<16 | (array[offset+p+1]&0xff)<<8 | (array[offset+p+2]&0xff);
+            if(length>MAX_FRAME_SIZE)
+                throw connError(FRAME_SIZE_ERROR, "frame too large: "+length);
+            if(inBuffer.remaining()<FRAME_HEAD+length)
+                return;
+
+            int type = array[offset+p+3]&0xff;
+            int flags = array[offset+p+4]&0xff;
+            int streamId = inBuffer.getInt(p+5) & 0x7fff_ffff;
+            inBuffer.position(p+FRAME_HEAD+length);
+
+            try
+            {
+                onFrame(type, flags, streamId, array, offset+p+FRAME_HEAD, length);
+            }
+            catch (H2Error e)
+            {
+                if(e.streamId==0)
+                    throw e;
+                checkRstFlood();
+                resetStream(e.streamId, e.code, e.getMessage());
+            }
+            if(goAwaySent)
+                return;
+        }
+    }
+
+    int headersStreamId; // non-zero if expecting CONTINUATION
+    boolean headersEndStream;
+    final Bytes headerBlock = new Bytes();
+
+    void onFrame(int type, int flags, int streamId, byte[] bytes, int off, int len) throws H2Error
+    {
+        if(headersStreamId!=0 && type!=CONTINUATION)
+            throw connError(PROTOCOL_ERROR, "expect CONTINUATION");
+        if(!settingsReceived && type!=SETTINGS)
+            throw connError(PROTOCOL_ERROR, "expect SETTINGS");
+
+        switch(type)
+        {
+            case DATA          : onData(flags, streamId, bytes, off, len); break;
+            case HEADERS       : onHeaders(flags, streamId, bytes, off, len); break;
+            case PRIORITY      : onPriority(streamId, len); break;
+            case RST_STREAM    : onRstStream(streamId, bytes, off, len); break;
+            case SETTINGS      : onSettings(flags, streamId, bytes, off, len); break;
+            case PUSH_PROMISE  : throw connError(PROTOCOL_ERROR, "PUSH_PROMISE from client");
+            case PING          : onPing(flags, streamId, bytes, off, len); break;
+            case GOAWAY        : onGoAway(streamId, len); break;
+            case WINDOW_UPDATE : onWindowUpdate(streamId, bytes, off, len); break;
+            case CONTINUATION  : onContinuation(flags, streamId, bytes, off, len); break;
+            default: // unknown frame types are ignored
+        }
+    }
+
+    // DATA and HEADERS may be padded. return payload length without padding; payload starts at off+1
+    static int unpad(byte[] bytes, int off, int len) throws H2Error
+    {
+        if(len<1)
+            throw connError(FRAME_SIZE_ERROR, "invalid padded frame");
+        int padLength = bytes[off]&0xff;
+        if(padLength>len-1)
+            throw connError(PROTOCOL_ERROR, "invalid padding");
+        return len-1-padLength;
+    }
+
+    void onData(int flags, int streamId, byte[] bytes, int off, int len) throws H2Error
+    {
+        if(streamId==0)
+            throw connError(PROTOCOL_ERROR, "DATA on stream 0");
+
+        int frameLength = len; // padding counts for flow control
+        if((flags&PADDED)!=0)
+        {
+            len = unpad(bytes, off, len);
+            off++;
+        }
+
+        // connection level window. acknowledged immediately, so that one stream won't block others.
+        // stream level window is acknowledged after app reads the data.
+        recvUnacked += frameLength;
+        if(recvUnacked>INITIAL_WINDOW)
+            throw connError(FLOW_CONTROL_ERROR, "connection window exceeded");
+        if(recvUnacked>=INITIAL_WINDOW/2)
+        {
+            queueWindowUpdate(tcpConn, 0, recvUnacked);
+            recvUnacked = 0;
+        }
+
+        ImplH2Stream stream = streams.get(streamId);
+        if(stream==null)
+        {
+            if(streamId>lastStreamId)
+                throw connError(PROTOCOL_ERROR, "DATA on idle stream");
+            return; // closed stream; we may have reset it. ignore.
+        }
+
+        stream.onData(bytes, off, len, frameLength, (flags&END_STREAM)!=0); // throws
+    }
+
+    void onHeaders(int flags, int streamId, byte[] bytes, int off, int len) throws H2Error
+    {
+        if(streamId==0)
+            throw connError(PROTOCOL_ERROR, "HEADERS on stream 0");
+        int end = off+len;
+        if((flags&PADDED)!=0)
+        {
+            end = off+1+unpad(bytes, off, len);
+            off++;
+        }
+        if((flags&PRIORITY_FLAG)!=0)
+        {
+            if(end-off<5)
+                throw connError(FRAME_SIZE_ERROR, "invalid HEADERS frame");
+            off += 5; // ignore priority
+        }
+
+        headersStreamId = streamId;
+        headersEndStream = (flags&END_STREAM)!=0;
+        headerBlock.reset();
+        appendHeaderBlock(bytes, off, end-off);
+
+        if((flags&END_HEADERS)!=0)
+            onHeaderBlock();
+    }
+
+    void onContinuation(int flags, int streamId, byte[] bytes, int off, int len) throws H2Error
+    {
+        if(headersStreamId==0 || streamId!=headersStreamId)
+            throw connError(PROTOCOL_ERROR, "unexpected CONTINUATION");
+
+        appendHeaderBlock(bytes, off, len);
+
+        if((flags&END_HEADERS)!=0)
+            onHeaderBlock();
+    }
+
+    void appendHeaderBlock(byte[] bytes, int off, int len) throws H2Error
+    {
+        // compressed size; a loose limit. the decoded size is checked against requestHeadTotalMaxLength.
+        if(headerBlock.size()+len > 2*conf.requestHeadTotalMaxLength+1024)
+            throw connError(ENHANCE_YOUR_CALM, "header block too large");
+        headerBlock.write(bytes, off, len);
+    }
+
+    void onHeaderBlock() throws H2Error
+    {
+        int streamId = headersStreamId;
+        headersStreamId = 0;
+
+        // must decode even if we'll ignore the headers, to keep the dynamic table in sync
+        ArrayList<String> fields = new ArrayList<>();
+        try
+        {
+            hpackDecoder.decode(headerBlock.array(), 0, headerBlock.size(), (name, value) -> {
+                fields.add(name);
+                fields.add(value);
+            });
+        }
+        catch (Exception e)
+        {
+            throw connError(COMPRESSION_ERROR, "header decoding error: "+e.getMessage());
+        }
+
+        ImplH2Stream stream = streams.get(streamId);
+        if(stream!=null) // trailers. must end the stream. ignored.
+        {
+            if(!headersEndStream)
+                throw new H2Error(streamId, PROTOCOL_ERROR, "trailers without END_STREAM");
+            stream.onData(null, 0, 0, 0, true); // throws
+            return;
+        }
+        if(streamId<=lastStreamId) // closed stream. we may have reset it. ignore
+            return;
+        if((streamId&1)==0)
+            throw connError(PROTOCOL_ERROR, "invalid stream id: "+streamId);
+        lastStreamId = streamId;
+
+        if(goAwayReceived)
+            return;
+        if(streams.size()>=maxConcurrentStreams)
+        {
+            checkRstFlood();
+            queueRstStream(tcpConn, streamId, REFUSED_STREAM);
+            return;
+        }
+
+        stream = new ImplH2Stream(this, streamId);
+        streams.put(streamId, stream);
+        stream.onHeaders(fields, headersEndStream); // throws
+    }
+
+    void onPriority(int streamId, int len) throws H2Error
+    {
+        if(streamId==0)
+            throw connError(PROTOCOL_ERROR, "PRIORITY on stream 0");
+        if(len!=5)
+            throw new H2Error(streamId, FRAME_SIZE_ERROR, "invalid PRIORITY frame");
+        // ignored
+    }
+
+    void onRstStream(int streamId, byte[] bytes, int off, int len) throws H2Error
+    {
+        if(streamId==0)
+            throw connError(PROTOCOL_ERROR, "RST_STREAM on stream 0");
+        if(len!=4)
+            throw connError(FRAME_SIZE_ERROR, "invalid RST_STREAM frame");
+        if(streamId>lastStreamId)
+            throw connError(PROTOCOL_ERROR, "RST_STREAM on idle stream");
+        checkRstFlood();
+
+        ImplH2Stream stream = streams.remove(streamId);
+        if(stream!=null)
+            stream.abort(new Exception("stream reset by client, error code="+getInt(bytes, off)));
+    }
+
+    void onSettings(int flags, int streamId, byte[] bytes, int off, int len) throws H2Error
+    {
+        if(streamId!=0)
+            throw connError(PROTOCOL_ERROR, "SETTINGS on stream "+streamId);
+        if((flags&ACK)!=0)
+        {
+            if(len!=0)
+                throw connError(FRAME_SIZE_ERROR, "invalid SETTINGS ACK");
+            return;
+        }
+        if(len%6!=0)
+            throw connError(FRAME_SIZE_ERROR, "invalid SETTINGS frame");
+        floodWindow();
+        if(++settingsCount>maxFloodFrames)
+            throw connError(ENHANCE_YOUR_CALM, "too many SETTINGS frames");
+
+        for(int i=off; i<off+len; i+=6)
+        {
+            int id = (bytes[i]&0xff)<<8 | (bytes[i+1]&0xff);
+            long value = getInt(bytes, i+2) & 0xffff_ffffL;
+            switch(id)
+            {
+                case SETTINGS_HEADER_TABLE_SIZE:
+                    hpackEncoder.setMaxTableSize((int)Math.min(value, MAX_WINDOW));
+                    break;
+
+                case SETTINGS_ENABLE_PUSH:
+                    if(value>1)
+                        throw connError(PROTOCOL_ERROR, "invalid SETTINGS_ENABLE_PUSH");
+                    break;
+
+                case SETTINGS_INITIAL_WINDOW_SIZE:
+                    if(value>MAX_WINDOW)
+                        throw connError(FLOW_CONTROL_ERROR, "invalid SETTINGS_INITIAL_WINDOW_SIZE");
+                    int delta = (int)value - peerInitialWindow;
+                    peerInitialWindow = (int)value;
+                    for(ImplH2Stream stream : streams.values())
+                    {
+                        stream.sendWindow += delta;
+                        if(stream.sendWindow>MAX_WINDOW)
+                            throw connError(FLOW_CONTROL_ERROR, "stream window overflow");
+                        if(delta>0)
+                            stream.checkWriteReady();
+                    }
+                    break;
+
+                case SETTINGS_MAX_FRAME_SIZE:
+                    if(value<16384 || value>16777215)
+                        throw connError(PROTOCOL_ERROR, "invalid SETTINGS_MAX_FRAME_SIZE");
+                    // we don't send frames larger than the default anyway
+                    break;
+
+                default: // MAX_CONCURRENT_STREAMS, MAX_HEADER_LIST_SIZE: not relevant, we don't push.
+                    // unknown settings are ignored.
+            }
+        }
+
+        settingsReceived = true;
+        queueFrame(tcpConn, SETTINGS, ACK, 0, null, 0, 0);
+    }
+
+    void onPing(int flags, int streamId, byte[] bytes, int off, int len) throws H2Error
+    {
+        if(streamId!=0)
+            throw connError(PROTOCOL_ERROR, "PING on stream "+streamId);
+        if(len!=8)
+            throw connError(FRAME_SIZE_ERROR, "invalid PING frame");
+        if((flags&ACK)!=0)
+            return;
+        floodWindow();
+        if(++pingCount>maxFloodFrames)
+            throw connError(ENHANCE_YOUR_CALM, "too many PING frames");
+        queueFrame(tcpConn, PING, ACK, 0, bytes, off, 8);
+    }
+
+    void onGoAway(int streamId, int len) throws H2Error
+    {
+        if(streamId!=0)
+            throw connError(PROTOCOL_ERROR, "GOAWAY on stream "+streamId);
+        if(len<8)
+            throw connError(FRAME_SIZE_ERROR, "invalid GOAWAY frame");
+
+        // client won't start new streams. we'll close the connection after existing streams are done.
+        goAwayReceived = true;
+        if(streams.isEmpty())
+            goAway(NO_ERROR, "GOAWAY from client");
+    }
+
+    void onWindowUpdate(int streamId, byte[] bytes, int off, int len) throws H2Error
+    {
+        if(len!=4)
+            throw connError(FRAME_SIZE_ERROR, "invalid WINDOW_UPDATE frame");
+        int increment = getInt(bytes, off) & 0x7fff_ffff;
+
+        if(streamId==0)
+        {
+            if(increment==0)
+                throw connError(PROTOCOL_ERROR, "WINDOW_UPDATE increment 0");
+            sendWindow += increment;
+            if(sendWindow>MAX_WINDOW)
+                throw connError(FLOW_CONTROL_ERROR, "connection window overflow");
+            return; // flush() will pump data
+        }
+
+        ImplH2Stream stream = streams.get(streamId);
+        if(stream==null)
+        {
+            if(streamId>lastStreamId)
+                throw connError(PROTOCOL_ERROR, "WINDOW_UPDATE on idle stream");
+            return;
+        }
+        if(increment==0)
+            throw new H2Error(streamId, PROTOCOL_ERROR, "WINDOW_UPDATE increment 0");
+        stream.sendWindow += increment;
+        if(stream.sendWindow>MAX_WINDOW)
+            throw new H2Error(streamId, FLOW_CONTROL_ERROR, "stream window overflow");
+        stream.checkWriteReady();
+    }
+
+    void floodWindow()
+    {
+        long now = System.currentTimeMillis();
+        if(now-floodWindowStart>=1000)
+        {
+            floodWindowStart = now;
+            pingCount = settingsCount = rstCount = 0;
+        }
+    }
+
+    // RST_STREAM, received or sent
+    void checkRstFlood() throws H2Error
+    {
+        floodWindow();
+        if(++rstCount>maxFloodFrames)
+            throw connError(ENHANCE_YOUR_CALM, "too many stream resets");
+    }
+
+    static int getInt(byte[] bytes, int off)
+    {
+        return (bytes[off]&0xff)<<24 | (bytes[off+1]&0xff)<<16 | (bytes[off+2]&0xff)<<8 | (bytes[off+3]&0xff);
+    }
+
+
+    // streams =================================================================================================
+
+    // stream error
+    void resetStream(int streamId, int code, String message)
+    {
+        queueRstStream(tcpConn, streamId, code);
+        ImplH2Stream stream = streams.remove(streamId);
+        if(stream!=null)
+            stream.abort(new Exception("stream error: "+message));
+    }
+
+    // stream is done, both directions closed
+    void removeStream(ImplH2Stream stream)
+    {
+        streams.remove(stream.id);
+
+        if(goAwayReceived && streams.isEmpty() && !goAwaySent)
+            goAway(NO_ERROR, "GOAWAY from client");
+    }
+
+
+    // write flow ==============================================================================================
+
+    // streams that have DATA to send
+    final ArrayDeque<ImplH2Stream> writeReady = new ArrayDeque<>();
+
+    void queueSettings()
+    {
+        byte[] payload = new byte[12];
+        putSetting(payload, 0, SETTINGS_MAX_CONCURRENT_STREAMS, maxConcurrentStreams);
+        putSetting(payload, 6, SETTINGS_MAX_HEADER_LIST_SIZE, conf.requestHeadTotalMaxLength);
+        queueFrame(tcpConn, SETTINGS, 0, 0, payload, 0, payload.length);
+    }
+    static void putSetting(byte[] bytes, int off, int id, int value)
+    {
+        bytes[off] = (byte)(id>>8);
+        bytes[off+1] = (byte)id;
+        putInt(bytes, off+2, value);
+    }
+    static void putInt(byte[] bytes, int off, int value)
+    {
+        bytes[off] = (byte)(value>>>24);
+        bytes[off+1] = (byte)(value>>>16);
+        bytes[off+2] = (byte)(value>>>8);
+        bytes[off+3] = (byte)value;
+    }
+    static void putFrameHead(ByteBuffer bb, int length, int type, int flags, int streamId)
+    {
+        bb.put((byte)(length>>>16)).put((byte)(length>>>8)).put((byte)length)
+            .put((byte)type).put((byte)flags).putInt(streamId);
+    }
+
+    // frame writers below are static; also used by HttpClientH2Conn.
+
+    // a direct buffer lent by tcpConn if possible. saves a copy. see _TcpConnWriteBuffer
+    static ByteBuffer writeBuffer(TcpConnection tcpConn, int size)
+    {
+        ByteBuffer bb = null;
+        if(tcpConn instanceof _TcpConnWriteBuffer)
+            bb = ((_TcpConnWriteBuffer)tcpConn).checkOutWriteBuffer(size);
+        if(bb==null)
+            bb = ByteBuffer.allocate(size);
+        return bb;
+    }
+
+    // for small control frames. a heap buffer of the exact size; a pooled write buffer would be mostly wasted.
+    static void queueFrame(TcpConnection tcpConn, int type, int flags, int streamId, byte[] payload, int off, int len)
+    {
+        ByteBuffer bb = ByteBuffer.allocate(FRAME_HEAD+len);
+        putFrameHead(bb, len, type, flags, streamId);
+        if(len>0)
+            bb.put(payload, off, len);
+        bb.flip();
+        tcpConn.queueWrite(bb);
+    }
+
+    static void queueWindowUpdate(TcpConnection tcpConn, int streamId, int increment)
+    {
+        byte[] payload = new byte[4];
+        putInt(payload, 0, increment);
+        queueFrame(tcpConn, WINDOW_UPDATE, 0, streamId, payload, 0, 4);
+    }
+
+    static void queueRstStream(TcpConnection tcpConn, int streamId, int code)
+    {
+        byte[] payload = new byte[4];
+        putInt(payload, 0, code);
+        queueFrame(tcpConn, RST_STREAM, 0, streamId, payload, 0, 4);
+    }
+
+    // HEADERS, followed by CONTINUATION if necessary. all frames are queued together; nothing can interleave.
+    static void queueHeaders(TcpConnection tcpConn, int streamId, Bytes block, boolean endStream)
+    {
+        byte[] bytes = block.array();
+        int size = block.size();
+        int frames = Math.max(1, (size+MAX_FRAME_SIZE-1)/MAX_FRAME_SIZE);
+        ByteBuffer bb = writeBuffer(tcpConn, frames*FRAME_HEAD+size);
+        int off = 0;
+        for(int i=0; i<frames; i++)
+        {
+            int len = Math.min(MAX_FRAME_SIZE, size-off);
+            int flags = (i==frames-1)? END_HEADERS : 0;
+            if(i==0 && endStream)
+                flags |= END_STREAM;
+            putFrameHead(bb, len, i==0? HEADERS : CONTINUATION, flags, streamId);
+            bb.put(bytes, off, len);
+            off += len;
+        }
+        bb.flip();
+        tcpConn.queueWrite(bb);
+    }
+
+    static void queueData(TcpConnection tcpConn, int streamId, ByteBuffer data, boolean endStream)
+    {
+        ByteBuffer head = ByteBuffer.allocate(FRAME_HEAD);
+        putFrameHead(head, data.remaining(), DATA, endStream? END_STREAM : 0, streamId);
+        head.flip();
+        tcpConn.queueWrite(head);
+        if(data.hasRemaining())
+            tcpConn.queueWrite(data);
+    }
+
+    void addWriteReady(ImplH2Stream stream)
+    {
+        writeReady.addLast(stream);
+    }
+
+    // produce DATA frames from ready streams, round-robin, one frame at a time.
+    void pumpData()
+    {
+        long highMark = conf.outboundBufferSize;
+        while(sendWindow>0 && !writeReady.isEmpty() && tcpConn.getWriteQueueSize()<highMark)
+        {
+            ImplH2Stream stream = writeReady.pollFirst();
+            stream.writeData(); // may add itself back to writeReady
+        }
+    }
+
+    boolean flushPending;
+    // called by streams after they queue frames. coalesce frames from multiple streams in one write.
+    void requestFlush()
+    {
+        if(flushPending || closed)
+            return;
+        flushPending = true;
+        executor.execute(()->
+        {
+            flushPending = false;
+            flush();
+        });
+    }
+
+    boolean awaitingWritable;
+
+    void flush()
+    {
+        if(closed || awaitingWritable)
+            return;
+
+        while(true)
+        {
+            if(!closing)
+                pumpData();
+
+            long remaining;
+            try
+            {
+                tcpConn.write(); // throws
+                remaining = tcpConn.getWriteQueueSize();
+            }
+            catch (Exception e)
+            {
+                HttpServer.logErrorOrDebug(e);
+                close(null, "error while writing: ", e);
+                return;
+            }
+
+            if(remaining>0)
+            {
+                awaitingWritable = true;
+                tcpConn.awaitWritable().timeout(conf.writeTimeout)
+                    .onCompletion(result -> {
+                        awaitingWritable = false;
+                        if(closed)
+                            return;
+                        Exception error = result.getException();
+                        if(error!=null)
+                        {
+                            HttpServer.logErrorOrDebug(error);
+                            close(null, "error while writing: ", error);
+                        }
+                        else
+                            flush();
+                    });
+                return;
+            }
+
+            if(closing)
+            {
+                close(conf.closeTimeout, goAwayReason, null);
+                return;
+            }
+
+            if(readPaused) // write queue is flushed
+            {
+                readPaused = false;
+                executor.execute(this::read);
+            }
+
+            if(sendWindow<=0 || writeReady.isEmpty())
+                return;
+            // else, more DATA can be produced
+        }
+    }
+
+    String goAwayReason;
+
+    // graceful close; send GOAWAY, flush, then close.
+    void goAway(int code, String reason)
+    {
+        if(goAwaySent)
+            return;
+        goAwaySent = true;
+        goAwayReason = reason;
+
+        if(code!=NO_ERROR)
+            HttpServer.logErrorOrDebug(new Exception("HTTP/2 connection error: "+reason));
+
+        abortStreams(new Exception("connection closing: "+reason));
+
+        byte[] payload = new byte[8];
+        putInt(payload, 0, lastStreamId);
+        putInt(payload, 4, code);
+        queueFrame(tcpConn, GOAWAY, 0, 0, payload, 0, 8);
+        tcpConn.queueWrite(SslConnection.SSL_CLOSE_NOTIFY);
+        tcpConn.queueWrite(TcpConnection.TCP_FIN);
+        closing = true;
+
+        flush();
+    }
+
+    void abortStreams(Exception reason)
+    {
+        if(streams.isEmpty())
+            return;
+        ArrayList<ImplH2Stream> list = new ArrayList<>(streams.values());
+        streams.clear();
+        writeReady.clear();
+        for(ImplH2Stream stream : list)
+            stream.abort(reason);
+    }
+
+    void close(Duration drainTimeout, String reason, Throwable exception)
+    {
+        if(closed)
+            return;
+        closed = true;
+
+        if(dump!=null)
+            dump.print(
+                connId(), " closed == ",
+                reason==null?"":reason,
+                exception==null?"":exception.toString(),
+                "\r\n"
+            );
+
+        abortStreams(new Exception("connection closed: "+(reason==null?"":reason)
+            +(exception==null?"":exception.toString())));
+
+        Async<Void> closing = tcpConn.close(drainTimeout);
+        if(closing.isCompleted())
+            promise.complete(closing.pollResult());
+        else
+            closing.onCompletion(promise::complete);
+    }
+
+}
@@ -0,0 +1,759 @@
+package bayou.http;
+
+import _bayou._http._Hpack;
+import _bayou._http._HttpHostPort;
+import _bayou._http._HttpUtil;
+import _bayou._str._ByteArr;
+import _bayou._str._CharDef;
+import _bayou._str._StrUtil;
+import _bayou._str._StringSaver;
+import _bayou._tmp._ByteBufferUtil;
+import _bayou._tmp._Util;
+import bayou.async.Async;
+import bayou.async.Fiber;
+import bayou.async.Promise;
+import bayou.bytes.ByteSource;
+import bayou.mime.ContentType;
+import bayou.mime.HeaderMap;
+import bayou.mime.Headers;
+import bayou.ssl.SslConnection;
+import bayou.util.End;
+import bayou.util.Result;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import static bayou.http.ImplH2Conn.*;
+
+// an HTTP/2 stream, i.e. a request-response exchange.
+//
+// frames are handled in the connection fiber. the handler, and reads of the response body, are run in
+// a fiber of the stream, so that fiber locals like CookieJar work the same way as in HTTP/1.
+// both fibers run on the selector thread of the connection.
+class ImplH2Stream
+{
+    final ImplH2Conn conn;
+    final int id;
+
+    ImplHttpRequest request;
+    HttpResponseImpl errorResponse; // if request is bad
+    RequestBody requestBody; // null if request has no body
+
+    boolean remoteClosed; // END_STREAM received
+    boolean localClosed;  // END_STREAM sent
+    boolean done;         // response is done, or stream is aborted
+
+    long sendWindow;
+    int recvWindow = INITIAL_WINDOW;  // what client can still send
+    long bytesReceived;
+    long contentLength = -1;
+
+    Promise<Void> promise; // of the stream fiber
+    Executor executor;     // of the stream fiber
+
+    ImplH2Stream(ImplH2Conn conn, int id)
+    {
+        this.conn = conn;
+        this.id = id;
+        this.sendWindow = conn.peerInitialWindow;
+    }
+
+    String fiberName()
+    {
+        StringBuilder sb = new StringBuilder(conn.fiberName()).append(" stream #").append(id);
+        if(request!=null && request.method!=null && request.uri!=null)
+        {
+            sb.append(' ').append(request.method);
+            String uri = request.uri;
+            if(uri.length()>40)
+                uri = uri.substring(0, 37) + "...";
+            sb.append(' ').append(uri);
+        }
+        return sb.toString();
+    }
+
+    String reqId()
+    {
+        return "== request #"+ conn.tcpConn.getId()+"-"+id+" HTTP/2 ==\r\n";
+    }
+    String respId()
+    {
+        return "== response #"+ conn.tcpConn.getId()+"-"+id+" HTTP/2 ==\r\n";
+    }
+
+
+    // request ================================================================================================
+
+    // fields: name, value, name, value, ...
+    void onHeaders(ArrayList<String> fields, boolean endStream) throws H2Error
+    {
+        remoteClosed = endStream;
+
+        HttpServerConf conf = conn.conf;
+        request = new ImplHttpRequest();
+        request.h2 = true;
+        request.httpMinorVersion = 1;
+        request.ip = conn.tcpConn.getPeerIp();
+        request.isHttps = conn.tcpConn instanceof SslConnection;
+        request.certs = conn.certs;
+        request.timeReceived = System.currentTimeMillis();
+
+        if(conn.dump!=null)
+        {
+            ArrayList<CharSequence> toDump = new ArrayList<>();
+            toDump.add(reqId());
+            for(int i=0; i<fields.size(); i+=2)
+                toDump.add(fields.get(i)+": "+fields.get(i+1)+"\r\n");
+            toDump.add(endStream? "\r\n" : "<DATA>\r\n\r\n");
+            conn.dump.print(toDump);
+        }
+
+        String authority=null, path=null, scheme=null;
+        HeaderMap headers = request.headers;
+        int total = 0;
+        boolean regular = false; // regular headers must follow pseudo headers
+        for(int i=0; i<fields.size(); i+=2)
+        {
+            String name = fields.get(i);
+            String value = fields.get(i+1);
+            total += name.length() + value.length() + 32;  // as in SETTINGS_MAX_HEADER_LIST_SIZE
+
+            if(name.startsWith(":"))
+            {
+                if(regular)
+                    throw malformed("pseudo header after regular header");
+                String prev;
+                switch(name)
+                {
+                    case ":method"    : prev = request.method; request.method = value; break;
+                    case ":path"      : prev = path; path = value; break;
+                    case ":scheme"    : prev = scheme; scheme = value; break;
+                    case ":authority" : prev = authority; authority = value; break;
+                    default: throw malformed("invalid pseudo header: "+name);
+                }
+                if(prev!=null)
+                    throw malformed("duplicate pseudo header: "+name);
+                continue;
+            }
+
+            regular = true;
+            if(!_CharDef.check(name, _CharDef.Http.tokenChars) || !name.equals(name.toLowerCase()))
+                throw malformed("invalid header name: "+name);
+            if(!_CharDef.check(value, _CharDef.Http.headerValueChars))
+                throw malformed("invalid header value: "+name);
+            switch(name)
+            {
+                case "connection": case "keep-alive": case "proxy-connection":
+                case "transfer-encoding": case "upgrade":
+                    throw malformed("connection-specific header: "+name);
+                case "te":
+                    if(!value.equals("trailers"))
+                        throw malformed("invalid te: "+value);
+                    break;
+                default:
+            }
+
+            String sep = name.equals("cookie")? "; " : ", "; // cookie may be split in HTTP/2
+            String oldValue = headers.put(name, value);
+            if(oldValue!=null)   // headers with same name
+                headers.put(name, oldValue + sep + value);
+        }
+
+        if(request.method==null || scheme==null || path==null)
+        {
+            // CONNECT has no :scheme and :path. but we don't support CONNECT over HTTP/2
+            if(!"CONNECT".equals(request.method))
+                throw malformed("missing pseudo header");
+        }
+
+        if(total > conf.requestHeadTotalMaxLength)
+            badRequest(HttpStatus.c400_Bad_Request, "Request head total length > "+conf.requestHeadTotalMaxLength);
+        else
+            parse2(authority, path);
+
+        if(errorResponse==null)
+        {
+            request.fixForward(conf.xForwardLevel);
+            request.seal();
+        }
+
+        startFiber();
+    }
+
+    H2Error malformed(String message)
+    {
+        return new H2Error(id, PROTOCOL_ERROR, message);
+    }
+
+    void badRequest(HttpStatus status, String msg)
+    {
+        errorResponse = HttpHelper.simpleResp(status, msg);
+    }
+
+    // similar to ImplConnReq.parse2()
+    void parse2(String authority, String path) throws H2Error
+    {
+        HttpServerConf conf = conn.conf;
+        HeaderMap headers = request.headers;
+        String hv;
+
+        String method = conf.supportedMethods.get(_ByteArr.of(request.method));
+        if(method==null)
+        {
+            badRequest(HttpStatus.c501_Not_Implemented, "Method not supported: "+request.method);
+            return;
+        }
+        request.method = method; // intern-ed
+        if(method.equals("CONNECT"))
+        {
+            badRequest(HttpStatus.c501_Not_Implemented, "CONNECT is not supported over HTTP/2");
+            return;
+        }
+
+        // :authority is preferred over Host
+        hv = authority!=null? authority : headers.xGet(Headers.Host);
+        if(hv==null || hv.isEmpty())
+        {
+            badRequest(HttpStatus.c400_Bad_Request, "Host is missing");
+            return;
+        }
+        _HttpHostPort hp = _HttpHostPort.parse(hv);
+        if(hp==null)
+        {
+            badRequest(HttpStatus.c400_Bad_Request, "Invalid Host: "+hv);
+            return;
+        }
+        headers.xPut(Headers.Host, hp.toString(request.isHttps ? 443 : 80));
+
+        if(!_CharDef.check(path, _CharDef.Http.reqUriChars))
+            throw malformed("invalid :path");
+        request.uri = path;
+        if(!_HttpUtil.isOriginFormUri(path) && !(path.equals("*") && method.equals("OPTIONS")))
+        {
+            badRequest(HttpStatus.c400_Bad_Request, "Invalid request-target: "+path);
+            return;
+        }
+
+        ContentType contentType=null;
+        if(null!=(hv=headers.xGet(Headers.Content_Type)))
+        {
+            try
+            {
+                contentType = ContentType.parse(hv); // throws
+            }
+            catch (Exception e) // parse error
+            {
+                badRequest(HttpStatus.c400_Bad_Request, "Bad Content-Type");
+                return;
+            }
+        }
+
+        ImplHttpEntity reqEntity = null;
+        if(null!=(hv=headers.xGet(Headers.Content_Length)))
+        {
+            long len;
+            try
+            {   len = Long.parseLong(hv, 10); }
+            catch (NumberFormatException e)
+            {   len = -1; }
+            if(len<0)
+            {
+                badRequest(HttpStatus.c400_Bad_Request, "Bad Content-Length");
+                return;
+            }
+            if(len>0 && remoteClosed)
+                throw malformed("Content-Length with END_STREAM");
+            if(len > conf.requestBodyMaxLength)
+            {
+                badRequest(HttpStatus.c413_Request_Entity_Too_Large,
+                    "Request body length exceeds confRequestBodyMaxLength="+conf.requestBodyMaxLength);
+                return;
+            }
+            contentLength = len;
+            requestBody = new RequestBody();
+            request.entity = reqEntity = new ImplHttpEntity(requestBody, new Long(len));
+        }
+        else if(!remoteClosed)
+        {
+            // DATA frames follow. length unknown. the size limit of the body will be checked when reading the body
+            requestBody = new RequestBody();
+            request.entity = reqEntity = new ImplHttpEntity(requestBody, null);
+        }
+        else if(contentType!=null)
+        {
+            // no body, but entity metadata. consider it a body of 0-byte. see ImplConnReq
+            requestBody = new RequestBody();
+            requestBody.end = true;
+            request.entity = reqEntity = new ImplHttpEntity(requestBody, new Long(0));
+        }
+
+        if(reqEntity!=null)
+        {
+            reqEntity.contentType = contentType; // can be null
+
+            if(null!=(hv=headers.xGet(Headers.Content_Encoding)))
+            {
+                if(conf._requestEncodingReject)
+                {
+                    badRequest(HttpStatus.c415_Unsupported_Media_Type, "Unsupported Content-Encoding: " + hv);
+                    return;
+                }
+                reqEntity.contentEncoding = hv.toLowerCase(); // not validated. usually a single token.
+            }
+        }
+
+        if(null!=(hv=headers.xGet(Headers.Expect)))
+        {
+            if( _StrUtil.equalIgnoreCase(hv, "100-continue") )
+            {
+                if(reqEntity!=null && !remoteClosed)
+                {
+                    request.state100 = 1;
+                    requestBody.expect100 = true;
+                }
+            }
+            else
+            {
+                badRequest(HttpStatus.c417_Expectation_Failed,
+                        "Only `100-continue` is understood for Expect header");
+            }
+        }
+    }
+
+    // DATA frame; or trailers (bytes==null)
+    void onData(byte[] bytes, int off, int len, int frameLength, boolean endStream) throws H2Error
+    {
+        if(remoteClosed)
+            throw new H2Error(id, STREAM_CLOSED, "DATA after END_STREAM");
+
+        recvWindow -= frameLength;
+        if(recvWindow<0)
+            throw new H2Error(id, FLOW_CONTROL_ERROR, "stream window exceeded");
+
+        bytesReceived += len;
+        if(contentLength!=-1 && (bytesReceived>contentLength || endStream && bytesReceived!=contentLength))
+            throw new H2Error(id, PROTOCOL_ERROR, "request body length does not match Content-Length");
+
+        if(endStream)
+            remoteClosed = true;
+
+        RequestBody body = requestBody;
+        if(body==null || body.closed || body.error!=null) // discard. no need to update stream window
+            return;
+
+        recvUnacked += frameLength-len; // padding is acknowledged with the next update
+
+        if(len>0)
+            body.onData(bytes, off, len);
+        if(endStream)
+            body.onEnd();
+    }
+
+    void send100()
+    {
+        if(done)
+            return;
+        request.state100 = 3;
+        ImplH2Conn.Bytes block = new ImplH2Conn.Bytes();
+        conn.hpackEncoder.beginBlock(block);
+        conn.hpackEncoder.encode(block, ":status", "100");
+        queueHeaders(conn.tcpConn, id, block, false);
+        conn.requestFlush();
+
+        if(conn.dump!=null)
+            conn.dump.print(respId(), "HTTP/2.0 100 Continue\r\n\r\n");
+    }
+
+    // request body, fed by DATA frames
+    class RequestBody extends ImplH2Body
+    {
+        boolean expect100;
+
+        RequestBody()
+        {
+            super(conn.tcpConn, conn.conf.readTimeout, conn.conf.readMinThroughput, conn.conf.requestBodyMaxLength);
+        }
+
+        @Override
+        ByteBuffer nb_read() throws Exception
+        {
+            if(expect100 && !closed)
+            {
+                expect100 = false;
+                send100();
+            }
+            return super.nb_read();
+        }
+
+        @Override
+        void consumed(int bytes)
+        {
+            recvConsumed(bytes);
+        }
+    }
+
+    // data is acknowledged after it's read by app, so that a slow app can throttle the client.
+    int recvUnacked;
+    void recvConsumed(int bytes)
+    {
+        recvUnacked += bytes;
+        if(recvUnacked >= INITIAL_WINDOW/2 && !remoteClosed && !done)
+        {
+            queueWindowUpdate(conn.tcpConn, id, recvUnacked);
+            recvWindow += recvUnacked;
+            recvUnacked = 0;
+            conn.requestFlush();
+        }
+    }
+
+
+    // handler ================================================================================================
+
+    void startFiber()
+    {
+        new Fiber<Void>(conn.tcpConn.getExecutor(), fiberName(), ()->
+        {
+            promise = new Promise<>();
+            promise.fiberTracePop();
+            executor = Fiber.current().getExecutor();
+
+            if(done)  // aborted before fiber starts
+                promise.succeed(null);
+            else if(errorResponse!=null)
+                respond(errorResponse);
+            else
+                handleRequest();
+
+            return promise;
+        });
+    }
+
+    void handleRequest()
+    {
+        HttpRequest.setFiberLocal(request);
+
+        Async<HttpResponse> respAsync;
+        try
+        {
+            respAsync = conn.server.handler.handle(request); // should not throw
+            if(respAsync==null)
+                throw new NullPointerException("null returned from "+conn.server.handler);
+        }
+        catch (RuntimeException|Error e)
+        {
+            respAsync = HttpResponse.internalError(e);
+        }
+
+        respAsync.onCompletion(result -> {
+            HttpResponse response;
+            try
+            {
+                response = result.getOrThrow();
+                if(response==null)
+                    throw new NullPointerException("response==null");
+            }
+            catch (Exception e)
+            {
+                response = HttpResponse.internalError(e);
+            }
+            respond(response);
+        });
+    }
+
+
+    // response ===============================================================================================
+
+    ImplConnResp resp;
+    ByteSource body;
+    long bodyLength;
+    long bodyWritten;
+    long headLength;
+    long writeT0;
+    Exception bodyError;
+
+    Async<ByteBuffer> bodyPendingRead;
+    ByteBuffer pendingData;
+    boolean bodyEnd;
+    boolean inWriteQueue;
+
+    // in stream fiber
+    void respond(HttpResponse response)
+    {
+        // app doesn't read the whole request body. stop flow control updates; RST after response.
+        if(requestBody!=null)
+            requestBody.close();
+
+        if(done) // aborted while handler is running
+        {
+            cleanup();
+            return;
+        }
+
+        HttpServerConf conf = conn.conf;
+        try
+        {
+            List<Cookie> jarCookies = errorResponse==null? (ArrayList<Cookie>)CookieJar.getAllChanges()
+                : Collections.<Cookie>emptyList();
+            resp = ImplRespMod.modApp(conf, true, request, response, jarCookies);  // may throw
+        }
+        catch (Exception e) // something wrong in the user response, e.g. illegal header value
+        {
+            resp = ImplRespMod.modApp(conf, true, request, HttpResponse.internalError(e), Collections.emptyList());
+        }
+
+        body = resp.body;
+        bodyLength = resp.bodyLength;
+
+        if(conn.dump!=null)
+        {
+            _StringSaver chars = new _StringSaver( 64 );
+            chars.append(respId());
+            resp.printHead(chars);
+            conn.dump.print(chars.toList());
+        }
+
+        writeT0 = System.currentTimeMillis();
+
+        _Hpack.Encoder encoder = conn.hpackEncoder;
+        ImplH2Conn.Bytes block = new ImplH2Conn.Bytes();
+        encoder.beginBlock(block);
+        encoder.encode(block, ":status", Integer.toString(resp.status.code));
+        for(Map.Entry<String,String> nv : resp.headers.entrySet())
+            encoder.encode(block, nv.getKey().toLowerCase(), nv.getValue());
+        for(Cookie cookie : resp.cookies)
+            encoder.encode(block, "set-cookie", cookie.toSetCookieString());
+
+        boolean endStream = (bodyLength==0);
+        queueHeaders(conn.tcpConn, id, block, endStream);
+        headLength = block.size() + FRAME_HEAD * Math.max(1, (block.size()+MAX_FRAME_SIZE-1)/MAX_FRAME_SIZE);
+
+        if(endStream)
+        {
+            localClosed = true;
+            closeBody();
+            responseDone();
+        }
+        else
+        {
+            readBody();
+        }
+        conn.requestFlush();
+    }
+
+    // in stream fiber
+    void readBody()
+    {
+        if(done)
+            return;
+
+        Async<ByteBuffer> readAsync = body.read();
+        bodyPendingRead = readAsync;
+        readAsync.onCompletion(this::onBodyRead);
+    }
+
+    // in stream fiber
+    void onBodyRead(Result<ByteBuffer> result)
+    {
+        bodyPendingRead = null;
+        if(done)
+            return;
+
+        ByteBuffer bb = result.getValue();
+        Exception error = result.getException();
+        if(error instanceof End)
+        {
+            if(bodyLength>=0 && bodyWritten<bodyLength)
+            {
+                bodyError(new IOException(
+                    "response entity body is smaller than Content-Length. "+bodyWritten+"<"+bodyLength));
+                return;
+            }
+            bodyEnd = true;
+        }
+        else if(error!=null)
+        {
+            bodyError(error);
+            return;
+        }
+        else if(bodyLength>=0 && bodyWritten+bb.remaining()>bodyLength)
+        {
+            bodyError(new IllegalStateException(
+                "response entity body is larger than Content-Length. "+(bodyWritten+bb.remaining())+">"+bodyLength));
+            return;
+        }
+        else if(!bb.hasRemaining())
+        {
+            readBody();
+            return;
+        }
+        else
+        {
+            pendingData = bb;
+        }
+
+        checkWriteReady();
+        conn.requestFlush();
+    }
+
+    void checkWriteReady()
+    {
+        if(inWriteQueue || done || localClosed)
+            return;
+        if(bodyEnd || pendingData!=null && sendWindow>0)
+        {
+            inWriteQueue = true;
+            conn.addWriteReady(this);
+        }
+    }
+
+    // in connection fiber, by ImplH2Conn.pumpData(). write one DATA frame.
+    void writeData()
+    {
+        inWriteQueue = false;
+        if(done || localClosed)
+            return;
+
+        if(pendingData==null) // body end; empty DATA to end the stream
+        {
+            queueData(conn.tcpConn, id, ByteBuffer.allocate(0), true);
+            localClosed = true;
+            closeBody();
+            responseDone();
+            return;
+        }
+
+        long n = Math.min(Math.min(pendingData.remaining(), MAX_FRAME_SIZE), Math.min(sendWindow, conn.sendWindow));
+        if(n<=0)
+            return; // await WINDOW_UPDATE
+        ByteBuffer data = _ByteBufferUtil.slice(pendingData, (int)n);
+        sendWindow -= n;
+        conn.sendWindow -= n;
+        bodyWritten += n;
+
+        boolean last = !pendingData.hasRemaining() && bodyWritten==bodyLength;
+        queueData(conn.tcpConn, id, data, last);
+        if(last)
+        {
+            pendingData = null;
+            localClosed = true;
+            closeBody();
+            responseDone();
+            return;
+        }
+
+        if(pendingData.hasRemaining())
+        {
+            checkWriteReady();
+        }
+        else
+        {
+            pendingData = null;
+            executor.execute(this::readBody);
+        }
+    }
+
+    void bodyError(Exception error)
+    {
+        // internal problem. should be interesting, needs to be investigated.
+        if(_Util.unchecked(error))
+            HttpServer.logUnexpected(error);
+        else
+            HttpServer.logErrorOrDebug(error);
+        bodyError = error;
+
+        queueRstStream(conn.tcpConn, id, INTERNAL_ERROR);
+        localClosed = remoteClosed = true;
+        closeBody();
+        responseDone();
+        conn.requestFlush();
+    }
+
+    void closeBody()
+    {
+        if(body==null) // was closed
+            return;
+        ByteSource bodyL = body;
+        body = null;
+
+        if(bodyPendingRead==null)
+            bodyL.close();
+        else // can't close during read pending; only after read is completed
+        {
+            bodyPendingRead.cancel(new Exception("cancelled"));
+            bodyPendingRead.onCompletion(result ->
+                bodyL.close());
+            bodyPendingRead = null;
+        }
+    }
+
+    // both directions are closed, or the stream is aborted
+    void responseDone()
+    {
+        if(done)
+            return;
+        done = true;
+
+        doAccessLog(null);
+
+        if(!remoteClosed) // client is still sending request body, which we don't need.
+            queueRstStream(conn.tcpConn, id, NO_ERROR);
+
+        conn.removeStream(this);
+
+        executor.execute(this::cleanup);
+    }
+
+    // stream is reset by client, or connection is closed
+    void abort(Exception reason)
+    {
+        if(requestBody!=null)
+            requestBody.abort(reason);
+
+        if(done)
+            return;
+        done = true;
+
+        pendingData = null;
+        closeBody();
+
+        if(resp!=null) // response has started; log it as failed
+        {
+            HttpServer.logErrorOrDebug(reason);
+            doAccessLog(reason);
+        }
+
+        if(executor!=null && resp!=null)  // otherwise, cleanup after handler completes. see respond()
+            executor.execute(this::cleanup);
+    }
+
+    // in stream fiber. the fiber ends
+    void cleanup()
+    {
+        CookieJar.clearAll();
+        HttpRequest.setFiberLocal(null);
+        promise.succeed(null);
+    }
+
+    void doAccessLog(Exception error)
+    {
+        if(!request.sealed) // bad request
+            return;
+
+        HttpAccessLoggerWrapper printer = conn.conf.accessLoggerWrapper;
+        if(printer==null)  // no access log
+            return;
+
+        HttpAccess entry = new HttpAccess(
+                request, resp.asHttpResponse(), bodyWritten,
+                request.timeReceived, writeT0, System.currentTimeMillis(),
+                error!=null? error : bodyError);
+
+        printer.print(entry);
+    }
+
+}
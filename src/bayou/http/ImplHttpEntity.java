@@ -45,6 +45,13 @@ class ImplHttpEntity implements HttpEntity
         }
     }
 
+    // for request over HTTP/2. body is fed by DATA frames
+    ImplHttpEntity(Body body, Long bodyLength)
+    {
+        this.bodyLength = bodyLength;
+        this.body = body;
+    }
+
     void expect100(ImplConn hConn, ImplHttpRequest request)
     {
         request.state100 = 1;
@@ -134,10 +134,13 @@ class ImplHttpRequest implements HttpRequest
 
 
     byte httpMinorVersion=-1;   // 0 or 1. -1 if parse error.
+    boolean h2; // request over HTTP/2. httpMinorVersion=1 in that case, for HTTP/1.1-like semantics
 
     @Override
     public String httpVersion()
     {
+        if(h2)
+            return "2.0";
         return (httpMinorVersion==0) ? "1.0" : "1.1";
     }
 
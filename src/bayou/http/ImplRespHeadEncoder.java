@@ -0,0 +1,230 @@
+package bayou.http;
+
+import bayou.mime.Headers;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+// encode an HTTP/1 response head into bytes, directly into the destination buffer.
+// most bytes of a response head are the same across responses; they are pre-encoded and cached:
+//   status line    - "HTTP/1.1 200 OK\r\n", per HttpStatus
+//   header name    - "Content-Type: ", for well-known headers
+//   header value   - for some headers, whose values are usually constant strings, e.g. Content-Type, Server,
+//                    Date(same string within a second). cached by string identity.
+// the output is byte-wise identical to ImplConnResp.printHead().
+class ImplRespHeadEncoder
+{
+    static byte[] latin1(String s)
+    {
+        return s.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    static final byte[] CRLF = latin1("\r\n");
+
+    static final class Name
+    {
+        final byte[] prefix; // "Name: "
+        final boolean cacheValue;
+
+        Name(String name, boolean cacheValue)
+        {
+            this.prefix = latin1(name+": ");
+            this.cacheValue = cacheValue;
+        }
+    }
+
+    // header names in HeaderMap are in nice form; well-known names are the constants in Headers.
+    static final IdentityHashMap<String,Name> names = new IdentityHashMap<>(128);
+    static
+    {
+        final int modPublicStaticFinal = Modifier.PUBLIC | Modifier.STATIC | Modifier.FINAL;
+        for(Field field : Headers.class.getDeclaredFields())
+        {
+            if((field.getModifiers() & modPublicStaticFinal) != modPublicStaticFinal)
+                continue;
+            if(field.getType()!=String.class)
+                continue;
+            String s;
+            try{ s = (String)field.get(null); } catch(Exception e){ throw new AssertionError(e); }
+            names.put(s, new Name(s, false));
+        }
+
+        for(String s : new String[]{ Headers.Content_Type, Headers.Server, Headers.Date, Headers.Connection,
+            Headers.Transfer_Encoding, Headers.Content_Encoding, Headers.Cache_Control, Headers.Vary,
+            Headers.Accept_Ranges })
+            names.put(s, new Name(s, true));
+    }
+    static final Name SET_COOKIE = names.get(Headers.Set_Cookie);
+
+
+    // value cache. direct-mapped by identity hash. an entry is immutable, so it's safe to share among threads.
+    static final class Value
+    {
+        final String string;
+        final byte[] bytes;
+
+        Value(String string)
+        {
+            this.string = string;
+            this.bytes = latin1(string);
+        }
+    }
+    static final int valueCacheSize = 256;  // power of 2
+    static final Value[] values = new Value[valueCacheSize];
+    static final int valueMaxLength = 128;
+
+    static byte[] cachedValue(String value)
+    {
+        int slot = System.identityHashCode(value) & (valueCacheSize-1);
+        Value v = values[slot];
+        if(v!=null && v.string==value)
+            return v.bytes;
+
+        if(value.length()>valueMaxLength)
+            return null;
+        v = new Value(value); // replace the old one
+        values[slot] = v;
+        return v.bytes;
+    }
+
+
+    static byte[] statusLine(String httpVersion, HttpStatus status)
+    {
+        //noinspection StringEquality
+        if(httpVersion!="1.1")
+            return null;
+
+        byte[] line = status.line11;
+        if(line==null) // benign race
+            status.line11 = line = latin1("HTTP/1.1 "+status.toString()+"\r\n");
+        return line;
+    }
+
+    // all info needed to encode; computed by the 1st pass, which also computes the length.
+    byte[] statusLine;
+    String httpVersion;
+    HttpStatus status;
+    int n;  // number of headers
+    byte[][] nameBytes;
+    String[] nameStrings;
+    byte[][] valueBytes;
+    String[] valueStrings;
+    String[] cookieStrings;
+    int length;
+
+    ImplRespHeadEncoder(String httpVersion, HttpStatus status, Map<String,String> headers, List<Cookie> cookies)
+    {
+        this.httpVersion = httpVersion;
+        this.status = status;
+
+        statusLine = statusLine(httpVersion, status);
+        if(statusLine!=null)
+            length = statusLine.length;
+        else
+            length = "HTTP/".length() + httpVersion.length() + 1 + status.toString().length() + 2;
+
+        int N = headers.size();
+        nameBytes = new byte[N][];
+        nameStrings = new String[N];
+        valueBytes = new byte[N][];
+        valueStrings = new String[N];
+        for(Map.Entry<String,String> nv : headers.entrySet())
+        {
+            String name = nv.getKey();
+            String value = nv.getValue();
+            // name value have been sanity checked. we'll not generate syntactically incorrect header.
+
+            Name nameX = names.get(name);
+            if(nameX!=null)
+            {
+                nameBytes[n] = nameX.prefix;
+                length += nameX.prefix.length;
+                if(nameX.cacheValue)
+                    valueBytes[n] = cachedValue(value); // may be null
+            }
+            else
+            {
+                nameStrings[n] = name;
+                length += name.length() + 2;
+            }
+
+            if(valueBytes[n]!=null)
+                length += valueBytes[n].length;
+            else
+            {
+                valueStrings[n] = value;
+                length += value.length();
+            }
+            length += 2;
+            n++;
+        }
+
+        if(!cookies.isEmpty())
+        {
+            cookieStrings = new String[cookies.size()];
+            for(int i=0; i<cookieStrings.length; i++)
+            {
+                String s = cookies.get(i).toSetCookieString();  // guaranteed to be valid
+                cookieStrings[i] = s;
+                length += SET_COOKIE.prefix.length + s.length() + 2;
+            }
+        }
+
+        length += 2;
+    }
+
+    static void put(ByteBuffer bb, String s)
+    {
+        for(int i=0; i<s.length(); i++)
+            bb.put((byte)s.charAt(i));
+    }
+
+    // bb must have at least `length` bytes of room
+    void encode(ByteBuffer bb)
+    {
+        if(statusLine!=null)
+            bb.put(statusLine);
+        else
+        {
+            put(bb, "HTTP/");
+            put(bb, httpVersion);
+            bb.put((byte)' ');
+            put(bb, status.toString()); // status chars were checked
+            bb.put(CRLF);
+        }
+
+        for(int i=0; i<n; i++)
+        {
+            if(nameBytes[i]!=null)
+                bb.put(nameBytes[i]);
+            else
+            {
+                put(bb, nameStrings[i]);
+                bb.put((byte)':').put((byte)' ');
+            }
+
+            if(valueBytes[i]!=null)
+                bb.put(valueBytes[i]);
+            else
+                put(bb, valueStrings[i]);
+
+            bb.put(CRLF);
+        }
+
+        if(cookieStrings!=null)
+            for(String s : cookieStrings)
+            {
+                bb.put(SET_COOKIE.prefix);
+                put(bb, s);
+                bb.put(CRLF);
+            }
+
+        bb.put(CRLF);
+    }
+
+}
@@ -8,8 +8,6 @@ import _bayou._tmp.*;
 import bayou.async.Async;
 import bayou.bytes.ByteSource;
 import bayou.bytes.RangedByteSource;
-import bayou.gzip.GzipByteSource;
-import bayou.gzip.GzipHttpEntity;
 import bayou.mime.ContentType;
 import bayou.mime.HeaderMap;
 
@@ -138,8 +136,8 @@ class ImplRespMod
         if(bodyType==2)
             return new ImplChunkedSource(conf.outboundBufferSize, body);
 
-        if(bodyType==3)
-            return new ImplChunkedSource(conf.outboundBufferSize, new GzipByteSource(body, 1));
+        if(bodyType==3) // body is gzip-ed by ImplGzipPolicy
+            return new ImplChunkedSource(conf.outboundBufferSize, body);
 
         throw new AssertionError();
     }
@@ -158,6 +156,16 @@ class ImplRespMod
     // may throw from user code from user object `appResponse`. treat it as unexpected.
     static ImplConnResp modApp(ImplConn hConn, ImplHttpRequest request, HttpResponse appResponse,
                                List<Cookie> jarCookies)
+    {
+        ImplConnResp resp = modApp(hConn.conf, false, request, appResponse, jarCookies);
+        return resp.init(hConn, resp.isLast, resp.body, resp.bodyLength); // no throw
+    }
+
+    // shared by HTTP/1 and HTTP/2. for HTTP/2 (h2=true), there's no chunked coding, no TE:gzip,
+    // no connection-specific headers; the end of body is marked by END_STREAM instead.
+    // return a response with body/bodyLength/isLast set, but not init-ed for a connection.
+    static ImplConnResp modApp(HttpServerConf conf, boolean h2, ImplHttpRequest request, HttpResponse appResponse,
+                               List<Cookie> jarCookies)
     {
         // here we depend on original request headers, which we know app cannot temper with.
 
@@ -184,7 +192,9 @@ class ImplRespMod
         ImplConnResp resp = new ImplConnResp();
 
         resp.httpVersion = appResponse.httpVersion();
-        if(request.httpMinorVersion==0)
+        if(h2)
+            resp.httpVersion = "2.0";
+        else if(request.httpMinorVersion==0)
             resp.httpVersion = "1.0";
         // not sure how the 1.0 client reacts to a higher version response; send the same version instead.
 
@@ -207,7 +217,6 @@ class ImplRespMod
                 headers.put(name, value);
             }
 
-        HttpServerConf conf = hConn.conf;
         boolean isGET  = request.method.equals("GET"); // usually true
         boolean isHEAD = !isGET && request.method.equals("HEAD");
         HeaderMap requestHeaders = request.headers;
@@ -220,7 +229,7 @@ class ImplRespMod
         int acceptGzip = -1; // [-1] don't care [0] no [1] TE: gzip [2] Accept-Encoding: gzip
         if(conf.autoGzip)
         {
-            if(+1==acceptEncoding(requestHeaders.xGet(TE), "gzip"))
+            if(!h2 && +1==acceptEncoding(requestHeaders.xGet(TE), "gzip"))  // TE is not allowed in HTTP/2
                 acceptGzip = 1;
             else if (+1==acceptEncoding(requestHeaders.xGet(Accept_Encoding), "gzip"))
                 acceptGzip = 2;
@@ -267,7 +276,7 @@ class ImplRespMod
         String hTransferEncoding = null;
 
         // we delay calling entity.body() till last moment. for now, just determine type of body
-        int bodyType;  // [0] empty  [1] entity.body  [2] chunk(entity.body)  [3] chunk(gzip(entity.body))
+        int bodyType;  // [0] empty  [1] entity.body  [2] chunk(entity.body)  [3] chunk(gzip(entity.body)), see teGzip
         long bodyLength;  // -1 if unknown; otherwise >=0
         if(entityL==null) // 204 or 304
         {
@@ -278,11 +287,21 @@ class ImplRespMod
         else
         {
             Long BL = entityL.contentLength();
+            // TE: gzip. same policy and metrics as Accept-Encoding: gzip. it's a transfer coding;
+            // entity headers above are of the original entity, only the body is gzip-ed.
+            HttpEntity teGzip = null;
             if(acceptGzip==1 && shouldGzip(entityL, conf))
+            {
+                teGzip = conf.autoGzipPolicy.gzip(entityL, conf.autoGzipAdaptive); // may skip gzip
+                if(teGzip==entityL)
+                    teGzip = null;
+            }
+            if(teGzip!=null)
             {
                 bodyLength = -1;
                 hTransferEncoding = "gzip,chunked";
                 bodyType = 3;
+                entityL = teGzip;  // for body()
             }
             else if(BL!=null)
             {
@@ -296,7 +315,11 @@ class ImplRespMod
             else
             {
                 bodyLength=-1;
-                if(request.httpMinorVersion>=1)
+                if(h2) // DATA frames, ended by END_STREAM
+                {
+                    bodyType = 1;
+                }
+                else if(request.httpMinorVersion>=1)
                 {
                     hTransferEncoding = "chunked"; // even if response.httpVersion=1.0; the 1.1 client understands.
                     bodyType = 2;
@@ -329,17 +352,32 @@ class ImplRespMod
 
 
 
-        // Connection header. depends on body length
-        String respConnection = appHeaders.isEmpty()? null : headers.xGet(Connection);
-        String reqConnection = requestHeaders.xGet(Connection);
+        boolean isLast;
+        if(h2)
+        {
+            // connection-specific headers are not allowed in HTTP/2. the connection outlives the response.
+            isLast = false;
+            if(!appHeaders.isEmpty())
+            {
+                headers.xRemove(Connection);
+                headers.xRemove(Keep_Alive);
+                headers.xRemove(Upgrade);
+            }
+        }
+        else
+        {
+            // Connection header. depends on body length
+            String respConnection = appHeaders.isEmpty()? null : headers.xGet(Connection);
+            String reqConnection = requestHeaders.xGet(Connection);
 
-        boolean isLast = isLastResponse(
-            request.httpMinorVersion, bodyLength, request.state100,
-            respConnection, reqConnection, statusCodeL);
+            isLast = isLastResponse(
+                request.httpMinorVersion, bodyLength, request.state100,
+                respConnection, reqConnection, statusCodeL);
 
-        respConnection = _HttpUtil.modConnectionHeader(respConnection, isLast);
-        // respConnection was checked; still valid after modConnectionHeader()
-        headers.xPut(Connection, respConnection);
+            respConnection = _HttpUtil.modConnectionHeader(respConnection, isLast);
+            // respConnection was checked; still valid after modConnectionHeader()
+            headers.xPut(Connection, respConnection);
+        }
 
 
         // other headers
@@ -352,8 +390,10 @@ class ImplRespMod
         if(prev!=null) headers.xPut(Server, prev);
 
 
-        ByteSource body = body(conf, entityL, bodyType);
-        return resp.init(hConn, isLast, body, bodyLength); // no throw
+        resp.isLast = isLast;
+        resp.bodyLength = bodyLength;
+        resp.body = body(conf, entityL, bodyType);
+        return resp;
     }
 
     static boolean isLastResponse(byte req_httpMinorVersion, long bodyLength, byte state100,
@@ -433,83 +473,14 @@ class ImplRespMod
         _HttpUtil.addVaryHeader(resp.headers, Accept_Encoding);
 
         if(acceptGzip==2) // Accept-Encoding: gzip
-            resp.entity = new GzipHttpEntity(entity, 1);  // on-the-fly gzip, use level 1, good enough.
+            resp.entity = conf.autoGzipPolicy.gzip(entity, conf.autoGzipAdaptive); // may skip gzip
     }
 
-    // for request header TE or Accept-Encoding
-    // codings:  1#( token [ ";" "q" "=" qvalue ] )
-    //           (actually, more complicated than that for "transfer-extension", which we don't support)
-    // example:  deflate, gzip;q=1.0, compress;q=0.5, *;q=0
     // return [+1] yes [0] no [-1] parse error
     static int acceptEncoding(String codings, String coding)
     {
-        if(codings==null)
-            return 0;
-
-        final int N = codings.length();
-        int i=0; // i<=N
-        while(true)
-        {
-            // this element:  token [ ;q=qvalue ]
-            i = _StrUtil.skipWhiteSpaces(codings, i);
-            if(i==N)
-                return -1;
-            // match token and coding
-            boolean match=false;
-            final int J = coding.length();
-            int j=0;  // j<=J
-            for( ; i<N; i++)
-            {
-                char ch = codings.charAt(i);
-                assert ch<=0xff;
-                if(!_CharDef.check(ch, _CharDef.Http.tokenChars)) // token ends. most likely ch is , ; SP
-                {
-                    match = (j==J);
-                    break;
-                }
-
-                if(j==J)
-                    break;
-                char ch2 = coding.charAt(j);
-                if(!_StrUtil.sameCharIgnoreCase(ch, ch2))
-                    break;
-                j++;
-            }
-            if(i==N) // end of entire field
-                return (j==J)? +1 : 0 ;
-            int iComma = codings.indexOf(',', i);
-            if(!match) // skip to next element
-            {
-                if(iComma==-1)  // no next element
-                    return 0;
-                i = iComma+1;
-                continue;
-            }
-
-            // coding matched. we need to see if q=0. that's very rare.
-            // usually no q at all. usually token is immediately followed by comma: "... gzip, ..."
-            float q = qValue(codings, i, (iComma==-1) ? N : iComma ) ;
-            return  (q>0.0f) ? +1 : (q==0.0f) ?  0 : -1;
-        }
-    }
-    // range str[start,end) is in form [;q=v]. if empty(or all white), it's same as ;q=1.
-    // normally return 0 or positive; if malformed return negative
-    static float qValue(String str, int start, int end)
-    {
-        if(start==end) // very very common
-            return 1.0f;
-
-        int iEQ = str.indexOf('=', start);
-        if(iEQ==-1 || iEQ>=end)  // no = in range. assume range is empty. (could be malformed in fact)
-            return 1.0f;
-
-        // there is a = sign in range. assume range is ;q=v (which we don't really check)
-        // q value is rare in the header. the following code is usually not reached in practice.
-        String v = str.substring(iEQ+1,end);  // trim will be done inside parseFloat()
-        try
-        {   return Float.parseFloat(v);   }  // if negative, v is malformed.
-        catch(NumberFormatException e)
-        {   return -1.0f;   }
+        float q = _HttpUtil.acceptEncodingQ(codings, coding);
+        return  (q>0.0f) ? +1 : (q==0.0f) ?  0 : -1;
     }
 
     static void modConditional(ImplConnResp resp, HeaderMap requestHeaders)
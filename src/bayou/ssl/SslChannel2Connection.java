@@ -1,7 +1,10 @@
 package bayou.ssl;
 
 import _bayou._tmp._ByteBufferPool;
+import _bayou._tmp._Exec;
+import _bayou._tmp._NamedThreadFactory;
 import _bayou._tmp._Tcp;
+import _bayou._tmp._Util;
 import bayou.async.Async;
 import bayou.async.Promise;
 import bayou.tcp.TcpChannel;
@@ -12,8 +15,15 @@ import bayou.util.function.ConsumerX;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLEngine;
 import javax.net.ssl.SSLSession;
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Supplier;
 
 /**
@@ -96,6 +106,132 @@ public class SslChannel2Connection
         //    client may send 1 such tiny record followed by a big record, in one write()
     }
 
+    // handshake tasks (engine.getDelegatedTask(), e.g. RSA/ECDHE crypto) run on the default blocking executor,
+    // with unlimited threads, unless a dedicated executor is set.
+    // a dedicated executor isolates a burst of handshakes (e.g. reconnect storm) from other blocking tasks;
+    // if its queue is too deep, new handshakes are refused, so that pending ones can complete in time.
+    volatile ThreadPoolExecutor handshakeExecutor;
+    volatile int handshakeMaxQueue;
+
+    /**
+     * Run SSL handshake tasks on a dedicated pool of threads.
+     * <p>
+     *     During SSL handshake, CPU intensive tasks (e.g. RSA/ECDHE crypto) are run on an executor.
+     *     By default it's a system executor with unlimited threads, shared with other blocking tasks.
+     *     This method sets a dedicated executor with `threads` threads.
+     * </p>
+     * <p>
+     *     If more than `maxQueue` tasks are waiting for the threads, new handshakes are refused,
+     *     i.e. the channel is closed immediately, before any handshake work is done.
+     *     Handshakes that are already in progress are not affected.
+     * </p>
+     * <p>
+     *     This method should be called before any conversion.
+     * </p>
+     */
+    public void setHandshakeExecutor(int threads, int maxQueue)
+    {
+        _Util.require(threads>0, "threads>0");
+        _Util.require(maxQueue>=0, "maxQueue>=0");
+
+        AtomicInteger threadId = new AtomicInteger(0);
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+            threads, threads,
+            _Exec.threadKeepAliveMs, TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<>(),
+            new _NamedThreadFactory(() -> "bayou ssl handshake #" + threadId.incrementAndGet())
+        );
+        executor.allowCoreThreadTimeOut(true);
+
+        this.handshakeMaxQueue = maxQueue;
+        this.handshakeExecutor = executor;
+    }
+
+    // metrics
+    final LongAdder handshakeCount = new LongAdder();   // completed successfully
+    final LongAdder handshakeResumedCount = new LongAdder();  // successful ones that resumed a session
+    final LongAdder handshakeFailCount = new LongAdder();
+    final LongAdder handshakeRefuseCount = new LongAdder();
+    final LongAdder handshakeNanos = new LongAdder();   // of successful handshakes
+    final LongAdder plainCount = new LongAdder();       // plain connections, see convert(channel, plainConverter)
+
+    /**
+     * Get the number of successful SSL handshakes.
+     * <p>
+     *     To get handshakes per second, sample this number periodically.
+     * </p>
+     */
+    public long getHandshakeCount()
+    {
+        return handshakeCount.sum();
+    }
+
+    /**
+     * Get the number of successful SSL handshakes that resumed a previous session.
+     * <p>
+     *     A resumed handshake skips the expensive key exchange.
+     *     The number of full handshakes is <code>getHandshakeCount()-getHandshakeResumedCount()</code>.
+     *     If few handshakes are resumed for returning clients, consider a larger session cache or timeout,
+     *     see {@link SslConf#sessionCacheSize(Integer)}.
+     * </p>
+     */
+    public long getHandshakeResumedCount()
+    {
+        return handshakeResumedCount.sum();
+    }
+
+    /**
+     * Get the number of plain connections detected by {@link #convert(TcpChannel, TcpChannel2Connection)}.
+     * <p>
+     *     Together with {@link #getHandshakeCount()}, this shows how many connections took the plain path
+     *     versus the SSL path.
+     * </p>
+     */
+    public long getPlainCount()
+    {
+        return plainCount.sum();
+    }
+
+    /**
+     * Get the number of failed SSL handshakes, excluding refused ones.
+     */
+    public long getHandshakeFailCount()
+    {
+        return handshakeFailCount.sum();
+    }
+
+    /**
+     * Get the number of SSL handshakes refused because the handshake executor is overloaded.
+     * See {@link #setHandshakeExecutor(int, int)}.
+     */
+    public long getHandshakeRefuseCount()
+    {
+        return handshakeRefuseCount.sum();
+    }
+
+    /**
+     * Get the total time of successful SSL handshakes.
+     * <p>
+     *     Divide it by {@link #getHandshakeCount()} to get the average handshake latency.
+     * </p>
+     */
+    public Duration getHandshakeTime()
+    {
+        return Duration.ofNanos(handshakeNanos.sum());
+    }
+
+    /**
+     * Get the number of SSL handshake tasks waiting for the dedicated executor.
+     * <p>
+     *     Returns 0 if there's no dedicated executor; see {@link #setHandshakeExecutor(int, int)}.
+     * </p>
+     */
+    public int getHandshakeQueueDepth()
+    {
+        ThreadPoolExecutor executor = handshakeExecutor;
+        return executor==null? 0 : executor.getQueue().size();
+    }
+
     /**
      * Convert a TcpChannel to an SslConnection.
      * <p>
@@ -132,6 +268,33 @@ public class SslChannel2Connection
 
     void handshake(TcpChannel channel, Promise<SslConnection> promise, ByteBuffer initBuffer)
     {
+        ThreadPoolExecutor executor = handshakeExecutor;
+        if(executor!=null && executor.getQueue().size() > handshakeMaxQueue)
+        {
+            // overloaded. refuse fast; the client may retry later.
+            handshakeRefuseCount.increment();
+            channel.close();
+            promise.fail(new IOException("SSL handshake refused; too many pending handshakes"));
+            return;
+        }
+
+        long t0 = System.nanoTime();
+        long t0Millis = System.currentTimeMillis();
+        promise.onCompletion(result ->
+        {
+            if(result.isSuccess())
+            {
+                handshakeCount.increment();
+                handshakeNanos.add(System.nanoTime() - t0);
+                // a resumed session was created by an earlier handshake. (JSSE doesn't tell directly)
+                SSLSession session = result.getValue().getSslSession();
+                if(session.getCreationTime() < t0Millis)
+                    handshakeResumedCount.increment();
+            }
+            else
+                handshakeFailCount.increment();
+        });
+
         SSLEngine engine = sslContext.createSSLEngine(channel.getPeerHost(), channel.getPeerPort());
         engine.setUseClientMode(clientMode); // must be called first; it affects internal states
         try
@@ -147,6 +310,7 @@ public class SslChannel2Connection
 
         long id = idGenerator.get().longValue(); // gen id early. if handshake fails, app sees gap in conn ids.
         SslHandshaker x = new SslHandshaker(channel, promise, id, sslBufferPool, engine);
+        x.taskExecutor = executor;
 
         int jNext;
         if(clientMode)
@@ -3,6 +3,7 @@ package bayou.ssl;
 import javax.net.ssl.*;
 import java.io.FileInputStream;
 import java.security.KeyStore;
+import java.time.Duration;
 import java.security.cert.X509Certificate;
 
 /**
@@ -322,11 +323,62 @@ public class SslConf
     }
 
 
+    Integer sessionCacheSize = null;
+    /**
+     * Max number of SSL sessions cached for resumption.
+     * <p><code>
+     *     default: null
+     * </code></p>
+     * <p>
+     *     If non-null, it's set on the {@link SSLContext#getServerSessionContext() server session context}
+     *     and the {@link SSLContext#getClientSessionContext() client session context};
+     *     0 means no limit.
+     *     If null, the JSSE default is used
+     *     (system property <code>javax.net.ssl.sessionCacheSize</code>, typically 20480).
+     * </p>
+     * <p>
+     *     A resumed handshake skips the expensive key exchange (e.g. RSA/ECDHE crypto)
+     *     of a full handshake; see also
+     *     {@link bayou.ssl.SslChannel2Connection#getHandshakeResumedCount()}.
+     * </p>
+     * @return `this`
+     */
+    public SslConf sessionCacheSize(Integer sessionCacheSize)
+    {
+        if(sessionCacheSize!=null && sessionCacheSize.intValue()<0)
+            throw new IllegalArgumentException("sessionCacheSize>=0");
+        this.sessionCacheSize = sessionCacheSize;
+        return this;
+    }
+
+    Duration sessionTimeout = null;
+    /**
+     * How long an SSL session can be resumed after it's created.
+     * <p><code>
+     *     default: null
+     * </code></p>
+     * <p>
+     *     If non-null, it's set on the server and client session contexts, in seconds.
+     *     If null, the JSSE default is used (typically 24 hours).
+     * </p>
+     * @return `this`
+     */
+    public SslConf sessionTimeout(Duration sessionTimeout)
+    {
+        if(sessionTimeout!=null && (sessionTimeout.isNegative() || sessionTimeout.getSeconds()>Integer.MAX_VALUE))
+            throw new IllegalArgumentException("sessionTimeout out of range");
+        this.sessionTimeout = sessionTimeout;
+        return this;
+    }
+
+
     /**
      * Create an SSLContext.
      * <p>
      *     This method depends on field
      *     <br> {@link #contextProtocol(String) contextProtocol}
+     *     <br> {@link #sessionCacheSize(Integer) sessionCacheSize}
+     *     <br> {@link #sessionTimeout(Duration) sessionTimeout}
      *     <br> and methods
      *     <br> {@link #createKeyManagers()}
      *     <br> {@link #createTrustManagers()}
@@ -338,9 +390,23 @@ public class SslConf
 
         sslContext.init(createKeyManagers(), createTrustManagers(), null);
 
+        setSessionConf(sslContext.getServerSessionContext(), sessionCacheSize, sessionTimeout);
+        setSessionConf(sslContext.getClientSessionContext(), sessionCacheSize, sessionTimeout);
+
         return sslContext;
     }
 
+    // null means no change. sessionContext can be null if not supported by the provider.
+    static void setSessionConf(SSLSessionContext sessionContext, Integer cacheSize, Duration timeout)
+    {
+        if(sessionContext==null)
+            return;
+        if(cacheSize!=null)
+            sessionContext.setSessionCacheSize(cacheSize.intValue());
+        if(timeout!=null)
+            sessionContext.setSessionTimeout((int)timeout.getSeconds());
+    }
+
 
     /**
      * Create key managers.
@@ -1,5 +1,6 @@
 package bayou.ssl;
 
+import _bayou._tmp._Alpn;
 import _bayou._tmp._ByteBufferPool;
 import _bayou._tmp._ByteBufferUtil;
 import _bayou._tmp._Tcp;
@@ -18,9 +19,11 @@ import java.time.Duration;
 import java.util.ArrayDeque;
 import java.util.concurrent.Executor;
 
-class SslConnectionImpl implements SslConnection, _TcpConn2Chann
+class SslConnectionImpl implements SslConnection, _TcpConn2Chann, _Alpn.Conn
 {
     _ByteBufferPool bufferPool;
+    _ByteBufferPool appBufferPool; // heap buffers, for read()
+    _ByteBufferPool netWritePool;  // 2x capacity, for localNetBuffer. see write()
     TcpChannel channel;
     long id;
     SSLEngine engine;
@@ -28,6 +31,8 @@ class SslConnectionImpl implements SslConnection, _TcpConn2Chann
     SslConnectionImpl(TcpChannel channel, SSLEngine engine, _ByteBufferPool bufferPool, long id)
     {
         this.bufferPool = bufferPool;
+        this.appBufferPool = _ByteBufferPool.heapForCapacity(bufferPool.getBufferCapacity());
+        this.netWritePool = _ByteBufferPool.forCapacity(2*bufferPool.getBufferCapacity());
         this.channel = channel;
         this.id = id;
         this.engine = engine;
@@ -61,6 +66,12 @@ class SslConnectionImpl implements SslConnection, _TcpConn2Chann
         return engine.getSession();
     }
 
+    @Override
+    public String getApplicationProtocol()
+    {
+        return _Alpn.getProtocol(engine);
+    }
+
     // note on ssl close
     // in tcp, two sides can close independently, each closes only its outbound direction.
     // in ssl, close semantics is rather odd. receiver of close_notify must immediately close its outbound.
@@ -165,8 +176,12 @@ class SslConnectionImpl implements SslConnection, _TcpConn2Chann
         if(readError)
             throw new IllegalStateException("prev read() error"); // no detail; see prev msg
 
-        ByteBuffer peerAppBuffer = ByteBuffer.allocate( bufferPool.getBufferCapacity() );
-        // an ordinary heap buffer
+        ByteBuffer peerAppBuffer = appBufferPool.checkOut();
+        // a pooled heap buffer. if it's well filled with data (likely in bulk transfer), it's handed to the caller,
+        // without copying, and not checked back in; the pool allocates a fresh one next time.
+        // otherwise (e.g. a small HTTP request head), data is copied into a right-sized buffer for the caller,
+        // and peerAppBuffer is checked in for reuse. this saves allocating (and zeroing) a 16K buffer per read.
+        boolean handOff = false;
         try
         {
             ByteBuffer result = read_unwrap(peerAppBuffer); // CLOSE_NOTIFY, FIND, STALL, DATA
@@ -201,8 +216,12 @@ class SslConnectionImpl implements SslConnection, _TcpConn2Chann
                 //     no more record imm available. return the 1 byte.
             }
 
-            return _ByteBufferUtil.shrink(peerAppBuffer, 0.75);
-            // often peerAppBuffer is near full with 16KB data, so no shrink is done.
+            if(peerAppBuffer.remaining() >= peerAppBuffer.capacity()*0.75)
+            {
+                handOff = true;
+                return peerAppBuffer;
+            }
+            return _ByteBufferUtil.copyOf(peerAppBuffer);
         }
         catch(Exception t)
         {
@@ -212,6 +231,9 @@ class SslConnectionImpl implements SslConnection, _TcpConn2Chann
         }
         finally
         {
+            if(!handOff)
+                appBufferPool.checkIn(peerAppBuffer);
+
             // even if no error, we want to free buffers if possible.
             // we can't keep empty buffers for imm reuse; it's unknown when they'll be needed again.
             // e.g. after read(), user may do write stuff, and stuck in write select.
@@ -428,8 +450,25 @@ class SslConnectionImpl implements SslConnection, _TcpConn2Chann
 
     byte stateCloseNotify; // [0] none [1] queued [2] wrap()-ed [3] written
     byte stateFin;         // [0] none [1] queued [2] sent
-    ByteBuffer localNetBuffer; // for one ssl record. for get.
-    int rx; // bytes of plain text in the current ssl record. (1 for close_notify record)
+    ByteBuffer localNetBuffer; // for one or more ssl records. for get.
+    int rx; // bytes of plain text in the unflushed ssl records. (+1 for close_notify record)
+
+    // dynamic record size.
+    // engine.wrap() already coalesces queued app buffers into one record, up to the max record size (16K).
+    // but a big record can't be decrypted by the peer until all of it arrives, which may take several
+    // round trips on a fresh TCP connection (slow start). so at the beginning of a burst of writes,
+    // we limit records to fit in one TCP segment (MSS 1460, minus TLS header/IV/MAC/padding);
+    // after `recordBoostBytes` are written, we switch to max records for throughput.
+    // a burst ends after `recordResetIdleMs` without writes.
+    // small records are packed together in localNetBuffer (see write()), so they don't cost one
+    // channel.write() each; only the engine.wrap() calls multiply.
+    // set sys prop smallRecordSize to 0 to disable.
+    static final int smallRecordSize = Integer.getInteger(SslConnectionImpl.class.getName()+".smallRecordSize", 1360).intValue();
+    static final long recordBoostBytes = 128*1024;
+    static final long recordResetIdleMs = 1000;
+
+    long burstBytes;   // app bytes wrapped in the current burst
+    long lastWrapTime;
 
     long r1(){ return bbTotal + (stateCloseNotify==1 ? 1 : 0 ) + (stateFin==1 ? 1 : 0 ); }
     long wr(){ return r1() + rx; }
@@ -441,7 +480,7 @@ class SslConnectionImpl implements SslConnection, _TcpConn2Chann
         if(localNetBuffer !=null)
         {
             if(trace)trace("free localNetBuffer");
-            bufferPool.checkIn(localNetBuffer);
+            netWritePool.checkIn(localNetBuffer);
             localNetBuffer =null;
         }
 
@@ -519,7 +558,7 @@ class SslConnectionImpl implements SslConnection, _TcpConn2Chann
                 if(localNetBuffer !=null)
                 {
                     if(trace)trace("free localNetBuffer");
-                    bufferPool.checkIn(localNetBuffer);
+                    netWritePool.checkIn(localNetBuffer);
                     localNetBuffer =null;
                 }
 
@@ -544,18 +583,24 @@ class SslConnectionImpl implements SslConnection, _TcpConn2Chann
             if(localNetBuffer !=null)
                 localNetBuffer.clear(); // reuse it.
             else
-                localNetBuffer = bufferPool.checkOut(); // throws.
+                localNetBuffer = netWritePool.checkOut(); // throws.
             // localNetBuffer for put
             try
             {
-                // it would be nice for last app data and close_notify to be in the same localNetBuffer
-                // so one channel.write() may flush both. unfortunately engine.wrap() requires a
-                // max buffer (remaining=maxRecordSize). so we must do two separately.
-                //
-                if(bbTotal>0)
-                    wrapAppData();
-                else // ra==0 && stateCloseNotify==1
-                    wrapCloseNotify();  // stateCloseNotify -> 2
+                // engine.wrap() requires room for a max record in the dest buffer, even if the record
+                // will be small. localNetBuffer has 2x that room; keep wrapping records into it while
+                // there's still room for a max one, so that one channel.write() flushes several records
+                // (e.g. ~12 small records, or 2 max records). last app data and close_notify may
+                // also end up in the same channel.write().
+                int room = bufferPool.getBufferCapacity();
+                do
+                {
+                    if(bbTotal>0)
+                        wrapAppData();
+                    else // ra==0 && stateCloseNotify==1
+                        wrapCloseNotify();  // stateCloseNotify -> 2
+                }
+                while((bbTotal>0 || stateCloseNotify==1) && localNetBuffer.remaining()>=room);
             }
             catch(Exception t)
             {
@@ -582,19 +627,56 @@ class SslConnectionImpl implements SslConnection, _TcpConn2Chann
         assert bbTotal>0;
         if(trace)trace("wrap app data");
 
-        ByteBuffer[] bbs = bbQueue.toArray( new ByteBuffer[bbQueue.size()] );
+        long now = System.currentTimeMillis();
+        if(now-lastWrapTime > recordResetIdleMs)
+            burstBytes = 0;
+        lastWrapTime = now;
+        long maxPlain = burstBytes<recordBoostBytes ? smallRecordSize : Long.MAX_VALUE;
+        if(maxPlain<=0) // disabled
+            maxPlain = Long.MAX_VALUE;
+
+        ByteBuffer[] bbs = new ByteBuffer[bbQueue.size()];
+        int n = 0;
+        ByteBuffer cut = null;  // limit temporarily lowered, so that the record has no more than maxPlain bytes
+        int cutLimit = 0;
+        long sum = 0;
+        for(ByteBuffer bb : bbQueue)
+        {
+            bbs[n++] = bb;
+            int r = bb.remaining();
+            if(sum+r >= maxPlain)
+            {
+                if(sum+r > maxPlain)
+                {
+                    cut = bb;
+                    cutLimit = bb.limit();
+                    bb.limit(bb.position() + (int)(maxPlain-sum));
+                }
+                break;
+            }
+            sum += r;
+        }
 
         // note: engine.wrap() may produce 2 records, with 1st record containing 1 byte of plain text,
         // to counter chosen plain text issues on CBC mode cipher suites in SSLv3/TLS1.0.
         // therefore we may consume less than 16KB from source buffer even if there are more bytes.
 
-        SSLEngineResult result = engine.wrap(bbs, localNetBuffer); // throws
+        SSLEngineResult result;
+        try
+        {
+            result = engine.wrap(bbs, 0, n, localNetBuffer); // throws
+        }
+        finally
+        {
+            if(cut!=null)
+                cut.limit(cutLimit);
+        }
         if(trace)trace("engine.wrap", result);
         switch(result.getStatus())
         {
             case BUFFER_UNDERFLOW: // impossible
                 throw new AssertionError();
-            case BUFFER_OVERFLOW: // also impossible; net buffer was empty with sufficient room.
+            case BUFFER_OVERFLOW: // also impossible; net buffer had room for a max record.
                 throw new AssertionError();
 
             // read flow just received peer close_notify. we can't write any more data to peer
@@ -613,8 +695,10 @@ class SslConnectionImpl implements SslConnection, _TcpConn2Chann
             throw new SSLException("peer SSL renegotiation; not supported");
         }
         assert result.bytesConsumed()>0 && result.bytesProduced()>0;
-        rx = result.bytesConsumed();
-        bbTotal -= rx;
+        int consumed = result.bytesConsumed();
+        rx += consumed;
+        bbTotal -= consumed;
+        burstBytes += consumed;
         if(trace)trace("rx, bbTotal", rx, bbTotal);
         while(!bbQueue.isEmpty())
         {
@@ -639,7 +723,7 @@ class SslConnectionImpl implements SslConnection, _TcpConn2Chann
         {
             case BUFFER_UNDERFLOW: // impossible
                 throw new AssertionError();
-            case BUFFER_OVERFLOW: // also impossible; net buffer was empty with sufficient room.
+            case BUFFER_OVERFLOW: // also impossible; net buffer had room for a max record.
                 throw new AssertionError();
 
             case OK: // not sure why. maybe peer sent re-neg, and our side is responding? not supported.
@@ -652,7 +736,7 @@ class SslConnectionImpl implements SslConnection, _TcpConn2Chann
         // don't care about handshake status. it could be NEED_UNWRAP, expecting peer response,
         // or it could be NOT_HANDSHAKING (by chance just responded a prev peer close_notify)
         stateCloseNotify =2;
-        rx = 1;
+        rx += 1;
     }
 
 
@@ -110,6 +110,7 @@ class SslDetector
             else // Plain
             {
                 if(trace)trace("plain detected");
+                toSsl.plainCount.increment();
 
                 TcpConnection conn = toPlain.convert(channel);
                 conn.unread( _ByteBufferUtil.copyOf(readBuffer) );
@@ -11,6 +11,7 @@ import bayou.util.function.Callable_Void;
 import javax.net.ssl.*;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 
@@ -26,6 +27,8 @@ class SslHandshaker
     SSLEngine engine;
     Promise<SslConnection> promise;
 
+    ExecutorService taskExecutor; // for delegated tasks. null for the default executor.
+
     SslHandshaker(TcpChannel channel, Promise<SslConnection> promise, long id, _ByteBufferPool bufferPool, SSLEngine engine)
     {
         if(trace)trace("start handshake ===========");
@@ -430,7 +433,7 @@ class SslHandshaker
 
     void asyncRunTasks(int jNext)
     {
-        Async<Void> asyncExec = Async.execute((Callable_Void)() ->
+        Callable_Void runTasks = () ->
         {
             Runnable task;
             while(null!=(task=engine.getDelegatedTask()))
@@ -438,7 +441,8 @@ class SslHandshaker
                 if(trace)trace("run task", task);
                 task.run(); // throws
             }
-        });
+        };
+        Async<Void> asyncExec = taskExecutor==null? Async.execute(runTasks) : Async.execute(taskExecutor, runTasks);
 
         promise.onCancel(asyncExec::cancel);
 
@@ -10,6 +10,7 @@ import java.net.InetAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.AsynchronousCloseException;
 import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
 import java.util.concurrent.Executor;
@@ -43,6 +44,7 @@ class ChannImpl implements TcpChannel, SelectorThread.OnSelected
 
     SelectionKey selectionKey; // may be null; register when needed
     int interestOps; // of the selectionKey
+    boolean interestUpdatePending; // in agent's update list
 
     boolean acceptingR;
     Promise<Void> readablePromise;
@@ -98,6 +100,12 @@ class ChannImpl implements TcpChannel, SelectorThread.OnSelected
         return socketChannel.write(srcs);
     }
 
+    // file -> socket, by sendfile() if supported by OS. non-blocking; may write less than count.
+    long transferFrom(FileChannel file, long position, long count) throws Exception
+    {
+        return file.transferTo(position, count, socketChannel);
+    }
+
     @Override public void shutdownOutput() throws Exception
     {
         socketChannel.shutdownOutput();
@@ -124,9 +132,20 @@ class ChannImpl implements TcpChannel, SelectorThread.OnSelected
         selectorThread.execute( this::onCloseChann  );
     }
 
+    // interest may change several times before next select; queue the chann for update only once.
+    void toUpdateInterest()
+    {
+        if(interestUpdatePending)
+            return;
+        interestUpdatePending = true;
+        agent.toUpdateInterest(this);
+    }
+
     // before select
     void updateInterest()
     {
+        interestUpdatePending = false;
+
         if(closed)
             return;
 
@@ -189,7 +208,7 @@ class ChannImpl implements TcpChannel, SelectorThread.OnSelected
         {
             acceptingR = accepting;
             readablePromise = promise;
-            agent.toUpdateInterest(this); // to turn on read interest
+            toUpdateInterest(); // to turn on read interest
 
             promise.onCancel( reason -> onCancelAwaitReadable(promise, reason) );
         }
@@ -205,7 +224,7 @@ class ChannImpl implements TcpChannel, SelectorThread.OnSelected
         acceptingR = false;
         Promise<Void> promise = readablePromise;
         readablePromise = null;
-        agent.toUpdateInterest(this); // to turn off read interest
+        toUpdateInterest(); // to turn off read interest
 
         if(error==null)
             promise.succeed(null);
@@ -227,7 +246,7 @@ class ChannImpl implements TcpChannel, SelectorThread.OnSelected
         else
         {
             writablePromise = promise;
-            agent.toUpdateInterest(this); // to turn on write interest
+            toUpdateInterest(); // to turn on write interest
 
             promise.onCancel( reason -> onCancelAwaitWritable(promise, reason) );
         }
@@ -242,7 +261,7 @@ class ChannImpl implements TcpChannel, SelectorThread.OnSelected
     {
         Promise<Void> promise = writablePromise;
         writablePromise = null;
-        agent.toUpdateInterest(this); // to turn off write interest
+        toUpdateInterest(); // to turn off write interest
 
         if(error==null)
             promise.succeed(null);
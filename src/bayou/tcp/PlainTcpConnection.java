@@ -2,19 +2,23 @@ package bayou.tcp;
 
 import _bayou._tmp._ByteBufferPool;
 import _bayou._tmp._ByteBufferUtil;
+import _bayou._tmp._DirectArena;
 import _bayou._tmp._Tcp;
 import _bayou._tmp._TcpConn2Chann;
+import _bayou._tmp._TcpConnTransfer;
+import _bayou._tmp._TcpConnWriteBuffer;
 import bayou.async.Async;
 import bayou.ssl.SslConnection;
 
 import java.net.InetAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.time.Duration;
 import java.util.ArrayDeque;
 import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicInteger;
 
-class PlainTcpConnection implements TcpConnection, _TcpConn2Chann
+class PlainTcpConnection implements TcpConnection, _TcpConn2Chann, _TcpConnWriteBuffer, _TcpConnTransfer
 {
     _ByteBufferPool readBufferPool;
     _ByteBufferPool writeBufferPool;
@@ -161,6 +165,10 @@ class PlainTcpConnection implements TcpConnection, _TcpConn2Chann
     // the dbb is our copy of user's non-direct bb
     ArrayDeque<Boolean> dbbIsCopy = new ArrayDeque<>(16);
 
+    // direct buffers lent to producers by checkOutWriteBuffer(), in the order they are queued.
+    // they are green ubb; after fully written, they are returned to writeBufferPool.
+    ArrayDeque<ByteBuffer> lentQueue = new ArrayDeque<>(4);
+
     int stateFin; // [0] none [1] queued [2] sent
 
     long wr()
@@ -176,6 +184,27 @@ class PlainTcpConnection implements TcpConnection, _TcpConn2Chann
         return wr();
     }
 
+    @Override public ByteBuffer checkOutWriteBuffer(int minCapacity)
+    {
+        if(closeAction !=null)
+            throw new IllegalStateException("closed");
+
+        if(minCapacity>cbM)
+            return null;
+
+        ByteBuffer bb;
+        try
+        {
+            bb = writeBufferPool.checkOut();
+        }
+        catch(_DirectArena.BudgetExceededException e) // caller can use a heap buffer instead
+        {
+            return null;
+        }
+        lentQueue.addLast(bb); // caller will queue it next
+        return bb;
+    }
+
     @Override public long queueWrite(ByteBuffer bb)
     {
         if(bb== SslConnection.SSL_CLOSE_NOTIFY)
@@ -241,6 +270,23 @@ class PlainTcpConnection implements TcpConnection, _TcpConn2Chann
         return wr_before - wr();
     }
 
+    @Override public boolean isTransferSupported()
+    {
+        return channel instanceof ChannImpl;
+    }
+
+    @Override public long transferFrom(FileChannel file, long position, long count) throws Exception
+    {
+        if(trace)trace("transferFrom()", position, count);
+        if(closeAction !=null)
+            throw new IllegalStateException("closed");
+
+        if(wr()!=0)
+            throw new IllegalStateException("write queue is not empty");
+
+        return ((ChannImpl)channel).transferFrom(file, position, count); // throws
+    }
+
     void ubb2dbb()
     {
         // we need to convert user ByteBuffer ubb to *direct* ByteBuffer dbb.
@@ -319,6 +365,9 @@ class PlainTcpConnection implements TcpConnection, _TcpConn2Chann
 
             dbbQueue.removeFirst();
             dbbIsCopy.removeFirst();
+
+            if(!lentQueue.isEmpty() && lentQueue.peekFirst()==dbb) // lent buffer, fully written
+                writeBufferPool.checkIn(lentQueue.removeFirst());
         }
     }
 
@@ -333,6 +382,8 @@ class PlainTcpConnection implements TcpConnection, _TcpConn2Chann
 
         ubbQueue.clear();
 
+        while(!lentQueue.isEmpty())
+            writeBufferPool.checkIn(lentQueue.removeFirst());
     }
 
 
@@ -419,6 +470,8 @@ class PlainTcpConnection implements TcpConnection, _TcpConn2Chann
         bb.limit(bb.position() + len);
         copyBuffer.put(bb);
         // bb.position += len
+
+        _Tcp.writeCopiedBytes.add(len);
     }
 
     // queue [cbY0, cbY) to dbb
@@ -483,6 +536,7 @@ class PlainTcpConnection implements TcpConnection, _TcpConn2Chann
     {
         assert unread==null;
         assert copyBuffer==null;
+        assert lentQueue.isEmpty();
         assert closeAction==null;
 
         return new AsChann(channel, peerHost, peerPort);
@@ -0,0 +1,231 @@
+package bayou.tcp;
+
+import _bayou._log._Logger;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+// SelectorThread's access to the underlying java.nio Selector, for select and dispatching of ready keys.
+// abstracted so that alternative impls can be plugged in, selected by sys prop
+//     bayou.tcp.SelectorThread.driver
+// the Selector itself is created by the default SelectorProvider, which can be replaced by the standard
+// sys prop java.nio.channels.spi.SelectorProvider.
+//
+// all methods are called on the selector thread, except wakeup() and close().
+//
+// available drivers:
+//   default - iterate Selector.selectedKeys(), a HashSet
+//   array   - install an array backed key set into the Selector impl; see ArrayDriver
+class SelectorDriver implements AutoCloseable
+{
+    static final _Logger logger = _Logger.of(SelectorDriver.class);
+
+    static final String driverName = System.getProperty(SelectorThread.class.getName()+".driver", "default");
+
+    static SelectorDriver open() throws IOException
+    {
+        Selector selector = Selector.open(); // throws
+        switch(driverName)
+        {
+            case "default":
+                return new SelectorDriver(selector);
+
+            case "array":
+                ArrayDriver arrayDriver = ArrayDriver.tryInstall(selector);
+                return arrayDriver!=null? arrayDriver : new SelectorDriver(selector);
+
+            default:
+                selector.close();
+                throw new IllegalArgumentException("unknown "+SelectorThread.class.getName()+".driver: "+driverName);
+        }
+    }
+
+    final Selector selector;
+
+    SelectorDriver(Selector selector)
+    {
+        this.selector = selector;
+    }
+
+    // block until channel events, or timeout, or wakeup. timeoutMs=0 means no timeout.
+    int select(long timeoutMs) throws IOException
+    {
+        return selector.select(timeoutMs);
+    }
+
+    int selectNow() throws IOException
+    {
+        return selector.selectNow();
+    }
+
+    // can be called on any thread
+    void wakeup()
+    {
+        selector.wakeup(); // ok if selector is closed
+    }
+
+    // invoke OnSelected for every ready key, then clear the ready set.
+    void processSelectedKeys()
+    {
+        Set<SelectionKey> selectedKeys = selector.selectedKeys();
+        for(SelectionKey sk : selectedKeys)
+        {
+            assert sk.isValid(); // no other threads mess with the key.
+
+            SelectorThread.OnSelected handler = (SelectorThread.OnSelected)sk.attachment();
+            handler.onSelected(sk); // may add local events
+        }
+        selectedKeys.clear();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        selector.close();
+    }
+
+
+    // the selector impl adds ready keys to our array, instead of its HashSet;
+    // keys are processed by index. no iterator, no hashing, no garbage per ready key.
+    //
+    // this depends on the private fields `selectedKeys` and `publicSelectedKeys` of sun.nio.ch.SelectorImpl.
+    // on java 9+, it requires `--add-opens java.base/sun.nio.ch=ALL-UNNAMED`.
+    // if that fails, we fall back to the default driver.
+    static class ArrayDriver extends SelectorDriver
+    {
+        static volatile boolean installFailed;
+
+        static ArrayDriver tryInstall(Selector selector)
+        {
+            if(installFailed)
+                return null;
+
+            ArrayKeySet keySet = new ArrayKeySet();
+            try
+            {
+                Class<?> implClass = Class.forName("sun.nio.ch.SelectorImpl", false, null);
+                if(!implClass.isInstance(selector))
+                    throw new Exception("not a sun.nio.ch.SelectorImpl: "+selector.getClass());
+
+                Field f1 = implClass.getDeclaredField("selectedKeys");
+                Field f2 = implClass.getDeclaredField("publicSelectedKeys");
+                f1.setAccessible(true);
+                f2.setAccessible(true);
+                f1.set(selector, keySet);
+                f2.set(selector, keySet);
+            }
+            catch (Exception|LinkageError e)
+            {
+                installFailed = true; // don't try again for other selectors
+                logger.info("cannot install array key set; use default selector driver. %s", e);
+                return null;
+            }
+            return new ArrayDriver(selector, keySet);
+        }
+
+        final ArrayKeySet keySet;
+
+        ArrayDriver(Selector selector, ArrayKeySet keySet)
+        {
+            super(selector);
+            this.keySet = keySet;
+        }
+
+        @Override
+        void processSelectedKeys()
+        {
+            SelectionKey[] keys = keySet.keys;
+            int size = keySet.size;
+            for(int i=0; i<size; i++)
+            {
+                SelectionKey sk = keys[i];
+                keys[i] = null; // for GC
+
+                if(!sk.isValid()) // cancelled by a previous handler
+                    continue;
+
+                SelectorThread.OnSelected handler = (SelectorThread.OnSelected)sk.attachment();
+                handler.onSelected(sk); // may add local events
+            }
+            keySet.size = 0;
+        }
+    }
+
+    // used by selector impl only through add() and size().
+    // contains() returns false, so that the impl always calls add() for a ready key, once per select.
+    static class ArrayKeySet extends AbstractSet<SelectionKey>
+    {
+        SelectionKey[] keys = new SelectionKey[1024];
+        int size;
+
+        @Override
+        public boolean add(SelectionKey sk)
+        {
+            if(size==keys.length)
+            {
+                SelectionKey[] newKeys = new SelectionKey[size*2];
+                System.arraycopy(keys, 0, newKeys, 0, size);
+                keys = newKeys;
+            }
+            keys[size++] = sk;
+            return true;
+        }
+
+        @Override
+        public int size()
+        {
+            return size;
+        }
+
+        @Override
+        public boolean contains(Object o)
+        {
+            return false;
+        }
+
+        @Override
+        public boolean remove(Object o)
+        {
+            return false;
+        }
+
+        @Override
+        public void clear()
+        {
+            Arrays.fill(keys, 0, size, null);
+            size = 0;
+        }
+
+        @Override
+        public Iterator<SelectionKey> iterator()
+        {
+            // not used by the driver; for debuggers, toString(), etc.
+            return new Iterator<SelectionKey>()
+            {
+                int i;
+
+                @Override
+                public boolean hasNext()
+                {
+                    return i<size;
+                }
+
+                @Override
+                public SelectionKey next()
+                {
+                    if(i>=size)
+                        throw new NoSuchElementException();
+                    return keys[i++];
+                }
+            };
+        }
+    }
+
+}
@@ -3,21 +3,38 @@ package bayou.tcp;
 import _bayou._async._WithPreferredFiberDefaultExec;
 import _bayou._async._WithThreadLocalFiber;
 import _bayou._log._Logger;
+import _bayou._tmp._ByteBufferPool;
+import _bayou._tmp._CpuAffinity;
 import _bayou._tmp._Exec;
+import _bayou._tmp._LocalTimer;
+import _bayou._tmp._ThreadLoad;
 import _bayou._tmp._Util;
 
+import java.io.IOException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ThreadPoolExecutor;
 
 // note WindowsSelectorImpl creates one sub-selector/thread for every 1024 channels.
 
-class SelectorThread extends Thread implements Executor, _WithThreadLocalFiber, _WithPreferredFiberDefaultExec
+class SelectorThread extends Thread implements Executor, _WithThreadLocalFiber, _WithPreferredFiberDefaultExec,
+    _LocalTimer.Host, _ByteBufferPool.ShardHost, _ThreadLoad
 {
     static final _Logger logger = _Logger.of(SelectorThread.class);
 
+    // timeouts (e.g. socket read/write timeout) armed on this thread are scheduled in a local timer,
+    // instead of the shared scheduler. set this property to false to disable it.
+    static final boolean enableLocalTimer = Boolean.parseBoolean(
+        System.getProperty(SelectorThread.class.getName()+".enableLocalTimer", "true"));
+
+    // pin selector thread #i to the i-th cpu that the process is allowed to run on (wrapping around).
+    // a pinned thread keeps its connections, their buffers (in its _ByteBufferPool shard), and its timer
+    // on one core. Linux only (through taskset); on failure, the thread runs unpinned. default: false.
+    static final boolean enableAffinity = _Util.booleanProp(false, SelectorThread.class.getName()+".affinity");
+
     static final HashMap<Object, SelectorThread> allThreadMap = new HashMap<>();
 
     static SelectorThread acquire(Object id) throws Exception
@@ -29,8 +46,8 @@ class SelectorThread extends Thread implements Executor, _WithThreadLocalFiber,
             selectorThread = allThreadMap.get(id);
             if(selectorThread==null)
             {
-                Selector selector = Selector.open(); // throws
-                selectorThread = new SelectorThread(id, selector);
+                SelectorDriver driver = SelectorDriver.open(); // throws
+                selectorThread = new SelectorThread(id, driver);
                 allThreadMap.put(id, selectorThread);
                 start = true;
             }
@@ -80,25 +97,104 @@ class SelectorThread extends Thread implements Executor, _WithThreadLocalFiber,
     int acquireCount; // accessed only by acquire/release, under global lock.
 
     final Object id;
-    final Selector selector; // can be accessed by other threads (for wakeup)
+    final SelectorDriver driver; // can be accessed by other threads (for wakeup)
+    final Selector selector;     // for channel registration
 
     // accessed only by this thread
     ArrayList<BeforeSelect> actionsBeforeSelect = new ArrayList<>(); // we expect only a few; usually just 1.
     boolean stopRequested;
     ArrayDeque<Runnable> localEvents = new ArrayDeque<>();
 
-    // remote events from other threads. use `remoteEvents` as the lock
-    final ArrayDeque<Runnable> remoteEvents = new ArrayDeque<>();
-    volatile boolean remoteEventFlag_volatile;
-    boolean blockingOnSelect =true;
-    boolean threadKilled;
+    boolean blockingOnSelect =true; // whether next select is blocking. accessed only by this thread
+
+    // remote events from other threads. lock-free; no monitor in execute().
+    // handshake for wakeup: this thread sets selecting_volatile=true, then checks remoteEvents before blocking;
+    // another thread adds to remoteEvents, then checks selecting_volatile to decide on wakeup.
+    // at least one of them will see the other's write. extra wakeups are harmless.
+    final ConcurrentLinkedQueue<Runnable> remoteEvents = new ConcurrentLinkedQueue<>();
+    volatile boolean selecting_volatile;
+    volatile boolean threadKilled_volatile;
+
+    final _LocalTimer localTimer; // null if disabled. accessed only by this thread
+
+    // idle strategy, see TcpServer.Conf.selectorIdleSpin. accessed only by this thread.
+    // if multiple servers share this thread, the longest durations apply.
+    final ArrayList<long[]> idleSpinRequests = new ArrayList<>(); // [spinNanos, yieldNanos]
+    long idleSpinNanos, idleYieldNanos;
 
-    SelectorThread(Object id, Selector selector)
+    // measured only if idle spin is enabled. written only by this thread; read by any thread.
+    volatile long spinTimeNanos_volatile;
+    volatile long blockTimeNanos_volatile;
+
+    // load: fraction of time not idle (blocking on select, or idle spinning), measured over windows of 100ms.
+    // written only by this thread; read by any thread.
+    static final long loadWindowNanos = 100_000_000L;
+    long loadWindowStart = System.nanoTime();
+    long loadIdleNanos;
+    volatile float load_volatile;
+
+    final int bufferPoolShardId;
+
+    SelectorThread(Object id, SelectorDriver driver)
     {
         super("bayou selector thread #" + id);
 
         this.id = id;
-        this.selector = selector;
+        this.driver = driver;
+        this.selector = driver.selector;
+
+        this.localTimer = enableLocalTimer? new _LocalTimer(this) : null;
+
+        this.bufferPoolShardId = _ByteBufferPool.allocShardId();
+    }
+
+    void addIdleSpin(long[] request)
+    {
+        idleSpinRequests.add(request);
+        updateIdleSpin();
+    }
+    void removeIdleSpin(long[] request)
+    {
+        idleSpinRequests.remove(request);
+        updateIdleSpin();
+    }
+    void updateIdleSpin()
+    {
+        idleSpinNanos = idleYieldNanos = 0;
+        for(long[] request : idleSpinRequests)
+        {
+            idleSpinNanos = Math.max(idleSpinNanos, request[0]);
+            idleYieldNanos = Math.max(idleYieldNanos, request[1]);
+        }
+    }
+
+    @Override // _LocalTimer.Host
+    public _LocalTimer getLocalTimer()
+    {
+        return localTimer;
+    }
+
+    @Override // _ByteBufferPool.ShardHost
+    public int getBufferPoolShardId()
+    {
+        return bufferPoolShardId;
+    }
+
+    @Override // _ThreadLoad
+    public float getLoad()
+    {
+        return load_volatile;
+    }
+
+    void sampleLoad(long now)
+    {
+        long elapsed = now - loadWindowStart;
+        if(elapsed<loadWindowNanos)
+            return;
+        float busy = 1.0f - (float)Math.min(loadIdleNanos, elapsed) / elapsed;
+        load_volatile = (load_volatile + busy) / 2; // smoothed with previous windows
+        loadWindowStart = now;
+        loadIdleNanos = 0;
     }
 
 
@@ -135,43 +231,49 @@ class SelectorThread extends Thread implements Executor, _WithThreadLocalFiber,
         }
 
         // addEvent() called from another thread. hopefully this is not common.
-        int x = 0;
-        synchronized (remoteEvents)
+        if(threadKilled_volatile)
         {
-            if(threadKilled)
-            {
-                // orphan event, diverted to the single-threaded orphanFlow.
-                // not big deal for tasks after kill, they should be light-weighted.
-                x = 1; // orphanFlow.execute(event);
-            }
-            else
-            {
-                remoteEvents.addLast(event);
-                remoteEventFlag_volatile = true;
-
-                if(blockingOnSelect)
-                    x=2; // selector.wakeup();
-            }
-        }
-        if(x==1)
+            // orphan event, diverted to the single-threaded orphanFlow.
+            // not big deal for tasks after kill, they should be light-weighted.
             orphanFlow.execute(event);
-        else if(x==2)
-            selector.wakeup(); // ok if selector is closed
+            return;
+        }
+
+        remoteEvents.offer(event);
+
+        if(threadKilled_volatile) // killed after our first check; the event may have missed the final drain.
+            drainRemoteEventsToOrphanFlow();
+        else if(selecting_volatile)
+            driver.wakeup(); // ok if selector is closed
     }
 
     void moveRemoteEventsToLocal()
     {
-        assert Thread.holdsLock(remoteEvents);
+        Runnable event;
+        while( (event=remoteEvents.poll())!=null )
+            localEvents.addLast(event);
+    }
 
-        localEvents.addAll(remoteEvents);
-        remoteEvents.clear();
-        remoteEventFlag_volatile = false;
+    // after kill. can be called on any thread
+    void drainRemoteEventsToOrphanFlow()
+    {
+        Runnable event;
+        while( (event=remoteEvents.poll())!=null )
+            orphanFlow.execute(event);
     }
 
 
     @Override
     public void run()
     {
+        if(enableAffinity)
+        {
+            int index = (id instanceof Integer)? ((Integer)id).intValue() : id.hashCode();
+            int cpu = _CpuAffinity.cpuForIndex(index);
+            if(_CpuAffinity.pin(cpu))
+                logger.info("%s pinned to cpu %s", getName(), cpu);
+        }
+
         try
         {
             while( run1() ) continue;
@@ -184,8 +286,45 @@ class SelectorThread extends Thread implements Executor, _WithThreadLocalFiber,
         }
         finally
         {
-            _Util.closeNoThrow(selector, logger);
+            _Util.closeNoThrow(driver, logger);
+            _ByteBufferPool.freeShardId(bufferPoolShardId);
+        }
+    }
+
+    // spin on selectNow(), then yield between selectNow(), before blocking on select().
+    // on dedicated cores, this trades CPU for latency: no wakeup() syscall for remote events,
+    // and no thread park/unpark for channel events that arrive shortly.
+    // return -1 if nothing happened during the idle period; caller should then block.
+    int idleSpin() throws IOException
+    {
+        long t0 = System.nanoTime();
+        long spinEnd = t0 + idleSpinNanos;
+        long yieldEnd = spinEnd + idleYieldNanos;
+        boolean hasAlarm = localTimer!=null && !localTimer.isEmpty();
+        long alarmTime = hasAlarm? localTimer.nextDeadline() : 0;
+
+        int r;
+        long now;
+        while(true)
+        {
+            r = driver.selectNow();
+            now = System.nanoTime();
+            if(r>0)
+                break;
+            if(!remoteEvents.isEmpty() || (hasAlarm && now-alarmTime>=0))
+                break; // r=0
+            if(now-yieldEnd>=0)
+            {
+                r = -1;
+                break;
+            }
+            if(now-spinEnd>=0)
+                Thread.yield();
         }
+        spinTimeNanos_volatile += now - t0; // single writer
+        loadIdleNanos += now - t0;
+        sampleLoad(now);
+        return r;
     }
 
     boolean run1()
@@ -196,16 +335,45 @@ class SelectorThread extends Thread implements Executor, _WithThreadLocalFiber,
         int selectR;
         try
         {
-            if(blockingOnSelect) // can read it without sync{}, cause only this thread writes to it.
+            boolean idleSpin = (idleSpinNanos|idleYieldNanos)!=0;
+            if(blockingOnSelect && idleSpin && (selectR=idleSpin())>=0)
             {
-                selectR = selector.select();     // await channel events
+                // got channel events, remote events, or alarm, while spinning
+                blockingOnSelect = false;
+            }
+            else if(blockingOnSelect) // can read it without sync{}, cause only this thread writes to it.
+            {
+                long timeoutMs = 0; // 0 means no timeout
+                if(localTimer!=null && !localTimer.isEmpty())
+                {
+                    long nanos = localTimer.nextDeadline() - System.nanoTime();
+                    timeoutMs = nanos<=0? -1 : (nanos+999_999)/1_000_000;
+                }
+
+                selecting_volatile = true;
+                if(!remoteEvents.isEmpty()) // arrived after the event loop; don't block
+                    timeoutMs = -1;
 
-                synchronized (remoteEvents)
-                {   blockingOnSelect = false;   }
+                if(timeoutMs==-1) // alarm is due, or remote events. not really blocking
+                    selectR = driver.selectNow();
+                else
+                {
+                    long t0 = System.nanoTime();
+                    selectR = driver.select(timeoutMs);     // await channel events, or next alarm
+                    long t1 = System.nanoTime(); // cheap compared to the blocking select() call
+                    if(idleSpin)
+                        blockTimeNanos_volatile += t1 - t0; // single writer
+                    loadIdleNanos += t1 - t0;
+                    sampleLoad(t1);
+                }
+
+                selecting_volatile = false;
+                blockingOnSelect = false;
             }
             else
             {
-                selectR = selector.selectNow(); //  peek channel events
+                selectR = driver.selectNow(); //  peek channel events
+                sampleLoad(System.nanoTime()); // after an event loop of up to 100ms; busy
             }
         }
         catch (Exception t) // fatal, can't handle
@@ -216,17 +384,13 @@ class SelectorThread extends Thread implements Executor, _WithThreadLocalFiber,
         // channel events ==============================================================================
         // process acceptable/readable/writable/connectable events. may generate local events
         if(selectR>0)
-        {
-            Set<SelectionKey> selectedKeys = selector.selectedKeys();
-            for(SelectionKey sk : selectedKeys)
-            {
-                assert sk.isValid(); // no other threads mess with the key.
+            driver.processSelectedKeys();
 
-                OnSelected handler = (OnSelected)sk.attachment();
-                handler.onSelected(sk); // may add local events
-            }
-            selectedKeys.clear();
-        }
+        // timeouts ===================================================================================
+        // actions are short; they usually cancel async actions, which may generate local events.
+        // precision: while local event loop is busy, alarms are checked only once per loop (<100ms)
+        if(localTimer!=null && !localTimer.isEmpty())
+            localTimer.expire(System.nanoTime());
 
         // local event loop =========================================================================
 
@@ -241,41 +405,36 @@ class SelectorThread extends Thread implements Executor, _WithThreadLocalFiber,
 
         while(true)
         {
-            if(remoteEventFlag_volatile)  /*0*/
-            {
-                synchronized (remoteEvents)
-                {
-                    moveRemoteEventsToLocal();
-                }
-            }
+            if(!remoteEvents.isEmpty())  /*0*/
+                moveRemoteEventsToLocal();
 
             Runnable event = localEvents.pollFirst();
             if(event==null)
             {
-                synchronized (remoteEvents)
+                if(remoteEvents.isEmpty()) // local & remote events are depleted. end this event loop
                 {
-                    if(!remoteEventFlag_volatile) // local & remove events are depleted. end this event loop
+                    if(stopRequested)
                     {
-                        if(stopRequested)
-                        {
-                            // kill this selector thread. no more local events,
-                            // no more channel events (all channels should have been closed)
-                            // divert future remote events to orphanFlow
-                            threadKilled = true;
-                            return false;  // exit run()
-                        }
-                        else // awaiting channel events, block on select()
-                        {
-                            blockingOnSelect = true;
-                            break;
-                        }
+                        // kill this selector thread. no more local events,
+                        // no more channel events (all channels should have been closed)
+                        // divert future remote events to orphanFlow
+                        threadKilled_volatile = true;
+                        drainRemoteEventsToOrphanFlow(); // those that raced with the kill
+                        if(localTimer!=null)
+                            localTimer.transferToScheduler();
+                        return false;  // exit run()
                     }
-                    else // remote events. should be rare, coz we just checked the flag at /*0*/
+                    else // awaiting channel events, block on select()
                     {
-                        moveRemoteEventsToLocal();
-                        // goto /*1*/, then goto /*2*/
+                        blockingOnSelect = true;
+                        break;
                     }
                 }
+                else // remote events. should be rare, coz we just checked at /*0*/
+                {
+                    moveRemoteEventsToLocal();
+                    // goto /*1*/, then goto /*2*/
+                }
                 /*1*/
                 event = localEvents.pollFirst(); // non null
             }
@@ -395,7 +395,7 @@ public class TcpClient implements AutoCloseable
             sk.attach(chann);
             chann.selectionKey = sk;
             chann.interestOps = SelectionKey.OP_CONNECT;
-            agent.toUpdateInterest(chann);  // OP_CONNECT will be cleared before next select()
+            chann.toUpdateInterest();  // OP_CONNECT will be cleared before next select()
 
             promise.succeed( chann );
         }
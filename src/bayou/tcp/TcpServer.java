@@ -12,6 +12,7 @@ import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketAddress;
+import java.net.SocketOption;
 import java.nio.channels.*;
 import java.time.Duration;
 import java.util.*;
@@ -108,6 +109,37 @@ public class TcpServer
          */
         public int[] selectorIds = _Tcp.defaultSelectorIds();
 
+        /**
+         * How long a selector thread spins, when it becomes idle, before blocking.
+         * <p><code>
+         *     default: {@link Duration#ZERO}
+         * </code></p>
+         * <p>
+         *     When there are no more events to process, a selector thread normally blocks
+         *     on {@link Selector#select()}. Waking it up costs latency, for both new channel events,
+         *     and tasks submitted from other threads.
+         * </p>
+         * <p>
+         *     If this duration is positive, the selector thread first busy-spins on
+         *     {@link Selector#selectNow()} for this duration, then calls {@link Thread#yield()}
+         *     between <code>selectNow()</code> for {@link #selectorIdleYield}, and only then blocks.
+         *     This trades CPU for tail latency; it is only suitable if selector threads have dedicated cores.
+         * </p>
+         * <p>
+         *     If a selector is shared by multiple servers, the longest durations apply.
+         *     See {@link TcpServer#getSelectorSpinTime()} and {@link TcpServer#getSelectorBlockTime()}.
+         * </p>
+         */
+        public Duration selectorIdleSpin = Duration.ZERO;
+
+        /**
+         * How long a selector thread yields, after {@link #selectorIdleSpin}, before blocking.
+         * <p><code>
+         *     default: {@link Duration#ZERO}
+         * </code></p>
+         */
+        public Duration selectorIdleYield = Duration.ZERO;
+
 
         /**
          * Server socket backlog.
@@ -144,6 +176,29 @@ public class TcpServer
         // max conn per ip is a defence against abuse. it should be set quite high.
         // finer control, like max conn per specific ips, is not provided here.
 
+        /**
+         * Whether every selector thread has its own server socket for each address, with SO_REUSEPORT.
+         * <p><code>
+         *     default: false
+         * </code></p>
+         * <p>
+         *     By default, each address has one server socket; one selector thread at a time accepts
+         *     connections on it, and dispatches them to the thread with the least connections.
+         *     Under a connection storm, accepting can become the bottleneck.
+         * </p>
+         * <p>
+         *     If this flag is true, each selector thread binds its own listening socket to the same address,
+         *     with the SO_REUSEPORT option; the OS load-balances incoming connections among them,
+         *     and each thread accepts and serves its own connections.
+         *     {@link #maxConnections} and {@link #maxConnectionsPerIp} are enforced across all threads.
+         * </p>
+         * <p>
+         *     This requires Java 9+ and OS support of SO_REUSEPORT (e.g. Linux 3.9+).
+         *     If it's not supported, the server falls back to the default mode.
+         * </p>
+         */
+        public boolean reusePort = false;
+
         /**
          * Action to configure the server socket.
          * <p><code>
@@ -210,6 +265,10 @@ public class TcpServer
     final Object lock = new Object();
 
     LinkedHashMap<ServerSocketChannel, Consumer<TcpChannel>> handlers;
+    // reusePort mode: for each primary server socket (key of `handlers`), one server socket per selector thread.
+    // [0] is the primary. null if not in reusePort mode.
+    HashMap<ServerSocketChannel, ServerSocketChannel[]> reusePortSockets;
+    AtomicInteger totalConns; // reusePort mode only; for conf.maxConnections
 
     ServerAgent[] serverAgentList; // one per selector thread
     enum ServerState{ err, init, accepting, acceptingPaused, acceptingStopped, allStopped }
@@ -259,24 +318,53 @@ public class TcpServer
                     ++maxConnPerAgent;
                 // maxConnPerAgent>0
 
+                _Util.require(!conf.selectorIdleSpin.isNegative(), "confSelectorIdleSpin>=0");
+                _Util.require(!conf.selectorIdleYield.isNegative(), "confSelectorIdleYield>=0");
+
                 _Util.require(conf.maxConnectionsPerIp >0, "confMaxConnectionsPerIp>0");
                 if(conf.maxConnectionsPerIp <Integer.MAX_VALUE)
                     ip2Channs = new ConcurrentHashMap<>();
 
+                SocketOption<Boolean> soReusePort = null;
+                if(conf.reusePort)
+                {
+                    soReusePort = _Tcp.soReusePort();
+                    if(soReusePort==null)
+                        logger.info("SO_REUSEPORT is not supported; TcpServer.Conf.reusePort is ignored");
+                }
+                if(soReusePort!=null)
+                {
+                    reusePortSockets = new HashMap<>();
+                    totalConns = new AtomicInteger(0);
+                }
+
                 handlers = new LinkedHashMap<>();
                 for(Map.Entry<InetSocketAddress, Consumer<TcpChannel>> entry : conf.handlers.entrySet())
                 {
                     InetSocketAddress serverAddress = entry.getKey();
                     Consumer<TcpChannel> handler = entry.getValue();
 
-                    ServerSocketChannel serverSocketChannel = ServerSocketChannel.open();
-                    rollbacks.addFirst(() -> _Util.closeNoThrow(serverSocketChannel, logger));
-
-                    serverSocketChannel.configureBlocking(false);
-                    conf.serverSocketConf.accept(serverSocketChannel);
-                    serverSocketChannel.socket().bind(serverAddress, conf.serverSocketBacklog); // may fail
+                    int nSockets = soReusePort==null? 1 : NS;
+                    ServerSocketChannel[] sockets = new ServerSocketChannel[nSockets];
+                    for(int i=0; i<nSockets; i++)
+                    {
+                        ServerSocketChannel serverSocketChannel = ServerSocketChannel.open();
+                        rollbacks.addFirst(() -> _Util.closeNoThrow(serverSocketChannel, logger));
+
+                        serverSocketChannel.configureBlocking(false);
+                        conf.serverSocketConf.accept(serverSocketChannel);
+                        if(soReusePort!=null)
+                            serverSocketChannel.setOption(soReusePort, true);
+                        serverSocketChannel.socket().bind(serverAddress, conf.serverSocketBacklog); // may fail
+                        sockets[i] = serverSocketChannel;
+
+                        if(i==0 && serverAddress.getPort()==0 && nSockets>1) // ephemeral port. others bind to the same
+                            serverAddress = (InetSocketAddress)serverSocketChannel.getLocalAddress();
+                    }
 
-                    handlers.put(serverSocketChannel, handler);
+                    handlers.put(sockets[0], handler);
+                    if(reusePortSockets!=null)
+                        reusePortSockets.put(sockets[0], sockets);
                 }
 
                 serverAgentList = new ServerAgent[NS];
@@ -294,6 +382,8 @@ public class TcpServer
                 rollbacks.forEach( Runnable::run );
                 serverAgentList=null;
                 handlers=null;
+                reusePortSockets=null;
+                totalConns=null;
                 ip2Channs = null;
 
                 throw e;
@@ -355,6 +445,47 @@ public class TcpServer
         return n;
     }
 
+    /**
+     * Get the total time that selector threads of this server spent on idle spinning.
+     * <p>
+     *     This is measured only if {@link Conf#selectorIdleSpin} or {@link Conf#selectorIdleYield} is positive.
+     *     If a selector is shared by multiple servers, its time is counted for all of them.
+     * </p>
+     */
+    public Duration getSelectorSpinTime()
+    {
+        return selectorTime(true);
+    }
+
+    /**
+     * Get the total time that selector threads of this server spent on blocking select.
+     * <p>
+     *     This is measured only if {@link Conf#selectorIdleSpin} or {@link Conf#selectorIdleYield} is positive.
+     *     If a selector is shared by multiple servers, its time is counted for all of them.
+     * </p>
+     */
+    public Duration getSelectorBlockTime()
+    {
+        return selectorTime(false);
+    }
+
+    Duration selectorTime(boolean spin)
+    {
+        ServerAgent[] serverAgentList;
+        synchronized (lock)
+        {
+            serverAgentList = this.serverAgentList;
+        }
+
+        if(serverAgentList ==null)
+            return Duration.ZERO;
+
+        long n=0;
+        for(ServerAgent sa : serverAgentList)
+            n += spin? sa.selectorThread.spinTimeNanos_volatile : sa.selectorThread.blockTimeNanos_volatile;
+        return Duration.ofNanos(n);
+    }
+
     /**
      * Pause accepting new connections. See <a href="#life-cycle">Life Cycle</a>.
      */
@@ -426,7 +557,12 @@ public class TcpServer
 
             for(ServerSocketChannel serverSocketChannel : handlers.keySet())
                 _Util.closeNoThrow(serverSocketChannel, logger);
+            if(reusePortSockets!=null)
+                for(ServerSocketChannel[] sockets : reusePortSockets.values())
+                    for(ServerSocketChannel serverSocketChannel : sockets)
+                        _Util.closeNoThrow(serverSocketChannel, logger); // ok if closed already
             handlers=null;
+            reusePortSockets=null;
             // we don't own the ports now. another server can take the ports.
 
             state =ServerState.acceptingStopped;
@@ -454,6 +590,7 @@ public class TcpServer
                 SelectorThread.release(sd.selectorThread);
 
             serverAgentList = null;
+            totalConns = null;
             ip2Channs =null;
 
             state =ServerState.allStopped;
@@ -498,6 +635,28 @@ public class TcpServer
         }
     }
 
+    // reusePort mode: total number of connections, across threads.
+    boolean totalConns_tryInc()
+    {
+        AtomicInteger counter = totalConns;
+        if(counter==null)
+            return true;
+        while(true)
+        {
+            int n = counter.get();
+            if(n>=conf.maxConnections)
+                return false;
+            if(counter.compareAndSet(n, n+1))
+                return true;
+        }
+    }
+    void totalConns_dec()
+    {
+        AtomicInteger counter = totalConns;
+        if(counter!=null)
+            counter.decrementAndGet();
+    }
+
     // number of connections per ip. in very rare cases we may allow an ip a few extra connections.
     boolean ip2Channs_tryInc(InetAddress ip)
     {
@@ -557,6 +716,8 @@ public class TcpServer
         volatile int nConnections_volatile;
         HashSet<ChannImpl> allChann = new HashSet<>();
 
+        final long[] idleSpin; // [spinNanos, yieldNanos]. null if not enabled
+
         ArrayList<ChannImpl> interestUpdateList = new ArrayList<>();
 
         ServerAgent(int index, TcpServer server, SelectorThread selectorThread, int maxConnPerAgent)
@@ -566,6 +727,9 @@ public class TcpServer
             this.selectorThread = selectorThread;
             this.maxConnPerAgent = maxConnPerAgent;
 
+            long spin = server.conf.selectorIdleSpin.toNanos(), yield = server.conf.selectorIdleYield.toNanos();
+            this.idleSpin = (spin|yield)==0? null : new long[]{spin, yield};
+
             // call onInit() on the selector thread.
         }
 
@@ -576,11 +740,16 @@ public class TcpServer
             // therefore `acceptAgents` have same order across threads.
             server.handlers.forEach((serverSocketChannel, handler)->
             {
+                if(server.reusePortSockets!=null) // this thread has its own server socket
+                    serverSocketChannel = server.reusePortSockets.get(serverSocketChannel)[index];
+
                 AcceptAgent aa = new AcceptAgent(acceptAgents.size(), this, serverSocketChannel, handler);
                 acceptAgents.add(aa);
                 try
                 {
-                    aa.acceptSK = serverSocketChannel.register(selectorThread.selector, 0, aa);
+                    // in reusePort mode, every thread is an accepter of its own socket
+                    int ops = aa.reusePort? SelectionKey.OP_ACCEPT : 0;
+                    aa.acceptSK = serverSocketChannel.register(selectorThread.selector, ops, aa);
                 }
                 catch(ClosedChannelException e) // impossible
                 {
@@ -589,10 +758,15 @@ public class TcpServer
             });
 
             selectorThread.actionsBeforeSelect.add(this);
+
+            if(idleSpin!=null)
+                selectorThread.addIdleSpin(idleSpin);
         }
 
         void onBecomeAcceptor0() // cannot be part of onInit of serverAgent0; must be arranged after ALL onInit.
         {
+            if(server.reusePortSockets!=null) // every thread is an accepter since onInit
+                return;
             acceptAgents.forEach( aa->aa.acceptSK.interestOps(SelectionKey.OP_ACCEPT) );
         }
 
@@ -622,6 +796,7 @@ public class TcpServer
         {
             allChann.remove(chann);
             nConnections_volatile--;
+            server.totalConns_dec();
             server.ip2Channs_dec(chann.getPeerIp());
         }
 
@@ -660,6 +835,7 @@ public class TcpServer
 
             SelectionKey acceptSK;
             boolean accepting=true;
+            final boolean reusePort;
 
             AcceptAgent(int aaIndex, ServerAgent sa, ServerSocketChannel serverSocketChannel, Consumer<TcpChannel> handler)
             {
@@ -667,6 +843,7 @@ public class TcpServer
 
                 saIndex = sa.index;
                 serverAgentList = sa.server.serverAgentList;
+                reusePort = sa.server.reusePortSockets!=null;
 
                 this.serverSocketChannel = serverSocketChannel;
                 this.handler = handler;
@@ -707,6 +884,13 @@ public class TcpServer
                         continue;
                     }
 
+                    if(reusePort) // serve it on this thread. the OS has balanced it.
+                    {
+                        ServerAgent agent = serverAgentList[saIndex];
+                        agent.selectorThread.execute( ()->agent.onInitChann(socketChannel, handler) );
+                        continue;
+                    }
+
                     // dispatch the connection to the thread with the least connections
                     int indexMin = findMinConn(saIndex, connList);
                     ++connList[indexMin];
@@ -720,6 +904,9 @@ public class TcpServer
 
                 } // while(true)
 
+                if(reusePort)
+                    return; // stay as the accepter of this socket
+
                 // choose the next "accepter", the thread with the least connections
                 int indexMin = findMinConn(saIndex, connList);
                 if(indexMin!= saIndex)
@@ -760,13 +947,21 @@ public class TcpServer
             if(!accepting) // onPauseAccepting arrived earlier
                 return _abandon(socketChannel);
 
-            if(nConnections_volatile>maxConnPerAgent)
+            if(server.totalConns!=null) // reusePort mode. threads may be unevenly loaded; check the total.
+            {
+                if(!server.totalConns_tryInc())
+                    return _abandon(socketChannel);
+            }
+            else if(nConnections_volatile>maxConnPerAgent)
                 return _abandon(socketChannel);
 
             InetAddress ip = socketChannel.socket().getInetAddress();
 
             if(!server.ip2Channs_tryInc(ip)) // too many connections from that ip
+            {
+                server.totalConns_dec();
                 return _abandon(socketChannel);
+            }
 
             try
             {
@@ -777,6 +972,7 @@ public class TcpServer
             {
                 _Util.logUnexpected(logger, e);
                 server.ip2Channs_dec(ip);
+                server.totalConns_dec();
                 return _abandon(socketChannel);
             }
 
@@ -848,6 +1044,9 @@ public class TcpServer
 
             selectorThread.actionsBeforeSelect.remove(this);
 
+            if(idleSpin!=null)
+                selectorThread.removeIdleSpin(idleSpin);
+
             phaser.arrive();
             // event issuer now knows that all chann closed; no read/write/awaitRW/yield() works.
         }